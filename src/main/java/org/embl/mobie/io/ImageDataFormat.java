@@ -181,11 +181,11 @@ public enum ImageDataFormat {
             case OpenOrganelleS3:
                 return OPENORGANELLES3;
             case BdvOmeZarr:
-                return BDVOMEZARRS3;
+                return BDVOMEZARR;
             case OmeZarr:
                 return OMEZARR;
             case BdvOmeZarrS3:
-                return BDVOMEZARR;
+                return BDVOMEZARRS3;
             case OmeZarrS3:
                 return OMEZARRS3;
             case Imaris:
@@ -201,8 +201,16 @@ public enum ImageDataFormat {
         }
     }
 
+    /**
+     * Determines the format from the content at the path, see {@link ImageDataFormatDetector},
+     * and falls back to guessing from the name of the path if the content is not conclusive.
+     */
     public static ImageDataFormat fromPath(String path)
     {
+        final ImageDataFormat detectedFormat = ImageDataFormatDetector.detect( path );
+        if ( detectedFormat != null )
+            return detectedFormat;
+
         final String lowerCase = path.toLowerCase();
         if(lowerCase.contains( ".zarr" ))
             return ImageDataFormat.OmeZarr;
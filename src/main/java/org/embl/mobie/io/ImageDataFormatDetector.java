@@ -0,0 +1,285 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io;
+
+import org.embl.mobie.io.util.IOHelper;
+import org.embl.mobie.io.util.ResourceLocation;
+import org.janelia.saalfeldlab.n5.hdf5.N5HDF5Reader;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Determines the {@link ImageDataFormat} of a URI from its content
+ * rather than from its name.
+ * <p>
+ * For files only the first few kilobytes are read (TIFF and HDF5 signatures,
+ * BDV XML root element); for containers only single metadata keys are probed
+ * (zarr.json, .zgroup, .zattrs, .zarray, attributes.json).
+ * <p>
+ * TIFF and HDF5 files are only assigned to the TIFF and ilastik readers if their name,
+ * and for HDF5 the datasets, agree; other TIFF and HDF5 based formats go to Bio-Formats.
+ * <p>
+ * Detections are cached per URI; failed detections only for {@link #MISS_TTL_MILLIS},
+ * because the resource may be written later.
+ */
+public class ImageDataFormatDetector
+{
+    private static final int NUM_HEADER_BYTES = 8192;
+
+    private static final String[] ZARR_KEYS = { "zarr.json", ".zgroup", ".zattrs", ".zarray" };
+
+    private static final String N5_KEY = "attributes.json";
+
+    private static final byte[] HDF5_SIGNATURE = { ( byte ) 0x89, 'H', 'D', 'F', '\r', '\n', 0x1a, '\n' };
+
+    private static final Pattern IMAGE_LOADER_FORMAT = Pattern.compile( "<ImageLoader[^>]*format=\"([^\"]+)\"" );
+
+    static final long MISS_TTL_MILLIS = 60_000;
+
+    private static final Map< String, ImageDataFormat > uriToFormat = new ConcurrentHashMap<>();
+
+    // the time at which the detection failed
+    private static final Map< String, Long > uriToMiss = new ConcurrentHashMap<>();
+
+    /**
+     * @return the detected format, or null if the content
+     *         does not identify a format
+     */
+    public static ImageDataFormat detect( String uri )
+    {
+        final ImageDataFormat cached = uriToFormat.get( uri );
+        if ( cached != null )
+            return cached;
+
+        final Long missTime = uriToMiss.get( uri );
+        if ( missTime != null && System.currentTimeMillis() - missTime < MISS_TTL_MILLIS )
+            return null;
+
+        final ImageDataFormat format = sniff( ResourceLocation.of( uri ) );
+
+        if ( format != null )
+        {
+            uriToFormat.put( uri, format );
+            uriToMiss.remove( uri );
+        }
+        else
+        {
+            uriToMiss.put( uri, System.currentTimeMillis() );
+        }
+
+        return format;
+    }
+
+    private static ImageDataFormat sniff( ResourceLocation location )
+    {
+        try
+        {
+            final String uri = location.getURI();
+            final String lowerCase = uri.toLowerCase();
+
+            if ( location.getType().equals( IOHelper.ResourceType.FILE ) )
+            {
+                final File file = new File( uri );
+                if ( file.isDirectory() )
+                    return detectContainer( location );
+                else if ( file.isFile() )
+                    return detectFile( uri, lowerCase, IOHelper.readRange( location, 0, NUM_HEADER_BYTES ), location.getType() );
+                else
+                    return null;
+            }
+
+            // remote: the name of a container is reliable and
+            // probing would cost additional round trips
+            if ( lowerCase.contains( ".zarr" ) || lowerCase.contains( ".n5" ) )
+                return null;
+
+            if ( ! uri.endsWith( "/" ) )
+            {
+                // an object that exists is a file rather than a container
+                final byte[] header = readRemoteHeader( location );
+                if ( header.length > 0 )
+                    return detectFile( uri, lowerCase, header, location.getType() );
+            }
+
+            return detectContainer( location );
+        }
+        catch ( Exception e )
+        {
+            return null;
+        }
+    }
+
+    private static byte[] readRemoteHeader( ResourceLocation location )
+    {
+        try
+        {
+            return IOHelper.readRange( location, 0, NUM_HEADER_BYTES );
+        }
+        catch ( Exception e )
+        {
+            // e.g., the location is an S3 prefix rather than an object
+            return new byte[ 0 ];
+        }
+    }
+
+    private static ImageDataFormat detectContainer( ResourceLocation location )
+    {
+        for ( String key : ZARR_KEYS )
+            if ( IOHelper.exists( IOHelper.combinePath( location, key ) ) )
+                return ImageDataFormat.OmeZarr;
+
+        if ( IOHelper.exists( IOHelper.combinePath( location, N5_KEY ) ) )
+            return ImageDataFormat.N5;
+
+        return null;
+    }
+
+    /*
+     * The TIFF and HDF5 readers of this library only read plain TIFF files and ilastik exports;
+     * other TIFF based (e.g. .lsm, .svs, .ndpi) or HDF5 based (e.g. .nc, .mat, .bdv.h5)
+     * files are left to Bio-Formats.
+     */
+    private static ImageDataFormat detectFile( String uri, String lowerCase, byte[] header, IOHelper.ResourceType type )
+    {
+        final boolean isRemote = ! type.equals( IOHelper.ResourceType.FILE );
+        final ImageDataFormat bioFormats = isRemote ? ImageDataFormat.BioFormatsS3 : ImageDataFormat.BioFormats;
+
+        if ( isTiff( header ) )
+        {
+            final boolean isOmeTiff = lowerCase.endsWith( ".ome.tif" ) || lowerCase.endsWith( ".ome.tiff" );
+            final boolean isPlainTiff = lowerCase.endsWith( ".tif" ) || lowerCase.endsWith( ".tiff" );
+            if ( isPlainTiff && ! isOmeTiff )
+                // also over HTTP, by byte ranges
+                return ImageDataFormat.Tiff;
+            else
+                return bioFormats;
+        }
+
+        if ( startsWith( header, HDF5_SIGNATURE ) )
+        {
+            if ( isRemote )
+                return ImageDataFormat.BioFormatsS3;
+            else if ( lowerCase.endsWith( ".ims" ) )
+                return ImageDataFormat.Imaris;
+            else if ( lowerCase.endsWith( ".h5" ) && isIlastikExport( uri ) )
+                return ImageDataFormat.Ilastik;
+            else
+                return ImageDataFormat.BioFormats;
+        }
+
+        if ( isXml( header ) )
+        {
+            final String text = new String( header, StandardCharsets.UTF_8 );
+            if ( text.contains( "<SpimData" ) )
+                return getBdvFormat( text );
+        }
+
+        return null;
+    }
+
+    /*
+     * The datasets that IlastikImageData opens.
+     */
+    private static boolean isIlastikExport( String path )
+    {
+        try ( N5HDF5Reader n5 = new N5HDF5Reader( path ) )
+        {
+            return n5.datasetExists( "exported_data" ) || n5.datasetExists( "data" );
+        }
+        catch ( Exception e )
+        {
+            return false;
+        }
+    }
+
+    private static ImageDataFormat getBdvFormat( String xml )
+    {
+        final Matcher matcher = IMAGE_LOADER_FORMAT.matcher( xml );
+        if ( matcher.find() )
+        {
+            try
+            {
+                final ImageDataFormat format = ImageDataFormat.fromString( matcher.group( 1 ) );
+                if ( format.toString().startsWith( ImageDataFormat.Names.BDV ) )
+                    return format;
+            }
+            catch ( UnsupportedOperationException e )
+            {
+                // an image loader that is not listed in ImageDataFormat
+            }
+        }
+
+        return ImageDataFormat.Bdv;
+    }
+
+    private static boolean isTiff( byte[] header )
+    {
+        if ( header.length < 4 )
+            return false;
+
+        // classic TIFF has version 42, BigTIFF has version 43
+        if ( header[ 0 ] == 'I' && header[ 1 ] == 'I' )
+            return ( header[ 2 ] == 42 || header[ 2 ] == 43 ) && header[ 3 ] == 0;
+        else if ( header[ 0 ] == 'M' && header[ 1 ] == 'M' )
+            return header[ 2 ] == 0 && ( header[ 3 ] == 42 || header[ 3 ] == 43 );
+        else
+            return false;
+    }
+
+    private static boolean isXml( byte[] header )
+    {
+        int i = 0;
+
+        // UTF-8 byte order mark
+        if ( startsWith( header, new byte[]{ ( byte ) 0xEF, ( byte ) 0xBB, ( byte ) 0xBF } ) )
+            i = 3;
+
+        while ( i < header.length && Character.isWhitespace( header[ i ] ) )
+            i++;
+
+        return i < header.length && header[ i ] == '<';
+    }
+
+    private static boolean startsWith( byte[] bytes, byte[] prefix )
+    {
+        if ( bytes.length < prefix.length )
+            return false;
+
+        for ( int i = 0; i < prefix.length; i++ )
+            if ( bytes[ i ] != prefix[ i ] )
+                return false;
+
+        return true;
+    }
+}
@@ -32,6 +32,7 @@ import bdv.cache.SharedQueue;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.NumericType;
 import org.embl.mobie.io.imagedata.*;
+import org.embl.mobie.io.util.CancellingSharedQueue;
 
 
 public class ImageDataOpener
@@ -46,6 +47,9 @@ public class ImageDataOpener
             ImageDataFormat imageDataFormat,
             SharedQueue sharedQueue )
     {
+        // drop the requests of cells that are no longer rendered, also for queues of the caller
+        sharedQueue = CancellingSharedQueue.wrap( sharedQueue );
+
         switch (imageDataFormat)
         {
             case OmeZarr:
@@ -66,16 +70,14 @@ public class ImageDataOpener
             case BioFormats:
                 return new BioFormatsImageData<>( uri, sharedQueue );
             case BioFormatsS3:
-                // TODO: use the s3AccessAndSecretKey
-                return new BioFormatsS3ImageData<>( uri, sharedQueue );
+                return new BioFormatsS3ImageData<>( uri, sharedQueue, imageDataFormat.getSecretAndAccessKey() );
             case Bdv:
             case BdvHDF5:
             case BdvN5:
             case BdvN5S3:
-                // TODO: use the s3AccessAndSecretKey
-                return new BDVXMLImageData<>( uri, sharedQueue );
             case BdvOmeZarr:
             case BdvOmeZarrS3:
+                return new BDVXMLImageData<>( uri, sharedQueue, imageDataFormat.getSecretAndAccessKey() );
             default:
                 throw new RuntimeException( "Opening " + imageDataFormat + " is not supported; " +
                         "if you need it please report here: " +
@@ -31,22 +31,44 @@ package org.embl.mobie.io;
 import bdv.export.ExportMipmapInfo;
 import bdv.export.ProposeMipmaps;
 import bdv.viewer.Source;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
 import ij.IJ;
+import ij.CompositeImage;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.VirtualStack;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
 import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
 import net.thisptr.jackson.jq.internal.misc.Strings;
+import org.embl.mobie.io.util.ChannelStatistics;
 import org.embl.mobie.io.util.IOHelper;
+import org.embl.mobie.io.util.SampledDisplayRange;
 import org.janelia.saalfeldlab.n5.N5URI;
+import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.ij.N5Importer;
 import org.janelia.saalfeldlab.n5.ij.N5ScalePyramidExporter;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.universe.N5Factory;
 import org.jetbrains.annotations.NotNull;
 
 import java.lang.reflect.Field;
 import java.net.URISyntaxException;
 import java.sql.Array;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.janelia.saalfeldlab.n5.ij.N5ScalePyramidExporter.GZIP_COMPRESSION;
 import static org.janelia.saalfeldlab.n5.ij.N5ScalePyramidExporter.ZARR_FORMAT;
@@ -78,8 +100,15 @@ public class OMEZarrWriter
             String containerPath = n5URI.getContainerPath();
             String groupPath = n5URI.getGroupPath();
 
+            // for virtual stacks, record the statistics from the planes that the exporter reads,
+            // such that the data is read only once; in memory, compute them concurrently
+            final boolean intensities = imageType.equals( ImageType.Intensities );
+            final boolean virtual = imp.getStack().isVirtual();
+            final List< ChannelStatistics.Accumulator > accumulators = intensities ? createAccumulators( imp ) : null;
+            final ImagePlus exported = accumulators != null && virtual ? recording( imp, accumulators ) : imp;
+
             N5ScalePyramidExporter exporter = new N5ScalePyramidExporter(
-                    imp,
+                    exported,
                     containerPath,
                     groupPath,
                     ZARR_FORMAT,
@@ -97,8 +126,40 @@ public class OMEZarrWriter
 
             exporter.setOverwrite( overwrite );
 
+            final AtomicBoolean cancelled = new AtomicBoolean();
+            final CompletableFuture< List< ChannelStatistics > > statistics =
+                    accumulators != null && ! virtual ?
+                            CompletableFuture.supplyAsync( () -> computeStatistics( imp, accumulators, cancelled ) )
+                            : CompletableFuture.completedFuture( null );
+
             // TODO: Log progress: https://github.com/saalfeldlab/n5-ij/issues/84
-            exporter.run();
+            try
+            {
+                exporter.run();
+            }
+            catch ( RuntimeException | Error e )
+            {
+                cancelled.set( true );
+                statistics.cancel( false );
+                throw e;
+            }
+
+            if ( accumulators != null )
+            {
+                try
+                {
+                    // for virtual stacks, this only reads the planes that the exporter did not
+                    List< ChannelStatistics > channelStatistics = virtual ?
+                            computeStatistics( imp, accumulators, cancelled )
+                            : statistics.join();
+                    writeStatistics( imp, containerPath, groupPath, channelStatistics );
+                }
+                catch ( CompletionException | CancellationException e )
+                {
+                    // the image itself has been written, thus only warn
+                    IJ.log( "Could not compute the contrast limits of " + uri + ": " + e.getMessage() );
+                }
+            }
         }
         catch ( URISyntaxException e )
         {
@@ -127,6 +188,214 @@ public class OMEZarrWriter
 //        }
     }
 
+    private static List< ChannelStatistics.Accumulator > createAccumulators( ImagePlus imp )
+    {
+        if ( imp.getBitDepth() == 24 )
+            return null;
+
+        return IntStream.range( 0, imp.getNChannels() )
+                .mapToObj( channel -> ChannelStatistics.Accumulator.of( imp ) )
+                .collect( Collectors.toList() );
+    }
+
+    /*
+     * Adds the planes that have not been added yet to the accumulators.
+     */
+    private static List< ChannelStatistics > computeStatistics( ImagePlus imp, List< ChannelStatistics.Accumulator > accumulators, AtomicBoolean cancelled )
+    {
+        final int numSlices = imp.getNSlices();
+        final int numPlanes = numSlices * imp.getNFrames();
+        IntStream.range( 0, accumulators.size() * numPlanes ).parallel().forEach( index ->
+        {
+            if ( cancelled.get() )
+                throw new CancellationException();
+
+            final int channel = index / numPlanes;
+            final int plane = index % numPlanes;
+            final ChannelStatistics.Accumulator accumulator = accumulators.get( channel );
+            if ( accumulator.contains( plane ) )
+                return;
+
+            accumulator.add( plane, SampledDisplayRange.getProcessor( imp.getStack(),
+                    imp.getStackIndex( channel + 1, plane % numSlices + 1, plane / numSlices + 1 ) ) );
+        } );
+
+        return accumulators.stream()
+                .map( ChannelStatistics.Accumulator::get )
+                .collect( Collectors.toList() );
+    }
+
+    /*
+     * Wraps the virtual stack of the image such that each plane that is read
+     * is also added to the accumulator of its channel.
+     */
+    private static ImagePlus recording( ImagePlus imp, List< ChannelStatistics.Accumulator > accumulators )
+    {
+        ImagePlus recording = new ImagePlus( imp.getTitle(), new RecordingVirtualStack( imp, accumulators ) );
+        recording.setDimensions( imp.getNChannels(), imp.getNSlices(), imp.getNFrames() );
+        recording.setCalibration( imp.getCalibration() );
+        recording.setOpenAsHyperStack( imp.isHyperStack() );
+        if ( imp instanceof CompositeImage )
+        {
+            CompositeImage composite = new CompositeImage( recording, ( ( CompositeImage ) imp ).getMode() );
+            composite.setLuts( imp.getLuts() );
+            return composite;
+        }
+        return recording;
+    }
+
+    private static class RecordingVirtualStack extends VirtualStack
+    {
+        private final ImagePlus imp;
+        private final ImageStack stack;
+        private final List< ChannelStatistics.Accumulator > accumulators;
+
+        RecordingVirtualStack( ImagePlus imp, List< ChannelStatistics.Accumulator > accumulators )
+        {
+            super( imp.getWidth(), imp.getHeight(), imp.getStack().getColorModel(), null );
+            this.imp = imp;
+            this.stack = imp.getStack();
+            this.accumulators = accumulators;
+            setBitDepth( imp.getBitDepth() );
+        }
+
+        /*
+         * Called by the threads of the exporter; the planes are read one at a time,
+         * and added to the statistics in parallel.
+         */
+        @Override
+        public ImageProcessor getProcessor( int n )
+        {
+            ImageProcessor processor = SampledDisplayRange.getProcessor( stack, n );
+            int[] position = imp.convertIndexToPosition( n );
+            accumulators.get( position[ 0 ] - 1 ).add( ( position[ 2 ] - 1 ) * imp.getNSlices() + position[ 1 ] - 1, processor );
+            return processor;
+        }
+
+        @Override
+        public int getSize()
+        {
+            return stack.getSize();
+        }
+
+        @Override
+        public String getSliceLabel( int n )
+        {
+            return stack.getSliceLabel( n );
+        }
+    }
+
+    /*
+     * Adds the OME-Zarr "omero" attribute, in which the contrast limits of each channel are
+     * stored as "window" {min, max, start, end} together with the full resolution histogram,
+     * and a "statistics" attribute with the min, max, contrast limits and histogram of each
+     * channel at each resolution level.
+     */
+    private static void writeStatistics( ImagePlus imp, String containerPath, String groupPath, List< ChannelStatistics > statistics )
+    {
+        if ( statistics == null || statistics.contains( null ) )
+            return;
+
+        JsonArray channels = new JsonArray();
+        for ( int channel = 0; channel < statistics.size(); channel++ )
+        {
+            JsonObject window = toJson( statistics.get( channel ) );
+
+            JsonObject omeroChannel = new JsonObject();
+            omeroChannel.addProperty( "active", true );
+            omeroChannel.addProperty( "color", getColor( imp, channel ) );
+            omeroChannel.addProperty( "label", IOHelper.getChannelPostfix( channel ) );
+            omeroChannel.add( "window", window );
+            channels.add( omeroChannel );
+        }
+
+        JsonObject omero = new JsonObject();
+        omero.addProperty( "version", "0.4" );
+        omero.add( "channels", channels );
+
+        String group = groupPath == null ? "/" : groupPath;
+        try ( N5Writer n5 = new N5Factory().openWriter( containerPath ) )
+        {
+            n5.setAttribute( group, "omero", omero );
+            n5.setAttribute( group, "statistics", getLevelStatistics( n5, group, imp.getNChannels(), statistics ) );
+        }
+        catch ( Exception e )
+        {
+            // the image itself has been written, thus only warn
+            IJ.log( "Could not write the contrast limits to " + containerPath + ": " + e.getMessage() );
+        }
+    }
+
+    /*
+     * The statistics of the full resolution level are those accumulated during the export,
+     * the downsampled levels are read back, which touches at most 1/3 (2D) or 1/7 (3D) of the data.
+     */
+    private static JsonArray getLevelStatistics( N5Writer n5, String group, int numChannels, List< ChannelStatistics > fullResolution )
+    {
+        JsonArray levels = new JsonArray();
+        JsonArray multiscales = n5.getAttribute( group, "multiscales", JsonArray.class );
+        if ( multiscales == null || multiscales.size() == 0 )
+            return levels;
+
+        JsonArray datasets = multiscales.get( 0 ).getAsJsonObject().getAsJsonArray( "datasets" );
+        for ( int level = 0; level < datasets.size(); level++ )
+        {
+            String path = datasets.get( level ).getAsJsonObject().get( "path" ).getAsString();
+
+            JsonArray channels = new JsonArray();
+            if ( level == 0 )
+            {
+                fullResolution.forEach( channelStatistics -> channels.add( toJson( channelStatistics ) ) );
+            }
+            else
+            {
+                RandomAccessibleInterval< ? extends RealType< ? > > data = open( n5, group.endsWith( "/" ) ? group + path : group + "/" + path );
+                for ( int channel = 0; channel < numChannels; channel++ )
+                {
+                    // the dimensions are x, y, c, z, t without singletons
+                    RandomAccessibleInterval< ? extends RealType< ? > > channelData = numChannels > 1 ? Views.hyperSlice( data, 2, channel ) : data;
+                    channels.add( toJson( ChannelStatistics.compute( Views.flatIterable( channelData ) ) ) );
+                }
+            }
+
+            JsonObject levelStatistics = new JsonObject();
+            levelStatistics.addProperty( "path", path );
+            levelStatistics.add( "channels", channels );
+            levels.add( levelStatistics );
+        }
+        return levels;
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private static < T extends RealType< T > & NativeType< T > > RandomAccessibleInterval< T > open( N5Writer n5, String dataset )
+    {
+        return ( RandomAccessibleInterval< T > ) N5Utils.open( n5, dataset );
+    }
+
+    private static JsonObject toJson( ChannelStatistics statistics )
+    {
+        JsonObject json = new JsonObject();
+        json.addProperty( "min", statistics.min );
+        json.addProperty( "max", statistics.max );
+        json.addProperty( "start", statistics.start );
+        json.addProperty( "end", statistics.end );
+        JsonArray histogram = new JsonArray();
+        for ( long count : statistics.histogram )
+            histogram.add( count );
+        json.add( "histogram", histogram );
+        return json;
+    }
+
+    private static String getColor( ImagePlus imp, int channel )
+    {
+        LUT[] luts = imp.getLuts();
+        if ( luts == null || channel >= luts.length )
+            return "FFFFFF";
+
+        LUT lut = luts[ channel ];
+        return String.format( "%02X%02X%02X", lut.getRed( 255 ), lut.getGreen( 255 ), lut.getBlue( 255 ) );
+    }
+
     @NotNull
     private static String getChunkSizeArg( ImagePlus imp )
     {
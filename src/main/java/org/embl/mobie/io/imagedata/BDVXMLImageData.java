@@ -1,32 +1,38 @@
 package org.embl.mobie.io.imagedata;
 
 import bdv.cache.SharedQueue;
-import ch.epfl.biop.bdv.img.OpenersToSpimData;
-import ch.epfl.biop.bdv.img.bioformats.BioFormatsHelper;
-import ch.epfl.biop.bdv.img.opener.OpenerSettings;
+import mpicbg.spim.data.SpimData;
 import mpicbg.spim.data.generic.AbstractSpimData;
+import mpicbg.spim.data.generic.sequence.BasicImgLoader;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.NumericType;
 import org.embl.mobie.io.util.IOHelper;
 import org.embl.mobie.io.util.InputStreamXmlIoSpimData;
+import org.embl.mobie.io.util.ResourceLocation;
+import org.embl.mobie.io.xml.S3ImageLoader;
 
-import java.io.File;
-import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.List;
 
 public class BDVXMLImageData< T extends NumericType< T > & NativeType< T > > extends SpimDataImageData< T >
 {
     public BDVXMLImageData( String uri, SharedQueue sharedQueue )
+    {
+        this( uri, sharedQueue, null );
+    }
+
+    public BDVXMLImageData( String uri, SharedQueue sharedQueue, String[] s3AccessAndSecretKey )
     {
         super( new SpimDataOpener()
         {
             @Override
             public AbstractSpimData< ? > open( String uri ) throws Exception
             {
-                InputStream stream = IOHelper.getInputStream( uri );
-                return new InputStreamXmlIoSpimData().open( stream, uri );
+                InputStream stream = IOHelper.getInputStream( ResourceLocation.of( uri ), s3AccessAndSecretKey );
+                SpimData spimData = new InputStreamXmlIoSpimData().open( stream, uri );
+                BasicImgLoader imgLoader = spimData.getSequenceDescription().getImgLoader();
+                if ( imgLoader instanceof S3ImageLoader )
+                    ( ( S3ImageLoader ) imgLoader ).setS3AccessAndSecretKey( s3AccessAndSecretKey );
+                return spimData;
             }
         } );
         this.uri = uri;
@@ -11,13 +11,18 @@ import org.embl.mobie.io.util.IOHelper;
 public class BioFormatsS3ImageData< T extends NumericType< T > & NativeType< T > > extends BioFormatsImageData< T >
 {
     public BioFormatsS3ImageData( String uri, SharedQueue sharedQueue )
+    {
+        this( uri, sharedQueue, null );
+    }
+
+    public BioFormatsS3ImageData( String uri, SharedQueue sharedQueue, String[] s3AccessAndSecretKey )
     {
         super( new SpimDataOpener()
         {
             @Override
             public AbstractSpimData open( String uri ) throws Exception
             {
-                ImagePlus imagePlus = IOHelper.openWithBioFormatsFromS3( uri, 0 );
+                ImagePlus imagePlus = IOHelper.openWithBioFormatsFromS3( uri, 0, s3AccessAndSecretKey );
                 return ImagePlusToSpimData.getSpimData( imagePlus );
             }
         } );
@@ -1,7 +1,9 @@
 package org.embl.mobie.io.imagedata;
 
 import bdv.cache.SharedQueue;
-import bdv.util.volatiles.VolatileViews;
+import bdv.img.cache.SimpleCacheArrayLoader;
+import bdv.img.cache.VolatileGlobalCellCache;
+import bdv.img.n5.DataTypeProperties;
 import bdv.viewer.Source;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
@@ -9,18 +11,27 @@ import com.google.gson.JsonObject;
 import mpicbg.spim.data.sequence.FinalVoxelDimensions;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.Volatile;
-import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.cache.volatiles.LoadingStrategy;
+import net.imglib2.img.basictypeaccess.DataAccess;
+import net.imglib2.img.cell.CellGrid;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.NumericType;
+import net.imglib2.util.Cast;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
 import net.imglib2.view.Views;
+import org.embl.mobie.io.util.BudgetedCellCache;
+import org.embl.mobie.io.util.HDF5ChunkCache;
 import org.embl.mobie.io.util.IOHelper;
 import org.embl.mobie.io.util.RandomAccessibleIntervalSource4D;
+import org.embl.mobie.io.xml.N5CacheArrayLoader;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.hdf5.N5HDF5Reader;
-import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.universe.metadata.canonical.CanonicalDatasetMetadata;
 
 import java.io.IOException;
@@ -28,6 +39,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.Function;
+import java.util.function.IntFunction;
 
 public class IlastikImageData< T extends NumericType< T > & NativeType< T >, V extends Volatile<T> & NumericType<V> > extends AbstractImageData< T >
 {
@@ -39,6 +52,7 @@ public class IlastikImageData< T extends NumericType< T > & NativeType< T >, V e
     private final String uri;
     private final SharedQueue sharedQueue;
     private boolean isOpen;
+    private long chunkCacheNumBytes = -1;
     private ArrayList< RandomAccessibleInterval< T > > channelRAIs;
     private ArrayList< RandomAccessibleInterval< V > > volatileChannelRAIs;
 
@@ -56,7 +70,8 @@ public class IlastikImageData< T extends NumericType< T > & NativeType< T >, V e
         Source< T > source = asSource( channelRAIs.get( datasetIndex ) );
         Source< ? extends Volatile< T > > vSource = asVolatileSource( volatileChannelRAIs.get( datasetIndex ) );
 
-        return new ValuePair<>( source, vSource );
+        // probability maps are stored at a single resolution
+        return MultiscaleImageData.createSourcePair( new ValuePair<>( source, vSource ), sharedQueue );
     }
 
     private Source< T > asSource( RandomAccessibleInterval< T > rai )
@@ -119,6 +134,16 @@ public class IlastikImageData< T extends NumericType< T > & NativeType< T >, V e
 //        );
     }
 
+    /**
+     * Sets the size of the cache of decoded HDF5 chunks, which are
+     * shared by the cells of all channels. Must be called before the data is opened.
+     * By default, the size is proposed by {@link HDF5ChunkCache#proposeNumBytes}.
+     */
+    public void setChunkCacheSize( long numBytes )
+    {
+        this.chunkCacheNumBytes = numBytes;
+    }
+
     private synchronized void open()
     {
         if ( isOpen ) return;
@@ -130,10 +155,32 @@ public class IlastikImageData< T extends NumericType< T > & NativeType< T >, V e
             if ( ! n5.datasetExists( dataset ) )
                 dataset = "data";
             List< String > axes = fetchAxesLabels( n5, dataset );
-            final CachedCellImg< T, ? > cachedCellImg = N5Utils.openVolatile( n5, dataset );
-            channelRAIs = splitIntoChannels( cachedCellImg, axes );
+            final DatasetAttributes attributes = n5.getDatasetAttributes( dataset );
+            if ( attributes.getNumDimensions() != axes.size() )
+                throw new IllegalArgumentException( "provided axes doesn't match dimensionality of image" );
+
+            final int numFetcherThreads = sharedQueue == null ? 1 : sharedQueue.getNumFetcherThreads();
+            final long numBytes = chunkCacheNumBytes > 0 ? chunkCacheNumBytes : HDF5ChunkCache.proposeNumBytes( attributes, numFetcherThreads );
+            final HDF5ChunkCache chunkCache = new HDF5ChunkCache( n5, dataset, attributes, numBytes );
+            final VolatileGlobalCellCache cellCache = sharedQueue == null
+                    ? new BudgetedCellCache( 1, 1 )
+                    : BudgetedCellCache.create( sharedQueue );
+
+            channelRAIs = new ArrayList<>();
+            volatileChannelRAIs = new ArrayList<>();
+            final int c = axes.indexOf( C );
+            final int numChannels = c == -1 ? 1 : ( int ) attributes.getDimensions()[ c ];
+            final List< String > channelAxes = new ArrayList<>( axes );
+            channelAxes.remove( C );
+            for ( int channel = 0; channel < numChannels; channel++ )
+            {
+                final Pair< ?, ? > images = createChannelImages( cellCache, chunkCache, c, channel, DataTypeProperties.of( attributes.getDataType() ) );
+                final RandomAccessibleInterval< T > rai = Cast.unchecked( images.getA() );
+                final RandomAccessibleInterval< V > volatileRai = Cast.unchecked( images.getB() );
+                channelRAIs.add( toXYZT( rai, channelAxes ) );
+                volatileChannelRAIs.add( toXYZT( volatileRai, channelAxes ) );
+            }
             addNames( dataset );
-            volatileChannelRAIs = ( ArrayList ) splitIntoChannels( getVolatileRAI( cachedCellImg ), axes );
             isOpen = true;
         }
         catch ( Exception e )
@@ -141,6 +188,33 @@ public class IlastikImageData< T extends NumericType< T > & NativeType< T >, V e
             throw new RuntimeException( e );
         }
     }
+
+    /*
+     * The cells of a channel are slices of the cached HDF5 chunks,
+     * such that the cells of different channels share the chunks.
+     * Both images share the same cells.
+     */
+    private static < T extends NativeType< T >, V extends Volatile< T > & NativeType< V >, P, A extends DataAccess >
+    Pair< RandomAccessibleInterval< T >, RandomAccessibleInterval< V > > createChannelImages(
+            VolatileGlobalCellCache cellCache,
+            HDF5ChunkCache chunkCache,
+            int channelAxis,
+            int channel,
+            DataTypeProperties< T, V, P, A > properties )
+    {
+        final DatasetAttributes attributes = chunkCache.getAttributes();
+        final CellGrid grid = new CellGrid(
+                removeAxis( attributes.getDimensions(), channelAxis ),
+                removeAxis( attributes.getBlockSize(), channelAxis ) );
+        final ChannelCacheArrayLoader< P, A > loader = new ChannelCacheArrayLoader<>( chunkCache, channelAxis, channel, properties );
+
+        final RandomAccessibleInterval< T > img = cellCache.createImg( grid, 0, channel, 0,
+                new CacheHints( LoadingStrategy.BLOCKING, 0, false ), loader, properties.type() );
+        final RandomAccessibleInterval< V > volatileImg = cellCache.createImg( grid, 0, channel, 0,
+                new CacheHints( LoadingStrategy.BUDGETED, 0, false ), loader, properties.volatileType() );
+        return new ValuePair<>( img, volatileImg );
+    }
+
     private void addNames( String dataset )
     {
         int numChannels = channelRAIs.size();
@@ -157,18 +231,6 @@ public class IlastikImageData< T extends NumericType< T > & NativeType< T >, V e
         }
     }
 
-    private RandomAccessibleInterval< ? extends Volatile< T > > getVolatileRAI( CachedCellImg< T, ? > cachedCellImg )
-    {
-        if ( sharedQueue == null )
-        {
-            return VolatileViews.wrapAsVolatile( cachedCellImg );
-        }
-        else
-        {
-            return VolatileViews.wrapAsVolatile( cachedCellImg, sharedQueue );
-        }
-    }
-
     private static List< String > fetchAxesLabels( N5HDF5Reader n5, String dataset ) throws IOException
     {
         try
@@ -193,42 +255,129 @@ public class IlastikImageData< T extends NumericType< T > & NativeType< T >, V e
         }
     }
 
-    private static < T > ArrayList< RandomAccessibleInterval< T > > splitIntoChannels(
-            final RandomAccessibleInterval< T > rai,
+    /*
+     * Brings the image of one channel into XYZT order.
+     */
+    private static < T > RandomAccessibleInterval< T > toXYZT(
+            RandomAccessibleInterval< T > rai,
             List< String > axes )
     {
-        if ( rai.numDimensions() != axes.size() )
-            throw new IllegalArgumentException( "provided axes doesn't match dimensionality of image" );
-
-        final ArrayList< RandomAccessibleInterval< T > > sourceStacks = new ArrayList<>();
-
-        /*
-         * If there is a channels dimension, slice img along that dimension.
-         */
-        final int c = axes.indexOf( C );
-        if ( c != -1 )
-        {
-            final int numSlices = ( int ) rai.dimension( c );
-            for ( int s = 0; s < numSlices; ++s )
-                sourceStacks.add( Views.hyperSlice( rai, c, s + rai.min( c ) ) );
-        } else
-            sourceStacks.add( rai );
-
         /*
          * If AxisOrder is a 2D variant (has no Z dimension), augment the
-         * sourceStacks by a Z dimension.
+         * image by a Z dimension.
          */
         final boolean addZ = !axes.contains( Z );
         if ( addZ )
-            sourceStacks.replaceAll( interval -> Views.addDimension( interval, 0, 0 ) );
+            rai = Views.addDimension( rai, 0, 0 );
 
         /*
          * If at this point the dim order is XYTZ, permute to XYZT
          */
         final boolean flipZ = !axes.contains( Z ) && axes.contains( T );
         if ( flipZ )
-            sourceStacks.replaceAll( interval -> Views.permute( interval, 2, 3 ) );
+            rai = Views.permute( rai, 2, 3 );
+
+        return rai;
+    }
+
+    private static long[] removeAxis( long[] values, int axis )
+    {
+        if ( axis == -1 ) return values;
+        final long[] removed = new long[ values.length - 1 ];
+        for ( int d = 0, i = 0; d < values.length; d++ )
+            if ( d != axis ) removed[ i++ ] = values[ d ];
+        return removed;
+    }
+
+    private static int[] removeAxis( int[] values, int axis )
+    {
+        if ( axis == -1 ) return values;
+        final int[] removed = new int[ values.length - 1 ];
+        for ( int d = 0, i = 0; d < values.length; d++ )
+            if ( d != axis ) removed[ i++ ] = values[ d ];
+        return removed;
+    }
+
+    /**
+     * Loads the cells of one channel as slices of the cached HDF5 chunks.
+     */
+    private static class ChannelCacheArrayLoader< P, A extends DataAccess > implements SimpleCacheArrayLoader< A >
+    {
+        private final HDF5ChunkCache chunkCache;
+        private final int channelAxis;
+        private final int channel;
+        private final IntFunction< P > createPrimitiveArray;
+        private final Function< P, A > createVolatileArrayAccess;
+
+        ChannelCacheArrayLoader( HDF5ChunkCache chunkCache, int channelAxis, int channel, DataTypeProperties< ?, ?, P, A > properties )
+        {
+            this.chunkCache = chunkCache;
+            this.channelAxis = channelAxis;
+            this.channel = channel;
+            this.createPrimitiveArray = properties.createPrimitiveArray();
+            this.createVolatileArrayAccess = properties.createVolatileArrayAccess();
+        }
+
+        @Override
+        public A loadArray( long[] gridPosition, int[] cellDimensions ) throws IOException
+        {
+            final int numCellElements = ( int ) Intervals.numElements( cellDimensions );
+            final long[] chunkGridPosition;
+            int channelInChunk = 0;
+            if ( channelAxis == -1 )
+            {
+                chunkGridPosition = gridPosition;
+            }
+            else
+            {
+                final int channelsPerChunk = chunkCache.getAttributes().getBlockSize()[ channelAxis ];
+                chunkGridPosition = new long[ gridPosition.length + 1 ];
+                for ( int d = 0, i = 0; d < chunkGridPosition.length; d++ )
+                    chunkGridPosition[ d ] = d == channelAxis ? channel / channelsPerChunk : gridPosition[ i++ ];
+                channelInChunk = channel % channelsPerChunk;
+            }
+
+            final DataBlock< ? > chunk = chunkCache.get( chunkGridPosition );
+            if ( chunk == null )
+                return createVolatileArrayAccess.apply( createPrimitiveArray.apply( numCellElements ) );
+
+            final int[] chunkSize = chunk.getSize();
+            final int[] sliceSize = removeAxis( chunkSize, channelAxis );
+            final int numSliceElements = ( int ) Intervals.numElements( sliceSize );
+            final P slice = createPrimitiveArray.apply( numSliceElements );
+            if ( channelAxis == -1 )
+                System.arraycopy( chunk.getData(), 0, slice, 0, numSliceElements );
+            else
+                copyChannel( chunk.getData(), chunkSize, channelAxis, channelInChunk, slice );
+
+            if ( Arrays.equals( sliceSize, cellDimensions ) )
+                return createVolatileArrayAccess.apply( slice );
 
-        return sourceStacks;
+            // the chunk is smaller than the cell
+            final P data = createPrimitiveArray.apply( numCellElements );
+            final int[] pos = new int[ sliceSize.length ];
+            final int[] size = new int[ sliceSize.length ];
+            Arrays.setAll( size, d -> Math.min( sliceSize[ d ], cellDimensions[ d ] ) );
+            N5CacheArrayLoader.ndArrayCopy( slice, sliceSize, pos, data, cellDimensions, pos, size );
+            return createVolatileArrayAccess.apply( data );
+        }
+
+        /*
+         * Copies the hyperslice at index along axis of the flattened src into dest.
+         * The elements before the axis are contiguous and copied in runs.
+         */
+        private static void copyChannel( Object src, int[] srcSize, int axis, int index, Object dest )
+        {
+            int runLength = 1;
+            for ( int d = 0; d < axis; d++ )
+                runLength *= srcSize[ d ];
+            int numRuns = 1;
+            for ( int d = axis + 1; d < srcSize.length; d++ )
+                numRuns *= srcSize[ d ];
+
+            final int srcStride = runLength * srcSize[ axis ];
+            for ( int run = 0; run < numRuns; run++ )
+                System.arraycopy( src, run * srcStride + index * runLength, dest, run * runLength, runLength );
+        }
     }
 }
@@ -4,23 +4,24 @@ import bdv.cache.SharedQueue;
 import ch.epfl.biop.bdv.img.imageplus.ImagePlusToSpimData;
 import ij.IJ;
 import ij.ImagePlus;
-import ij.plugin.ContrastEnhancer;
-import ij.process.ImageStatistics;
 import ij.process.LUT;
 import mpicbg.spim.data.generic.AbstractSpimData;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.NumericType;
+import org.embl.mobie.io.util.SampledDisplayRange;
 import org.janelia.saalfeldlab.n5.universe.metadata.RGBAColorMetadata;
 import org.janelia.saalfeldlab.n5.universe.metadata.canonical.CanonicalDatasetMetadata;
 
 import java.io.IOException;
-
-import static ij.measure.Measurements.MIN_MAX;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ImagePlusImageData< T extends NumericType< T > & NativeType< T > > extends SpimDataImageData< T >
 {
     private final ImagePlus imagePlus;
 
+    private final Map< Integer, CanonicalDatasetMetadata > metadata = new ConcurrentHashMap<>();
+
     public ImagePlusImageData( ImagePlus imagePlus, SharedQueue sharedQueue )
     {
         super( new SpimDataOpener()
@@ -41,7 +42,11 @@ public class ImagePlusImageData< T extends NumericType< T > & NativeType< T > >
     {
         if ( ! isOpen ) open( spimDataOpener, uri );
 
-        imagePlus.setC( datasetIndex + 1 );
+        return metadata.computeIfAbsent( datasetIndex, this::createMetadata );
+    }
+
+    private CanonicalDatasetMetadata createMetadata( int datasetIndex )
+    {
         LUT lut = imagePlus.getLuts()[ datasetIndex ];
 
         RGBAColorMetadata colorMetadata = new RGBAColorMetadata(
@@ -50,22 +55,26 @@ public class ImagePlusImageData< T extends NumericType< T > & NativeType< T > >
                 lut.getBlue( 255 ),
                 lut.getAlpha( 255 ) );
 
+        // sampling also works for virtual stacks, for which
+        // https://forum.image.sc/t/b-c-for-a-whole-virtual-stack-cont/57811/12
+        double[] displayRange = null;
         try
         {
-            ImageStatistics statistics = ImageStatistics.getStatistics( imagePlus.getProcessor(), MIN_MAX, null );
-            new ContrastEnhancer().stretchHistogram( imagePlus.getProcessor(), 0.35, statistics );
+            displayRange = SampledDisplayRange.estimate( imagePlus, datasetIndex );
         }
         catch ( Exception e )
         {
-            // https://forum.image.sc/t/b-c-for-a-whole-virtual-stack-cont/57811/12
-            IJ.log( "[WARNING] Could not set auto-contrast for + " + imagePlus.getTitle() + " + due to: https://forum.image.sc/t/b-c-for-a-whole-virtual-stack-cont/57811/12" );
+            IJ.log( "[WARNING] Could not set auto-contrast for " + imagePlus.getTitle() + " due to: " + e );
         }
 
+        if ( displayRange == null )
+            displayRange = new double[]{ imagePlus.getDisplayRangeMin(), imagePlus.getDisplayRangeMax() };
+
         return new CanonicalDatasetMetadata(
                 null,
                 null,
-                imagePlus.getProcessor().getMin(),
-                imagePlus.getProcessor().getMax(),
+                displayRange[ 0 ],
+                displayRange[ 1 ],
                 colorMetadata
         );
     }
@@ -0,0 +1,96 @@
+package org.embl.mobie.io.imagedata;
+
+import bdv.cache.SharedQueue;
+import bdv.viewer.Source;
+import net.imglib2.Volatile;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.util.Cast;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import org.embl.mobie.io.util.DownsampledPyramid;
+import org.embl.mobie.io.util.MultiResolutionSource;
+import org.janelia.saalfeldlab.n5.universe.metadata.canonical.CanonicalDatasetMetadata;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Adds lazily computed, cached downsampled resolution levels
+ * to the single-resolution sources of an {@link ImageData}.
+ * Sources that already have several resolution levels are passed on unchanged.
+ */
+public class MultiscaleImageData< T extends NumericType< T > & NativeType< T > > implements ImageData< T >
+{
+    private final ImageData< T > imageData;
+    private final SharedQueue sharedQueue;
+    private final Map< Integer, Pair< Source< T >, Source< ? extends Volatile< T > > > > sourcePairs = new ConcurrentHashMap<>();
+
+    public MultiscaleImageData( ImageData< T > imageData, SharedQueue sharedQueue )
+    {
+        this.imageData = imageData;
+        this.sharedQueue = sharedQueue;
+    }
+
+    @Override
+    public Pair< Source< T >, Source< ? extends Volatile< T > > > getSourcePair( int datasetIndex )
+    {
+        return sourcePairs.computeIfAbsent( datasetIndex, i -> createSourcePair( imageData.getSourcePair( i ), sharedQueue ) );
+    }
+
+    @Override
+    public int getNumDatasets()
+    {
+        return imageData.getNumDatasets();
+    }
+
+    @Override
+    public CanonicalDatasetMetadata getMetadata( int datasetIndex )
+    {
+        return imageData.getMetadata( datasetIndex );
+    }
+
+    @Override
+    public String getName( int datasetIndex )
+    {
+        return imageData.getName( datasetIndex );
+    }
+
+    @SuppressWarnings( { "rawtypes", "unchecked" } )
+    public static < T extends NumericType< T > & NativeType< T > > Pair< Source< T >, Source< ? extends Volatile< T > > > createSourcePair(
+            Pair< Source< T >, Source< ? extends Volatile< T > > > sourcePair,
+            SharedQueue sharedQueue )
+    {
+        final Source< T > source = sourcePair.getA();
+        final Source< ? extends Volatile< T > > volatileSource = sourcePair.getB();
+        if ( source.getNumMipmapLevels() > 1 )
+            return sourcePair;
+
+        final DownsampledPyramid< T > pyramid = new DownsampledPyramid<>( source, 0, sharedQueue );
+        if ( pyramid.getNumLevels() == 1 )
+            return sourcePair;
+
+        final MultiResolutionSource< T > multiResolutionSource = new MultiResolutionSource<>(
+                source,
+                source.getType(),
+                pyramid.getFactors(),
+                pyramid::getLevel );
+
+        // the downsampled levels are computed from the blocking level 0
+        // and loaded via the shared queue
+        final MultiResolutionSource.Levels< ? > volatilePyramid = ( t, level ) ->
+        {
+            if ( level == 0 )
+                return Cast.unchecked( volatileSource.getSource( t, 0 ) );
+
+            return Cast.unchecked( pyramid.getVolatileLevel( t, level ) );
+        };
+        final Source< ? extends Volatile< T > > multiResolutionVolatileSource = new MultiResolutionSource(
+                volatileSource,
+                volatileSource.getType(),
+                pyramid.getFactors(),
+                volatilePyramid );
+
+        return new ValuePair<>( multiResolutionSource, multiResolutionVolatileSource );
+    }
+}
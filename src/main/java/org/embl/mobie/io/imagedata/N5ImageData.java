@@ -7,13 +7,19 @@ import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
 import com.google.gson.reflect.TypeToken;
 import net.imglib2.Volatile;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.util.Pair;
 import net.imglib2.util.ValuePair;
+import org.embl.mobie.io.metrics.LatencyHistogram;
+import org.embl.mobie.io.metrics.Metrics;
+import org.embl.mobie.io.metrics.Tracing;
 import org.embl.mobie.io.ngff.Labels;
+import org.embl.mobie.io.util.CancellingSharedQueue;
 import org.embl.mobie.io.util.IOHelper;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5URI;
@@ -33,6 +39,8 @@ import java.util.List;
 
 public class N5ImageData< T extends NumericType< T > & NativeType< T > > extends AbstractImageData< T >
 {
+    private static final LatencyHistogram OPEN = Metrics.histogram( "n5.open" );
+
     private final String uri;
     private final SharedQueue sharedQueue;
     private final String[] s3AccessAndSecretKey;
@@ -40,20 +48,21 @@ public class N5ImageData< T extends NumericType< T > & NativeType< T > > extends
     private List< SourceAndConverter< T > > sourcesAndConverters;
     private int numTimePoints;
     private List< ConverterSetup > converterSetups;
+    private List< double[] > omeroWindows;
 
     private final BdvOptions bdvOptions = BdvOptions.options();
 
     public N5ImageData( String uri )
     {
         this.uri = uri;
-        this.sharedQueue = new SharedQueue( 1 );
+        this.sharedQueue = new CancellingSharedQueue( 1 );
         this.s3AccessAndSecretKey = null;
     }
 
     public N5ImageData( String uri, String[] s3AccessAndSecretKey )
     {
         this.uri = uri;
-        this.sharedQueue = new SharedQueue( 1 );
+        this.sharedQueue = new CancellingSharedQueue( 1 );
         this.s3AccessAndSecretKey = s3AccessAndSecretKey;
     }
 
@@ -106,6 +115,18 @@ public class N5ImageData< T extends NumericType< T > & NativeType< T > > extends
 
         IntColorMetadata colorMetadata = new IntColorMetadata( converterSetup.getColor().get() );
 
+        // prefer the contrast limits stored with the data (see OMEZarrWriter),
+        // which, unlike the converter setup's, do not depend on the data type only
+        double[] window = omeroWindows.get( datasetIndex );
+        if ( window != null )
+            return new CanonicalDatasetMetadata(
+                    uri,
+                    null,
+                    window[ 0 ],
+                    window[ 1 ],
+                    colorMetadata
+            );
+
         return new CanonicalDatasetMetadata(
                 uri,
                 null,
@@ -140,7 +161,8 @@ public class N5ImageData< T extends NumericType< T > & NativeType< T > > extends
     {
         if ( isOpen ) return;
 
-        try
+        final long start = System.nanoTime();
+        try ( Tracing.Span span = Tracing.span( "N5ImageData.open", uri ) )
         {
             N5URI n5URI = new N5URI( uri );
             String containerPath = n5URI.getContainerPath();
@@ -151,10 +173,18 @@ public class N5ImageData< T extends NumericType< T > & NativeType< T > > extends
                 n5Factory = n5Factory.s3UseCredentials( new BasicAWSCredentials( s3AccessAndSecretKey[ 0 ], s3AccessAndSecretKey[ 1 ] ) );
             }
 
-            N5Reader n5 = n5Factory.openReader( containerPath );
+            N5Reader n5;
+            try ( Tracing.Span readerSpan = Tracing.span( "n5.openReader", containerPath ) )
+            {
+                n5 = n5Factory.openReader( containerPath );
+            }
             String rootGroup = n5URI.getGroupPath() != null ? n5URI.getGroupPath() : "/";
             List< N5Metadata > metadataList = new ArrayList<>();
-            N5Metadata rootMetadata = N5MetadataUtils.parseMetadata( n5, rootGroup );
+            N5Metadata rootMetadata;
+            try ( Tracing.Span metadataSpan = Tracing.span( "n5.parseMetadata", rootGroup ) )
+            {
+                rootMetadata = N5MetadataUtils.parseMetadata( n5, rootGroup );
+            }
 
             if ( rootMetadata == null )
                 throw new RuntimeException("No image found at: " + uri);
@@ -164,7 +194,7 @@ public class N5ImageData< T extends NumericType< T > & NativeType< T > > extends
             if ( rootMetadata instanceof OmeNgffMetadata )
             {
                 // Look for OME-Zarr labels
-                try
+                try ( Tracing.Span labelsSpan = Tracing.span( "n5.readLabels", uri ) )
                 {
                     String labelsPath = IOHelper.combinePath( uri, "labels", ".zattrs" );
                     String labelsJson = IOHelper.read( labelsPath );
@@ -183,6 +213,7 @@ public class N5ImageData< T extends NumericType< T > & NativeType< T > > extends
             }
 
             converterSetups = new ArrayList<>();
+            omeroWindows = new ArrayList<>();
             sourcesAndConverters = new ArrayList<>();
 
             for ( N5Metadata metadata : metadataList )
@@ -192,17 +223,23 @@ public class N5ImageData< T extends NumericType< T > & NativeType< T > > extends
 
                 int numDatasets = sourcesAndConverters.size();
 
-                numTimePoints = Math.max( numTimePoints,
-                    N5Viewer.buildN5Sources(
-                        n5,
-                        selection,
-                        sharedQueue,
-                        converterSetups,
-                        sourcesAndConverters, // TODO: check their names
-                        bdvOptions ) );
+                String path = metadata.getPath();
+                try ( Tracing.Span sourcesSpan = Tracing.span( "n5.buildSources", path ) )
+                {
+                    numTimePoints = Math.max( numTimePoints,
+                        N5Viewer.buildN5Sources(
+                            n5,
+                            selection,
+                            sharedQueue,
+                            converterSetups,
+                            sourcesAndConverters, // TODO: check their names
+                            bdvOptions ) );
+                }
 
                 int numChannels = sourcesAndConverters.size() - numDatasets;
-                String path = metadata.getPath();
+                JsonArray omeroChannels = readOmeroChannels( n5, path );
+                for ( int channelIndex = 0; channelIndex < numChannels; channelIndex++ )
+                    omeroWindows.add( getWindow( omeroChannels, channelIndex ) );
                 String name = path.replaceAll( "[/\\\\]", "_" );
                 if ( numChannels > 1 )
                 {
@@ -224,6 +261,8 @@ public class N5ImageData< T extends NumericType< T > & NativeType< T > > extends
             if ( sourcesAndConverters.isEmpty() )
                 throw new IOException( "N5ImageData: No datasets found." );
 
+            OPEN.recordSince( start );
+
         }
         catch ( Exception e )
         {
@@ -233,4 +272,38 @@ public class N5ImageData< T extends NumericType< T > & NativeType< T > > extends
 
         isOpen = true;
     }
+
+    private static JsonArray readOmeroChannels( N5Reader n5, String group )
+    {
+        try
+        {
+            JsonObject omero = n5.getAttribute( group, "omero", JsonObject.class );
+            if ( omero == null || ! omero.has( "channels" ) )
+                return null;
+            return omero.getAsJsonArray( "channels" );
+        }
+        catch ( Exception e )
+        {
+            // no or invalid omero metadata
+            return null;
+        }
+    }
+
+    private static double[] getWindow( JsonArray omeroChannels, int channelIndex )
+    {
+        if ( omeroChannels == null || channelIndex >= omeroChannels.size() )
+            return null;
+
+        try
+        {
+            JsonObject window = omeroChannels.get( channelIndex ).getAsJsonObject().getAsJsonObject( "window" );
+            if ( window == null || ! window.has( "start" ) || ! window.has( "end" ) )
+                return null;
+            return new double[]{ window.get( "start" ).getAsDouble(), window.get( "end" ).getAsDouble() };
+        }
+        catch ( Exception e )
+        {
+            return null;
+        }
+    }
 }
@@ -17,6 +17,11 @@ import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.util.Pair;
 import net.imglib2.util.ValuePair;
+import org.embl.mobie.io.metrics.LatencyHistogram;
+import org.embl.mobie.io.metrics.Metrics;
+import org.embl.mobie.io.metrics.Tracing;
+import org.embl.mobie.io.util.BudgetedCellCache;
+import org.embl.mobie.io.util.CancellingSharedQueue;
 import org.embl.mobie.io.util.IOHelper;
 import org.janelia.saalfeldlab.n5.universe.metadata.RGBAColorMetadata;
 import org.janelia.saalfeldlab.n5.universe.metadata.canonical.CanonicalDatasetMetadata;
@@ -27,6 +32,8 @@ import java.io.IOException;
 
 public class SpimDataImageData< T extends NumericType< T > & NativeType< T > > extends AbstractImageData< T >
 {
+    private static final LatencyHistogram OPEN = Metrics.histogram( "spimdata.open" );
+
     protected String uri;
 
     protected AbstractSpimData< ? > spimData;
@@ -44,12 +51,14 @@ public class SpimDataImageData< T extends NumericType< T > & NativeType< T > > e
 
     protected void setSharedQueue( SharedQueue sharedQueue )
     {
+        sharedQueue = CancellingSharedQueue.wrap( sharedQueue );
         BasicImgLoader imgLoader = spimData.getSequenceDescription().getImgLoader();
 
         if ( imgLoader instanceof CacheControlOverride )
         {
             CacheControlOverride cco = ( CacheControlOverride ) imgLoader;
-            final VolatileGlobalCellCache volatileGlobalCellCache = new VolatileGlobalCellCache( sharedQueue );
+            // all loaders share one byte budget, see CacheBudget
+            final VolatileGlobalCellCache volatileGlobalCellCache = BudgetedCellCache.create( sharedQueue );
             cco.setCacheControl( volatileGlobalCellCache );
         }
         else if ( imgLoader instanceof ViewerImgLoader )
@@ -116,15 +125,20 @@ public class SpimDataImageData< T extends NumericType< T > & NativeType< T > > e
     {
         if ( isOpen ) return;
 
-        try
+        final long start = System.nanoTime();
+        try ( Tracing.Span span = Tracing.span( "SpimDataImageData.open", uri ) )
         {
-            spimData = opener.open( uri );
+            try ( Tracing.Span openerSpan = Tracing.span( "spimdata.open", opener.getClass().getSimpleName() ) )
+            {
+                spimData = opener.open( uri );
+            }
             int numSetups = spimData.getSequenceDescription().getViewSetupsOrdered().size();
             for ( int setupIndex = 0; setupIndex < numSetups; setupIndex++ )
             {
                 datasetNames.add( IOHelper.addChannelPostfix( "", setupIndex ) );
             }
             setSharedQueue( sharedQueue );
+            OPEN.recordSince( start );
             isOpen = true;
         }
         catch ( Exception e )
@@ -9,28 +9,57 @@ import mpicbg.spim.data.SpimData;
 import mpicbg.spim.data.generic.AbstractSpimData;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.NumericType;
+import org.embl.mobie.io.tiff.MappedTIFF;
+import org.embl.mobie.io.tiff.TIFFImgLoader;
+import org.embl.mobie.io.tiff.TIFFSeries;
 import org.embl.mobie.io.util.IOHelper;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.regex.Pattern;
 
 public class TIFFImageData< T extends NumericType< T > & NativeType< T > > extends SpimDataImageData< T >
 {
+    private static final Pattern TIFF_FILTER = Pattern.compile( ".*.tif.*" );
+
     public TIFFImageData( String uri, SharedQueue sharedQueue )
     {
         super( new SpimDataOpener()
         {
             @Override
-            public AbstractSpimData< ? > open( String uri )
+            public AbstractSpimData< ? > open( String uri ) throws IOException
             {
                 ImagePlus imagePlus;
-                if ( new File( uri ).isDirectory() )
+                if ( ! IOHelper.getType( uri ).equals( IOHelper.ResourceType.FILE ) )
+                {
+                    // read the byte ranges of the planes
+                    final TIFFSeries series = TIFFSeries.openFile( uri );
+                    if ( series != null )
+                        return TIFFImgLoader.createSpimData( series, null );
+
+                    // e.g. RGB
+                    imagePlus = IJ.openImage( uri );
+                    if ( imagePlus == null )
+                        throw new IOException( "Could not open " + uri );
+                }
+                else if ( new File( uri ).isDirectory() )
                 {
+                    // load the planes lazily, if the pixel type is supported
+                    final TIFFSeries series = TIFFSeries.open( uri, TIFF_FILTER );
+                    if ( series != null )
+                        return TIFFImgLoader.createSpimData( series, new File( uri ) );
+
                     imagePlus = FolderOpener.open(
                             uri,
                             "virtual filter=(.*.tif.*)");
                 }
                 else
                 {
+                    // memory-map uncompressed files
+                    final MappedTIFF tiff = MappedTIFF.open( uri );
+                    if ( tiff != null )
+                        return TIFFImgLoader.createSpimData( tiff, new File( uri ).getParentFile() );
+
                     imagePlus = IJ.openVirtual( uri );
                 }
 
@@ -17,7 +17,13 @@ public class TOMLImageData< T extends NumericType< T > & NativeType< T > > exten
             @Override
             public AbstractSpimData open( String uri ) throws Exception
             {
-                ImagePlus imagePlus = new TOMLOpener( uri ).openImagePlus();;
+                final TOMLOpener opener = new TOMLOpener( uri );
+                final AbstractSpimData< ? > spimData = opener.openSpimData();
+                if ( spimData != null )
+                    return spimData;
+
+                // not single channel TIFFs
+                ImagePlus imagePlus = opener.openImagePlus();
                 return ImagePlusToSpimData.getSpimData( imagePlus );
             }
         } );
@@ -0,0 +1,177 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the blocks that one source reads, e.g. of all resolution levels
+ * and timepoints of one view setup, such that a slow or failing source stands out.
+ * Each value is also added to the process-wide {@link Metrics} of the same name.
+ * <p>
+ * "n5.block.read" is the time a loader waits for a block. Where the reader allows
+ * fetching and decoding separately, "n5.block.fetch" and "n5.block.decode" split it up;
+ * otherwise both happen in one go and only "n5.block.read" is recorded.
+ */
+public class BlockMetrics
+{
+    private final Map< String, Counter > counters = new TreeMap<>();
+    private final Map< String, Timer > timers = new TreeMap<>();
+
+    private final Counter requested = counter( "n5.blocks.requested" );
+    private final Counter loaded = counter( "n5.blocks.loaded" );
+    private final Counter missing = counter( "n5.blocks.missing" );
+    private final Counter failed = counter( "n5.blocks.failed" );
+    private final Counter throttled = counter( "n5.blocks.throttled" );
+    private final Counter bytesDecoded = counter( "n5.bytes.decoded" );
+    private final Timer read = timer( "n5.block.read" );
+    private final Timer fetch = timer( "n5.block.fetch" );
+    private final Timer decode = timer( "n5.block.decode" );
+
+    public void requested()
+    {
+        requested.add( 1 );
+    }
+
+    public void loaded( long numBytes )
+    {
+        loaded.add( 1 );
+        bytesDecoded.add( numBytes );
+    }
+
+    public void missing()
+    {
+        missing.add( 1 );
+    }
+
+    /**
+     * @param isThrottled
+     *        whether the store rejected the request because of too many requests
+     */
+    public void failed( boolean isThrottled )
+    {
+        failed.add( 1 );
+        if ( isThrottled )
+            throttled.add( 1 );
+    }
+
+    public void recordRead( long nanos )
+    {
+        read.record( nanos );
+    }
+
+    public void recordFetch( long nanos )
+    {
+        fetch.record( nanos );
+    }
+
+    public void recordDecode( long nanos )
+    {
+        decode.record( nanos );
+    }
+
+    /**
+     * @return the counts of this source, sorted by name
+     */
+    public Map< String, Long > getCounters()
+    {
+        final Map< String, Long > values = new TreeMap<>();
+        counters.forEach( ( name, counter ) -> values.put( name, counter.local.sum() ) );
+        return values;
+    }
+
+    /**
+     * @return the histograms of this source, sorted by name
+     */
+    public Map< String, LatencyHistogram > getHistograms()
+    {
+        final Map< String, LatencyHistogram > histograms = new TreeMap<>();
+        timers.forEach( ( name, timer ) -> histograms.put( name, timer.local ) );
+        return histograms;
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        getCounters().forEach( ( name, value ) -> builder.append( name ).append( ": " ).append( value ).append( "\n" ) );
+        getHistograms().forEach( ( name, histogram ) -> builder.append( name ).append( ": " ).append( histogram ).append( "\n" ) );
+        return builder.toString();
+    }
+
+    private Counter counter( String name )
+    {
+        final Counter counter = new Counter( Metrics.counter( name ) );
+        counters.put( name, counter );
+        return counter;
+    }
+
+    private Timer timer( String name )
+    {
+        final Timer timer = new Timer( Metrics.histogram( name ) );
+        timers.put( name, timer );
+        return timer;
+    }
+
+    private static class Counter
+    {
+        private final LongAdder local = new LongAdder();
+        private final LongAdder global;
+
+        Counter( LongAdder global )
+        {
+            this.global = global;
+        }
+
+        void add( long value )
+        {
+            local.add( value );
+            global.add( value );
+        }
+    }
+
+    private static class Timer
+    {
+        private final LatencyHistogram local = new LatencyHistogram();
+        private final LatencyHistogram global;
+
+        Timer( LatencyHistogram global )
+        {
+            this.global = global;
+        }
+
+        void record( long nanos )
+        {
+            local.record( nanos );
+            global.record( nanos );
+        }
+    }
+}
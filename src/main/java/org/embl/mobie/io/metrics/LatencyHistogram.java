@@ -0,0 +1,125 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds, with one bucket per power of two.
+ * <p>
+ * Quantiles are thus accurate to within a factor of two, which suffices to tell
+ * a 1 ms cache hit from a 100 ms network request.
+ */
+public class LatencyHistogram
+{
+    private static final int NUM_BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[ NUM_BUCKETS ];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator( Math::max, 0 );
+
+    LatencyHistogram()
+    {
+        for ( int i = 0; i < NUM_BUCKETS; i++ )
+            buckets[ i ] = new LongAdder();
+    }
+
+    /**
+     * Records the time since {@code startNanos}, which was obtained from {@link System#nanoTime()}.
+     */
+    public void recordSince( long startNanos )
+    {
+        record( System.nanoTime() - startNanos );
+    }
+
+    public void record( long nanos )
+    {
+        final long value = Math.max( 0, nanos );
+        // bucket i holds the values in [2^i, 2^(i+1))
+        buckets[ value == 0 ? 0 : NUM_BUCKETS - 1 - Long.numberOfLeadingZeros( value ) ].increment();
+        count.increment();
+        sum.add( value );
+        max.accumulate( value );
+    }
+
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    public double getMeanMillis()
+    {
+        final long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / ( n * 1e6 );
+    }
+
+    public double getMaxMillis()
+    {
+        return max.get() / 1e6;
+    }
+
+    /**
+     * @param quantile e.g. 0.99
+     * @return the upper bound of the bucket that contains the quantile, in milliseconds
+     */
+    public double getQuantileMillis( double quantile )
+    {
+        final long n = count.sum();
+        if ( n == 0 )
+            return 0;
+
+        final long rank = ( long ) Math.ceil( quantile * n );
+        long cumulative = 0;
+        for ( int i = 0; i < NUM_BUCKETS; i++ )
+        {
+            cumulative += buckets[ i ].sum();
+            if ( cumulative >= rank )
+                return Math.min( Math.scalb( 1.0, i + 1 ) / 1e6, getMaxMillis() );
+        }
+        return getMaxMillis();
+    }
+
+    void reset()
+    {
+        for ( LongAdder bucket : buckets )
+            bucket.reset();
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format( "n=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms",
+                getCount(), getMeanMillis(), getQuantileMillis( 0.5 ), getQuantileMillis( 0.99 ), getMaxMillis() );
+    }
+}
@@ -0,0 +1,218 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide registry of I/O counters and latency histograms.
+ * <p>
+ * Instrumented classes look up their metrics once and keep them in static fields,
+ * so that recording costs no more than incrementing a {@link LongAdder}.
+ * The metrics can be polled with {@link #getCounters()}, {@link #getHistograms()}
+ * and {@link #toString()}, or published to JMX with {@link #registerMBean()},
+ * where they show up as attributes of {@value #OBJECT_NAME}.
+ * <p>
+ * Names are dot-separated, starting with the code path, e.g.
+ * "n5.blocks.loaded" or "io.time-to-first-byte".
+ */
+public class Metrics
+{
+    public static final String OBJECT_NAME = "org.embl.mobie.io:type=Metrics";
+
+    private static final Metrics INSTANCE = new Metrics();
+
+    private final Map< String, LongAdder > counters = new ConcurrentHashMap<>();
+    private final Map< String, LatencyHistogram > histograms = new ConcurrentHashMap<>();
+    private boolean isRegistered;
+
+    public static Metrics get()
+    {
+        return INSTANCE;
+    }
+
+    public static LongAdder counter( String name )
+    {
+        return INSTANCE.counters.computeIfAbsent( name, n -> new LongAdder() );
+    }
+
+    public static LatencyHistogram histogram( String name )
+    {
+        return INSTANCE.histograms.computeIfAbsent( name, n -> new LatencyHistogram() );
+    }
+
+    /**
+     * @return the current counts, sorted by name
+     */
+    public Map< String, Long > getCounters()
+    {
+        final Map< String, Long > values = new TreeMap<>();
+        counters.forEach( ( name, counter ) -> values.put( name, counter.sum() ) );
+        return values;
+    }
+
+    public Map< String, LatencyHistogram > getHistograms()
+    {
+        return new TreeMap<>( histograms );
+    }
+
+    /**
+     * Sets all counters and histograms to zero, e.g. before a measurement.
+     */
+    public void reset()
+    {
+        counters.values().forEach( LongAdder::reset );
+        histograms.values().forEach( LatencyHistogram::reset );
+    }
+
+    /**
+     * Publishes the metrics to the platform MBean server; subsequent calls do nothing.
+     */
+    public synchronized void registerMBean()
+    {
+        if ( isRegistered ) return;
+
+        try
+        {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean( new MetricsMBean(), new ObjectName( OBJECT_NAME ) );
+            isRegistered = true;
+        }
+        catch ( Exception e )
+        {
+            throw new RuntimeException( "Could not register " + OBJECT_NAME, e );
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        getCounters().forEach( ( name, value ) -> builder.append( name ).append( ": " ).append( value ).append( "\n" ) );
+        getHistograms().forEach( ( name, histogram ) -> builder.append( name ).append( ": " ).append( histogram ).append( "\n" ) );
+        return builder.toString();
+    }
+
+    /*
+     * The attributes are read-only: a Long per counter and, per histogram,
+     * its count and the mean, median, 99th percentile and maximum in milliseconds.
+     */
+    private class MetricsMBean implements DynamicMBean
+    {
+        @Override
+        public Object getAttribute( String attribute )
+        {
+            final LongAdder counter = counters.get( attribute );
+            if ( counter != null )
+                return counter.sum();
+
+            final int dot = attribute.lastIndexOf( '.' );
+            final LatencyHistogram histogram = dot == -1 ? null : histograms.get( attribute.substring( 0, dot ) );
+            if ( histogram == null )
+                return null;
+
+            switch ( attribute.substring( dot + 1 ) )
+            {
+                case "count": return ( double ) histogram.getCount();
+                case "meanMillis": return histogram.getMeanMillis();
+                case "p50Millis": return histogram.getQuantileMillis( 0.5 );
+                case "p99Millis": return histogram.getQuantileMillis( 0.99 );
+                case "maxMillis": return histogram.getMaxMillis();
+                default: return null;
+            }
+        }
+
+        @Override
+        public void setAttribute( Attribute attribute )
+        {
+            throw new UnsupportedOperationException( "Metrics are read-only" );
+        }
+
+        @Override
+        public AttributeList getAttributes( String[] attributes )
+        {
+            final AttributeList list = new AttributeList();
+            for ( String attribute : attributes )
+                list.add( new Attribute( attribute, getAttribute( attribute ) ) );
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes( AttributeList attributes )
+        {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke( String actionName, Object[] params, String[] signature )
+        {
+            if ( actionName.equals( "reset" ) )
+            {
+                reset();
+                return null;
+            }
+            throw new UnsupportedOperationException( actionName );
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo()
+        {
+            final List< MBeanAttributeInfo > attributes = new ArrayList<>();
+            for ( String name : getCounters().keySet() )
+                attributes.add( new MBeanAttributeInfo( name, "java.lang.Long", name, true, false, false ) );
+            for ( String name : getHistograms().keySet() )
+                for ( String statistic : new String[]{ "count", "meanMillis", "p50Millis", "p99Millis", "maxMillis" } )
+                    attributes.add( new MBeanAttributeInfo( name + "." + statistic, "java.lang.Double", name, true, false, false ) );
+
+            return new MBeanInfo(
+                    Metrics.class.getName(),
+                    "I/O metrics of mobie-io",
+                    attributes.toArray( new MBeanAttributeInfo[ 0 ] ),
+                    null,
+                    new MBeanOperationInfo[]{ new MBeanOperationInfo( "reset", "Sets all metrics to zero",
+                            new MBeanParameterInfo[ 0 ], "void", MBeanOperationInfo.ACTION ) },
+                    null );
+        }
+    }
+}
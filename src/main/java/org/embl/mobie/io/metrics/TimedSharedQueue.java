@@ -0,0 +1,67 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.metrics;
+
+import bdv.cache.SharedQueue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link SharedQueue} that records in the histogram "queue.wait" how long
+ * each task waited before a fetcher thread started it, and counts the tasks in
+ * "queue.tasks". A long wait with fast block loads points to too few fetcher threads.
+ */
+public class TimedSharedQueue extends SharedQueue
+{
+    private static final LatencyHistogram WAIT = Metrics.histogram( "queue.wait" );
+    private static final LongAdder TASKS = Metrics.counter( "queue.tasks" );
+
+    public TimedSharedQueue( int numFetcherThreads )
+    {
+        super( numFetcherThreads );
+    }
+
+    public TimedSharedQueue( int numFetcherThreads, int numPriorities )
+    {
+        super( numFetcherThreads, numPriorities );
+    }
+
+    @Override
+    public void put( Callable< ? > task, int priority, boolean enqueueToFront )
+    {
+        TASKS.increment();
+        final long enqueued = System.nanoTime();
+        super.put( () ->
+        {
+            WAIT.recordSince( enqueued );
+            return task.call();
+        }, priority, enqueueToFront );
+    }
+}
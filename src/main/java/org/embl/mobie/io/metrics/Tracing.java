@@ -0,0 +1,244 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.metrics;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Optional tracing of the steps of opening and reading an image, e.g. the metadata
+ * reads, client builds and block fetches of an OME-Zarr, to find round trips
+ * that are done one after the other but could be done in parallel.
+ * <p>
+ * A span is opened with {@link #span(String, String)} in a try-with-resources block.
+ * Spans opened while another span is open on the same thread become its children.
+ * If tracing is disabled, which is the default, spans cost nothing.
+ * <p>
+ * The recorded spans can be written in the Chrome trace event format, which can be
+ * viewed in chrome://tracing or https://ui.perfetto.dev.
+ * Tracing is enabled with {@link #setEnabled(boolean)} or, to write the trace
+ * when the JVM exits, with the system property {@code mobie.io.trace=<trace.json>}.
+ */
+public class Tracing
+{
+    private static final int MAX_NUM_SPANS = 1_000_000;
+
+    private static final Span NO_SPAN = new Span( null, null, 0, null );
+
+    private static final long START_NANOS = System.nanoTime();
+    private static final AtomicLong nextId = new AtomicLong( 1 );
+    private static final ThreadLocal< Span > current = new ThreadLocal<>();
+    private static final ConcurrentLinkedQueue< Span > spans = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger numSpans = new AtomicInteger();
+    private static final AtomicInteger numDropped = new AtomicInteger();
+
+    private static volatile boolean enabled;
+
+    static
+    {
+        final String path = System.getProperty( "mobie.io.trace" );
+        if ( path != null )
+        {
+            enabled = true;
+            Runtime.getRuntime().addShutdownHook( new Thread( () ->
+            {
+                try
+                {
+                    writeChromeTrace( new File( path ) );
+                }
+                catch ( IOException e )
+                {
+                    System.err.println( "Could not write trace to " + path + ": " + e.getMessage() );
+                }
+            } ) );
+        }
+    }
+
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    public static void setEnabled( boolean enabled )
+    {
+        Tracing.enabled = enabled;
+    }
+
+    /**
+     * @param name
+     *        the step, e.g. "n5.readBlock"
+     * @param detail
+     *        e.g. the URI or the block position, may be null
+     */
+    public static Span span( String name, String detail )
+    {
+        if ( ! enabled )
+            return NO_SPAN;
+
+        final Span span = new Span( name, detail, nextId.getAndIncrement(), current.get() );
+        current.set( span );
+        return span;
+    }
+
+    /**
+     * @return the finished spans, in the order in which they finished
+     */
+    public static List< Span > getSpans()
+    {
+        return new ArrayList<>( spans );
+    }
+
+    public static void clear()
+    {
+        spans.clear();
+        numSpans.set( 0 );
+        numDropped.set( 0 );
+    }
+
+    /**
+     * Writes the finished spans as "complete" events of the Chrome trace event format.
+     */
+    public static void writeChromeTrace( File file ) throws IOException
+    {
+        final JsonArray events = new JsonArray();
+        final Map< Long, String > threadNames = new HashMap<>();
+        for ( Span span : spans )
+        {
+            threadNames.put( span.threadId, span.threadName );
+
+            final JsonObject args = new JsonObject();
+            args.addProperty( "id", span.id );
+            if ( span.parent != null )
+                args.addProperty( "parent", span.parent.id );
+            if ( span.detail != null )
+                args.addProperty( "detail", span.detail );
+
+            final JsonObject event = new JsonObject();
+            event.addProperty( "name", span.name );
+            event.addProperty( "ph", "X" );
+            event.addProperty( "pid", 1 );
+            event.addProperty( "tid", span.threadId );
+            event.addProperty( "ts", ( span.startNanos - START_NANOS ) / 1000.0 );
+            event.addProperty( "dur", ( span.endNanos - span.startNanos ) / 1000.0 );
+            event.add( "args", args );
+            events.add( event );
+        }
+
+        threadNames.forEach( ( threadId, threadName ) ->
+        {
+            final JsonObject args = new JsonObject();
+            args.addProperty( "name", threadName );
+            final JsonObject event = new JsonObject();
+            event.addProperty( "name", "thread_name" );
+            event.addProperty( "ph", "M" );
+            event.addProperty( "pid", 1 );
+            event.addProperty( "tid", threadId );
+            event.add( "args", args );
+            events.add( event );
+        } );
+
+        final JsonObject trace = new JsonObject();
+        trace.add( "traceEvents", events );
+        trace.addProperty( "displayTimeUnit", "ms" );
+        if ( numDropped.get() > 0 )
+            trace.addProperty( "droppedSpans", numDropped.get() );
+
+        final Gson gson = new GsonBuilder().create();
+        try ( Writer writer = Files.newBufferedWriter( file.toPath(), StandardCharsets.UTF_8 ) )
+        {
+            gson.toJson( trace, writer );
+        }
+    }
+
+    private static void finished( Span span )
+    {
+        if ( numSpans.incrementAndGet() > MAX_NUM_SPANS )
+        {
+            numSpans.decrementAndGet();
+            numDropped.incrementAndGet();
+            return;
+        }
+        spans.add( span );
+    }
+
+    public static class Span implements AutoCloseable
+    {
+        public final String name;
+        public final String detail;
+        public final long id;
+        public final Span parent;
+        public final long threadId;
+        public final String threadName;
+        public final long startNanos;
+        private long endNanos;
+
+        private Span( String name, String detail, long id, Span parent )
+        {
+            this.name = name;
+            this.detail = detail;
+            this.id = id;
+            this.parent = parent;
+            final Thread thread = Thread.currentThread();
+            this.threadId = thread.getId();
+            this.threadName = thread.getName();
+            this.startNanos = System.nanoTime();
+        }
+
+        public long getDurationNanos()
+        {
+            return endNanos - startNanos;
+        }
+
+        @Override
+        public void close()
+        {
+            if ( this == NO_SPAN )
+                return;
+
+            endNanos = System.nanoTime();
+            current.set( parent );
+            finished( this );
+        }
+    }
+}
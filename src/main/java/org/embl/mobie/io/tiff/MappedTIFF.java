@@ -0,0 +1,323 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.tiff;
+
+import bdv.img.cache.SimpleCacheArrayLoader;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.img.basictypeaccess.DataAccess;
+import net.imglib2.img.basictypeaccess.nio.ByteBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.FloatBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.ShortBufferAccess;
+import org.janelia.saalfeldlab.n5.DataType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A single, uncompressed TIFF file, whose cells are views into
+ * a memory mapping of the file.
+ * <p>
+ * The IFDs are parsed once when opening. Cells are bands of rows of one plane,
+ * which are contiguous in the file, such that a cell is served without
+ * copying or decoding. Files larger than 2 GB are mapped in overlapping
+ * segments, such that every plane lies within one segment.
+ */
+public class MappedTIFF implements TIFFImage
+{
+    /**
+     * Target number of elements of a cell.
+     */
+    private static final int CELL_NUM_ELEMENTS = 64 * 64 * 64;
+
+    private static final long SEGMENT_STRIDE = 1L << 30;
+
+    private final File file;
+    private final long[] planeOffsets;
+    private final int width;
+    private final int height;
+    private final int numChannels;
+    private final int numSlices;
+    private final int numTimepoints;
+    private final DataType dataType;
+    private final int bytesPerPixel;
+    private final ByteOrder byteOrder;
+    private final VoxelDimensions voxelDimensions;
+    private final int rowsPerCell;
+    private final long segmentSize;
+    private final AtomicReferenceArray< MappedByteBuffer > segments;
+
+    private MappedTIFF( File file, FileInfo info, long[] planeOffsets, int[] czt ) throws IOException
+    {
+        this.file = file;
+        this.planeOffsets = planeOffsets;
+        this.width = info.width;
+        this.height = info.height;
+        this.numChannels = czt[ 0 ];
+        this.numSlices = czt[ 1 ];
+        this.numTimepoints = czt[ 2 ];
+        this.dataType = TIFFSeries.getDataType( info );
+        this.bytesPerPixel = info.getBytesPerPixel();
+        this.byteOrder = info.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        this.voxelDimensions = new FinalVoxelDimensions(
+                info.unit == null ? "pixel" : info.unit,
+                info.pixelWidth, info.pixelHeight, getSpacing( info ) );
+        this.rowsPerCell = Math.max( 1, Math.min( height, CELL_NUM_ELEMENTS / width ) );
+
+        final long planeBytes = ( long ) width * height * bytesPerPixel;
+        final long fileSize = file.length();
+        this.segmentSize = SEGMENT_STRIDE + planeBytes;
+        this.segments = new AtomicReferenceArray<>( ( int ) ( ( fileSize + SEGMENT_STRIDE - 1 ) / SEGMENT_STRIDE ) );
+    }
+
+    /**
+     * Parses the IFDs of the file.
+     *
+     * @return the TIFF, or null if it cannot be memory-mapped,
+     *         e.g. because it is compressed or not single channel 8, 16 or 32-bit float
+     */
+    public static MappedTIFF open( String path ) throws IOException
+    {
+        final File file = new File( path );
+        final FileInfo[] header = new TiffDecoder( file.getParent() + File.separator, file.getName() ).getTiffInfo();
+        if ( header == null || header.length == 0 )
+            return null;
+
+        final FileInfo first = header[ 0 ];
+        if ( ! isMappable( first ) )
+            return null;
+
+        final long planeBytes = ( long ) first.width * first.height * first.getBytesPerPixel();
+        if ( planeBytes > Integer.MAX_VALUE - SEGMENT_STRIDE )
+            return null;
+
+        final List< Long > offsets = new ArrayList<>();
+        for ( FileInfo info : header )
+        {
+            if ( ! isMappable( info )
+                    || info.width != first.width
+                    || info.height != first.height
+                    || info.fileType != first.fileType
+                    || info.intelByteOrder != first.intelByteOrder )
+                return null;
+
+            for ( int i = 0; i < Math.max( 1, info.nImages ); i++ )
+                offsets.add( info.getOffset() + i * ( planeBytes + info.gapBetweenImages ) );
+        }
+
+        final long[] planeOffsets = offsets.stream().mapToLong( Long::longValue ).toArray();
+        for ( long offset : planeOffsets )
+            if ( offset + planeBytes > file.length() )
+                return null;
+
+        return new MappedTIFF( file, first, planeOffsets, getCZT( first, planeOffsets.length ) );
+    }
+
+    private static boolean isMappable( FileInfo info )
+    {
+        if ( info.compression > FileInfo.COMPRESSION_NONE || info.whiteIsZero )
+            return false;
+
+        switch ( info.fileType )
+        {
+            case FileInfo.GRAY8:
+            case FileInfo.COLOR8:
+            case FileInfo.GRAY16_UNSIGNED:
+            case FileInfo.GRAY32_FLOAT:
+                break;
+            default:
+                return false;
+        }
+
+        // the strips must be contiguous
+        if ( info.stripOffsets != null && info.stripLengths != null )
+            for ( int i = 1; i < info.stripOffsets.length; i++ )
+                if ( ( info.stripOffsets[ i ] & 0xffffffffL ) != ( info.stripOffsets[ i - 1 ] & 0xffffffffL ) + ( info.stripLengths[ i - 1 ] & 0xffffffffL ) )
+                    return false;
+
+        return true;
+    }
+
+    /*
+     * ImageJ hyperstacks store the channels, slices and frames in the
+     * image description; planes are ordered with the channel varying fastest.
+     */
+    private static int[] getCZT( FileInfo info, int numPlanes )
+    {
+        final int c = getDescriptionValue( info, "channels", 1 );
+        final int z = getDescriptionValue( info, "slices", 1 );
+        final int t = getDescriptionValue( info, "frames", 1 );
+        if ( c * z * t == numPlanes )
+            return new int[] { c, z, t };
+        else
+            return new int[] { 1, numPlanes, 1 };
+    }
+
+    private static double getSpacing( FileInfo info )
+    {
+        if ( info.description != null )
+        {
+            final Matcher matcher = Pattern.compile( "spacing=([0-9.eE+-]+)" ).matcher( info.description );
+            if ( matcher.find() )
+                return Double.parseDouble( matcher.group( 1 ) );
+        }
+        return info.pixelDepth;
+    }
+
+    private static int getDescriptionValue( FileInfo info, String key, int defaultValue )
+    {
+        if ( info.description == null )
+            return defaultValue;
+
+        final Matcher matcher = Pattern.compile( key + "=([0-9]+)" ).matcher( info.description );
+        return matcher.find() ? Integer.parseInt( matcher.group( 1 ) ) : defaultValue;
+    }
+
+    @Override
+    public String getName()
+    {
+        return file.getName();
+    }
+
+    @Override
+    public int getWidth()
+    {
+        return width;
+    }
+
+    @Override
+    public int getHeight()
+    {
+        return height;
+    }
+
+    @Override
+    public int getNumSlices()
+    {
+        return numSlices;
+    }
+
+    @Override
+    public int getNumChannels()
+    {
+        return numChannels;
+    }
+
+    @Override
+    public int getNumTimepoints()
+    {
+        return numTimepoints;
+    }
+
+    @Override
+    public DataType getDataType()
+    {
+        return dataType;
+    }
+
+    @Override
+    public VoxelDimensions getVoxelDimensions()
+    {
+        return voxelDimensions;
+    }
+
+    @Override
+    public int[] getCellDimensions()
+    {
+        return new int[] { width, rowsPerCell, 1 };
+    }
+
+    @Override
+    public SimpleCacheArrayLoader< ? > createCellLoader( int channel, int timepoint )
+    {
+        return ( gridPosition, cellDimensions ) ->
+        {
+            final int plane = channel + numChannels * ( ( int ) gridPosition[ 2 ] + numSlices * timepoint );
+            final long offset = planeOffsets[ plane ] + gridPosition[ 1 ] * rowsPerCell * width * bytesPerPixel;
+            return createAccess( getBuffer( offset, cellDimensions[ 0 ] * cellDimensions[ 1 ] * bytesPerPixel ) );
+        };
+    }
+
+    /**
+     * @return a view into the mapping of the file
+     */
+    public ByteBuffer getBuffer( long offset, int length ) throws IOException
+    {
+        final int segmentIndex = ( int ) ( offset / SEGMENT_STRIDE );
+        final ByteBuffer buffer = getSegment( segmentIndex ).duplicate();
+        final int position = ( int ) ( offset - segmentIndex * SEGMENT_STRIDE );
+        buffer.position( position );
+        buffer.limit( position + length );
+        return buffer.slice().order( byteOrder );
+    }
+
+    private MappedByteBuffer getSegment( int index ) throws IOException
+    {
+        MappedByteBuffer segment = segments.get( index );
+        if ( segment == null )
+        {
+            try ( RandomAccessFile raf = new RandomAccessFile( file, "r" );
+                  FileChannel channel = raf.getChannel() )
+            {
+                final long start = index * SEGMENT_STRIDE;
+                segment = channel.map( FileChannel.MapMode.READ_ONLY, start, Math.min( segmentSize, channel.size() - start ) );
+            }
+            if ( ! segments.compareAndSet( index, null, segment ) )
+                segment = segments.get( index );
+        }
+        return segment;
+    }
+
+    private DataAccess createAccess( ByteBuffer buffer )
+    {
+        switch ( dataType )
+        {
+            case UINT8:
+                return new ByteBufferAccess( buffer, true );
+            case UINT16:
+                return new ShortBufferAccess( buffer, true );
+            case FLOAT32:
+                return new FloatBufferAccess( buffer, true );
+            default:
+                throw new UnsupportedOperationException( "Unsupported data type: " + dataType );
+        }
+    }
+}
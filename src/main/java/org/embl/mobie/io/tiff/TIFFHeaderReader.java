@@ -0,0 +1,250 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.tiff;
+
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import org.embl.mobie.io.util.IOHelper;
+import org.embl.mobie.io.util.RangeReadCoalescer;
+import org.embl.mobie.io.util.ResourceLocation;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads the IFD chain of a remote TIFF file with range reads, instead of streaming
+ * the file up to its last IFD, which for files with one IFD per page means
+ * downloading almost all pixels.
+ * <p>
+ * Each IFD, together with the values that it points to, is copied into a TIFF
+ * of its own and parsed by ImageJ's {@link TiffDecoder}, such that the
+ * {@link FileInfo}s are the same as for local files. The strip offsets in
+ * these FileInfos are those of the remote file.
+ */
+class TIFFHeaderReader
+{
+    /**
+     * Bytes that are read at once around an IFD; the IFDs of many writers are
+     * adjacent, or followed by their values, and are thus read with one request.
+     */
+    private static final int WINDOW_LENGTH = 16 * 1024;
+
+    private static final int MAX_NUM_IFDS = 1_000_000;
+
+    // bytes per value of the TIFF field types, by type id
+    private static final int[] TYPE_SIZES = { 0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8, 4 };
+
+    private final ResourceLocation location;
+    private final String name;
+    private final RangeReadCoalescer coalescer;
+
+    private ByteBuffer window;
+    private long windowOffset;
+
+    TIFFHeaderReader( ResourceLocation location, String name, RangeReadCoalescer coalescer )
+    {
+        this.location = location;
+        this.name = name;
+        this.coalescer = coalescer;
+    }
+
+    FileInfo[] read() throws IOException
+    {
+        ByteBuffer header = read( 0, 8 );
+        if ( header.remaining() < 8 )
+            throw new IOException( "Not a TIFF file: " + location.getURI() );
+
+        final ByteOrder order;
+        if ( header.get( 0 ) == 'I' && header.get( 1 ) == 'I' )
+            order = ByteOrder.LITTLE_ENDIAN;
+        else if ( header.get( 0 ) == 'M' && header.get( 1 ) == 'M' )
+            order = ByteOrder.BIG_ENDIAN;
+        else
+            throw new IOException( "Not a TIFF file: " + location.getURI() );
+        header.order( order );
+        if ( header.getShort( 2 ) != 42 )
+            throw new IOException( "Not a classic TIFF file (BigTIFF is not supported): " + location.getURI() );
+
+        final List< FileInfo > infos = new ArrayList<>();
+        final Set< Long > visited = new HashSet<>();
+        long ifdOffset = header.getInt( 4 ) & 0xffffffffL;
+        while ( ifdOffset > 0 && visited.add( ifdOffset ) && visited.size() <= MAX_NUM_IFDS )
+        {
+            final ByteBuffer count = read( ifdOffset, 2 ).order( order );
+            if ( count.remaining() < 2 )
+                break;
+            final int numEntries = count.getShort( 0 ) & 0xffff;
+            final ByteBuffer ifd = read( ifdOffset, 2 + 12 * numEntries + 4 ).order( order );
+            if ( ifd.remaining() < 2 + 12 * numEntries + 4 )
+                throw new IOException( "Truncated IFD at " + ifdOffset + " in " + location.getURI() );
+
+            final FileInfo info = decode( ifd, numEntries, order );
+            if ( info == null )
+                break;
+            infos.add( info );
+
+            // ImageJ and NIH Image stacks describe all planes by the first IFD
+            if ( info.nImages > 1 )
+                break;
+
+            ifdOffset = ifd.getInt( 2 + 12 * numEntries ) & 0xffffffffL;
+        }
+
+        return infos.toArray( new FileInfo[ 0 ] );
+    }
+
+    /*
+     * Copies the IFD into a TIFF of its own, appending the values that do not fit
+     * into their entries and pointing the entries to the copies.
+     */
+    private FileInfo decode( ByteBuffer ifd, int numEntries, ByteOrder order ) throws IOException
+    {
+        final int ifdLength = 2 + 12 * numEntries + 4;
+        final long[] valueOffsets = new long[ numEntries ];
+        final int[] valueLengths = new int[ numEntries ];
+        int numValueBytes = 0;
+        for ( int i = 0; i < numEntries; i++ )
+        {
+            final int entry = 2 + 12 * i;
+            final int type = ifd.getShort( entry + 2 ) & 0xffff;
+            final long count = ifd.getInt( entry + 4 ) & 0xffffffffL;
+            final long length = type < TYPE_SIZES.length ? count * TYPE_SIZES[ type ] : 0;
+            if ( length <= 4 )
+                continue;
+            if ( length > Integer.MAX_VALUE - 8 )
+                throw new IOException( "Too large TIFF tag value in " + location.getURI() );
+
+            valueOffsets[ i ] = ifd.getInt( entry + 8 ) & 0xffffffffL;
+            valueLengths[ i ] = ( int ) length;
+            // values start on a word boundary
+            numValueBytes += ( int ) length + ( int ) ( length & 1 );
+        }
+
+        final List< byte[] > values = readValues( valueOffsets, valueLengths );
+
+        final ByteBuffer tiff = ByteBuffer.allocate( 8 + ifdLength + numValueBytes ).order( order );
+        tiff.put( ( byte ) ( order == ByteOrder.LITTLE_ENDIAN ? 'I' : 'M' ) );
+        tiff.put( tiff.get( 0 ) );
+        tiff.putShort( ( short ) 42 );
+        tiff.putInt( 8 );
+        final ByteBuffer source = ifd.duplicate();
+        source.limit( source.position() + ifdLength - 4 );
+        tiff.put( source );
+        tiff.putInt( 0 );
+
+        for ( int i = 0; i < numEntries; i++ )
+        {
+            final byte[] value = values.get( i );
+            if ( value == null )
+                continue;
+            tiff.putInt( 8 + 2 + 12 * i + 8, tiff.position() );
+            tiff.put( value );
+            if ( ( value.length & 1 ) == 1 )
+                tiff.put( ( byte ) 0 );
+        }
+
+        final FileInfo[] infos = new TiffDecoder( new ByteArrayInputStream( tiff.array() ), name ).getTiffInfo();
+        return infos == null || infos.length == 0 ? null : infos[ 0 ];
+    }
+
+    /*
+     * @return the bytes of each value, or null for the values that are stored in their entry;
+     *         values outside of the current window are read together, through the coalescer
+     */
+    private List< byte[] > readValues( long[] offsets, int[] lengths ) throws IOException
+    {
+        final List< byte[] > values = new ArrayList<>();
+        final List< Integer > remote = new ArrayList<>();
+        for ( int i = 0; i < offsets.length; i++ )
+        {
+            if ( lengths[ i ] == 0 )
+                values.add( null );
+            else if ( isInWindow( offsets[ i ], lengths[ i ] ) )
+                values.add( copyFromWindow( offsets[ i ], lengths[ i ] ) );
+            else
+            {
+                values.add( null );
+                remote.add( i );
+            }
+        }
+
+        if ( ! remote.isEmpty() )
+        {
+            final long[] remoteOffsets = remote.stream().mapToLong( i -> offsets[ i ] ).toArray();
+            final int[] remoteLengths = remote.stream().mapToInt( i -> lengths[ i ] ).toArray();
+            final List< byte[] > bytes = coalescer.readAll( location, remoteOffsets, remoteLengths );
+            for ( int r = 0; r < remote.size(); r++ )
+            {
+                if ( bytes.get( r ).length < remoteLengths[ r ] )
+                    throw new IOException( "Truncated TIFF tag value at " + remoteOffsets[ r ] + " in " + location.getURI() );
+                values.set( remote.get( r ), bytes.get( r ) );
+            }
+        }
+
+        return values;
+    }
+
+    /*
+     * @return the bytes at the offset, fewer at the end of the file;
+     *         reads a new window if they are not in the current one
+     */
+    private ByteBuffer read( long offset, int length ) throws IOException
+    {
+        if ( ! isInWindow( offset, length ) )
+        {
+            window = ByteBuffer.wrap( IOHelper.readRange( location, offset, Math.max( length, WINDOW_LENGTH ) ) );
+            windowOffset = offset;
+        }
+
+        final ByteBuffer bytes = window.duplicate();
+        bytes.position( ( int ) ( offset - windowOffset ) );
+        bytes.limit( ( int ) Math.min( bytes.limit(), offset - windowOffset + length ) );
+        return bytes.slice();
+    }
+
+    private boolean isInWindow( long offset, int length )
+    {
+        return window != null
+                && offset >= windowOffset
+                && offset + length <= windowOffset + window.limit();
+    }
+
+    private byte[] copyFromWindow( long offset, int length )
+    {
+        final byte[] bytes = new byte[ length ];
+        System.arraycopy( window.array(), ( int ) ( offset - windowOffset ), bytes, 0, length );
+        return bytes;
+    }
+}
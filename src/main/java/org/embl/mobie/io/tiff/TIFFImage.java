@@ -0,0 +1,63 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.tiff;
+
+import bdv.img.cache.SimpleCacheArrayLoader;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import org.janelia.saalfeldlab.n5.DataType;
+
+/**
+ * A TIFF-backed image of x,y,z planes per channel and timepoint
+ * that is loaded by a {@link TIFFImgLoader}.
+ */
+public interface TIFFImage
+{
+    String getName();
+
+    int getWidth();
+
+    int getHeight();
+
+    int getNumSlices();
+
+    int getNumChannels();
+
+    int getNumTimepoints();
+
+    DataType getDataType();
+
+    VoxelDimensions getVoxelDimensions();
+
+    /**
+     * @return the dimensions of the cells, which do not cross planes
+     */
+    int[] getCellDimensions();
+
+    SimpleCacheArrayLoader< ? > createCellLoader( int channel, int timepoint );
+}
@@ -0,0 +1,272 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.tiff;
+
+import bdv.AbstractViewerSetupImgLoader;
+import bdv.ViewerImgLoader;
+import bdv.cache.CacheControl;
+import bdv.cache.SharedQueue;
+import bdv.img.cache.VolatileGlobalCellCache;
+import bdv.img.n5.DataTypeProperties;
+import bdv.spimdata.SequenceDescriptionMinimal;
+import bdv.spimdata.SpimDataMinimal;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.MultiResolutionImgLoader;
+import mpicbg.spim.data.sequence.MultiResolutionSetupImgLoader;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.TimePoints;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.Volatile;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.cache.volatiles.LoadingStrategy;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.Cast;
+import org.embl.mobie.io.util.BudgetedCellCache;
+import org.embl.mobie.io.util.CancellingSharedQueue;
+import org.embl.mobie.io.util.IOHelper;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads the cells of a {@link TIFFImage} via a {@link VolatileGlobalCellCache},
+ * such that they are decoded on the fetcher threads of the {@link SharedQueue}
+ * instead of through an ImageJ VirtualStack.
+ * <p>
+ * Each channel of the image is one view setup.
+ */
+public class TIFFImgLoader implements ViewerImgLoader, MultiResolutionImgLoader
+{
+    private static final double[][] MIPMAP_RESOLUTIONS = { { 1, 1, 1 } };
+
+    private final TIFFImage image;
+    private final Map< Integer, SetupImgLoader< ?, ? > > setupImgLoaders = new HashMap<>();
+    private volatile boolean isOpen = false;
+    private VolatileGlobalCellCache cache;
+    private SharedQueue createdSharedQueue;
+    private SharedQueue requestedSharedQueue;
+    private int requestedNumFetcherThreads = -1;
+
+    public TIFFImgLoader( TIFFImage image )
+    {
+        this.image = image;
+    }
+
+    /**
+     * @return a SpimData with one view setup per channel, loaded by a {@link TIFFImgLoader}
+     */
+    public static SpimDataMinimal createSpimData( TIFFImage image, File basePath )
+    {
+        final VoxelDimensions voxelDimensions = image.getVoxelDimensions();
+        final AffineTransform3D transform = new AffineTransform3D();
+        transform.set(
+                voxelDimensions.dimension( 0 ), 0, 0, 0,
+                0, voxelDimensions.dimension( 1 ), 0, 0,
+                0, 0, voxelDimensions.dimension( 2 ), 0 );
+
+        final Map< Integer, BasicViewSetup > setups = new HashMap<>();
+        for ( int c = 0; c < image.getNumChannels(); c++ )
+        {
+            final String name = image.getNumChannels() == 1 ? image.getName() : IOHelper.addChannelPostfix( image.getName(), c );
+            final BasicViewSetup setup = new BasicViewSetup( c, name,
+                    new FinalDimensions( image.getWidth(), image.getHeight(), image.getNumSlices() ), voxelDimensions );
+            setup.setAttribute( new Channel( c ) );
+            setups.put( c, setup );
+        }
+
+        final List< TimePoint > timePoints = new ArrayList<>();
+        final List< ViewRegistration > registrations = new ArrayList<>();
+        for ( int t = 0; t < image.getNumTimepoints(); t++ )
+        {
+            timePoints.add( new TimePoint( t ) );
+            for ( int c = 0; c < image.getNumChannels(); c++ )
+                registrations.add( new ViewRegistration( t, c, transform ) );
+        }
+
+        final SequenceDescriptionMinimal seq = new SequenceDescriptionMinimal( new TimePoints( timePoints ), setups, null, null );
+        seq.setImgLoader( new TIFFImgLoader( image ) );
+        return new SpimDataMinimal( basePath, seq, new ViewRegistrations( registrations ) );
+    }
+
+    @Override
+    public synchronized void setNumFetcherThreads( final int n )
+    {
+        requestedNumFetcherThreads = n;
+    }
+
+    @Override
+    public void setCreatedSharedQueue( final SharedQueue createdSharedQueue )
+    {
+        requestedSharedQueue = createdSharedQueue;
+    }
+
+    private void open()
+    {
+        if ( !isOpen )
+        {
+            synchronized ( this )
+            {
+                if ( isOpen )
+                    return;
+
+                final int numFetcherThreads = requestedNumFetcherThreads >= 0
+                        ? requestedNumFetcherThreads
+                        : Math.max( 1, Runtime.getRuntime().availableProcessors() );
+                final SharedQueue queue = requestedSharedQueue != null
+                        ? requestedSharedQueue
+                        : ( createdSharedQueue = new CancellingSharedQueue( numFetcherThreads ) );
+                cache = BudgetedCellCache.create( queue );
+                for ( int c = 0; c < image.getNumChannels(); c++ )
+                    setupImgLoaders.put( c, new SetupImgLoader<>( c, Cast.unchecked( DataTypeProperties.of( image.getDataType() ) ) ) );
+
+                isOpen = true;
+            }
+        }
+    }
+
+    /**
+     * Clear the cache and stop the fetcher threads of a queue that this
+     * loader created. Images that were obtained from this loader before
+     * {@link #close()} will stop working. Requesting images after
+     * {@link #close()} will create a new cache.
+     */
+    public void close()
+    {
+        if ( isOpen )
+        {
+            synchronized ( this )
+            {
+                if ( !isOpen )
+                    return;
+
+                if ( createdSharedQueue != null )
+                    createdSharedQueue.shutdown();
+                cache.clearCache();
+
+                createdSharedQueue = null;
+                isOpen = false;
+            }
+        }
+    }
+
+    @Override
+    public SetupImgLoader< ?, ? > getSetupImgLoader( final int setupId )
+    {
+        open();
+        return setupImgLoaders.get( setupId );
+    }
+
+    @Override
+    public CacheControl getCacheControl()
+    {
+        open();
+        return cache;
+    }
+
+    public TIFFImage getImage()
+    {
+        return image;
+    }
+
+    public class SetupImgLoader< T extends NativeType< T >, V extends Volatile< T > & NativeType< V > >
+            extends AbstractViewerSetupImgLoader< T, V >
+            implements MultiResolutionSetupImgLoader< T >
+    {
+        private final int setupId;
+
+        public SetupImgLoader( final int setupId, final DataTypeProperties< T, V, ?, ? > properties )
+        {
+            super( properties.type(), properties.volatileType() );
+            this.setupId = setupId;
+        }
+
+        @Override
+        public RandomAccessibleInterval< V > getVolatileImage( final int timepointId, final int level, final ImgLoaderHint... hints )
+        {
+            return prepareCachedImage( timepointId, LoadingStrategy.BUDGETED, volatileType );
+        }
+
+        @Override
+        public RandomAccessibleInterval< T > getImage( final int timepointId, final int level, final ImgLoaderHint... hints )
+        {
+            return prepareCachedImage( timepointId, LoadingStrategy.BLOCKING, type );
+        }
+
+        @Override
+        public Dimensions getImageSize( final int timepointId, final int level )
+        {
+            return new FinalDimensions( image.getWidth(), image.getHeight(), image.getNumSlices() );
+        }
+
+        @Override
+        public VoxelDimensions getVoxelSize( final int timepointId )
+        {
+            return image.getVoxelDimensions();
+        }
+
+        @Override
+        public double[][] getMipmapResolutions()
+        {
+            return MIPMAP_RESOLUTIONS;
+        }
+
+        @Override
+        public AffineTransform3D[] getMipmapTransforms()
+        {
+            return new AffineTransform3D[] { new AffineTransform3D() };
+        }
+
+        @Override
+        public int numMipmapLevels()
+        {
+            return 1;
+        }
+
+        private < U extends NativeType< U > > RandomAccessibleInterval< U > prepareCachedImage( final int timepointId, final LoadingStrategy loadingStrategy, final U type )
+        {
+            final CellGrid grid = new CellGrid(
+                    new long[] { image.getWidth(), image.getHeight(), image.getNumSlices() },
+                    image.getCellDimensions() );
+            final CacheHints cacheHints = new CacheHints( loadingStrategy, 0, false );
+            return cache.createImg( grid, timepointId, setupId, 0, cacheHints, image.createCellLoader( setupId, timepointId ), type );
+        }
+    }
+}
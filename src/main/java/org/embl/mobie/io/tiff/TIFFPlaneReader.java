@@ -0,0 +1,241 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.tiff;
+
+import ij.io.FileInfo;
+import ij.io.ImageReader;
+import ij.io.TiffDecoder;
+import org.embl.mobie.io.util.IOHelper;
+import org.embl.mobie.io.util.RangeReadCoalescer;
+import org.embl.mobie.io.util.ResourceLocation;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Reads single planes of TIFF files with ImageJ's {@link TiffDecoder} and {@link ImageReader},
+ * keeping the headers of the most recently read files.
+ * <p>
+ * Files may also be remote (HTTP or S3). Then only the byte ranges of a plane are read,
+ * through a {@link RangeReadCoalescer}: the strips of a compressed plane, which are adjacent,
+ * are read with one request instead of one request per strip, and an uncompressed plane
+ * is read together with the adjacent planes that other threads request at the same time.
+ */
+public class TIFFPlaneReader
+{
+    private static final int NUM_CACHED_HEADERS = 64;
+
+    private final Map< String, FileInfo[] > headers = Collections.synchronizedMap(
+            new LinkedHashMap< String, FileInfo[] >( 16, 0.75f, true )
+            {
+                @Override
+                protected boolean removeEldestEntry( Map.Entry< String, FileInfo[] > eldest )
+                {
+                    return size() > NUM_CACHED_HEADERS;
+                }
+            } );
+
+    private final RangeReadCoalescer coalescer;
+
+    public TIFFPlaneReader()
+    {
+        this( null );
+    }
+
+    /**
+     * @param coalescer
+     *        reads the pixels of remote files, or null to use the {@link RangeReadCoalescer#getDefault() default}
+     */
+    public TIFFPlaneReader( RangeReadCoalescer coalescer )
+    {
+        this.coalescer = coalescer;
+    }
+
+    /**
+     * Reads the header (all IFDs) of a TIFF file, without reading any pixels.
+     * For remote files, the IFDs and their values are read with range requests.
+     */
+    public FileInfo[] getHeader( String path ) throws IOException
+    {
+        FileInfo[] header = headers.get( path );
+        if ( header == null )
+        {
+            if ( isRemote( path ) )
+            {
+                header = new TIFFHeaderReader(
+                        ResourceLocation.of( path ),
+                        path.substring( path.lastIndexOf( '/' ) + 1 ),
+                        getCoalescer() ).read();
+            }
+            else
+            {
+                final File file = new File( path );
+                header = new TiffDecoder( file.getAbsoluteFile().getParent() + File.separator, file.getName() ).getTiffInfo();
+            }
+            if ( header == null || header.length == 0 )
+                throw new IOException( "Could not read TIFF header of " + path );
+            headers.put( path, header );
+        }
+        return header;
+    }
+
+    /**
+     * @return a byte[], short[] or float[], see {@link TIFFSeries#getDataType( FileInfo )}
+     */
+    public Object readPlane( String path, int plane ) throws IOException
+    {
+        final FileInfo info = getPlaneInfo( getHeader( path ), plane );
+        if ( isRemote( path ) )
+            return readRemotePlane( path, info, plane );
+
+        try ( InputStream in = new FileInputStream( path ) )
+        {
+            final Object pixels = new ImageReader( info ).readPixels( in );
+            if ( pixels == null )
+                throw new IOException( "Could not read plane " + plane + " of " + path );
+            return pixels;
+        }
+    }
+
+    /*
+     * Reads the bytes of the plane and decodes them as if they were a file
+     * that starts with the plane.
+     */
+    private Object readRemotePlane( String path, FileInfo info, int plane ) throws IOException
+    {
+        final RangeReadCoalescer coalescer = getCoalescer();
+        final ResourceLocation location = ResourceLocation.of( path );
+        final FileInfo planeInfo = ( FileInfo ) info.clone();
+        planeInfo.offset = 0;
+        planeInfo.longOffset = 0;
+        final byte[] bytes;
+        if ( info.compression == FileInfo.COMPRESSION_NONE || info.stripOffsets == null )
+        {
+            // ImageReader reads uncompressed planes as one contiguous range
+            final long planeBytes = ( long ) info.width * info.height * info.getBytesPerPixel();
+            bytes = get( coalescer.read( location, info.getOffset(), ( int ) planeBytes ) );
+            planeInfo.stripOffsets = null;
+            planeInfo.stripLengths = null;
+        }
+        else
+        {
+            final int numStrips = info.stripOffsets.length;
+            final long[] offsets = new long[ numStrips ];
+            Arrays.setAll( offsets, i -> info.stripOffsets[ i ] & 0xffffffffL );
+            final List< byte[] > strips = coalescer.readAll( location, offsets, info.stripLengths );
+
+            // the strips, one after the other
+            bytes = new byte[ Arrays.stream( info.stripLengths ).sum() ];
+            planeInfo.stripOffsets = new int[ numStrips ];
+            int position = 0;
+            for ( int i = 0; i < numStrips; i++ )
+            {
+                final byte[] strip = strips.get( i );
+                System.arraycopy( strip, 0, bytes, position, strip.length );
+                planeInfo.stripOffsets[ i ] = position;
+                position += info.stripLengths[ i ];
+            }
+        }
+
+        final Object pixels = new ImageReader( planeInfo ).readPixels( new ByteArrayInputStream( bytes ) );
+        if ( pixels == null )
+            throw new IOException( "Could not read plane " + plane + " of " + path );
+        return pixels;
+    }
+
+    private RangeReadCoalescer getCoalescer()
+    {
+        return coalescer != null ? coalescer : RangeReadCoalescer.getDefault();
+    }
+
+    private static byte[] get( Future< byte[] > future ) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( e );
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof IOException )
+                throw ( IOException ) e.getCause();
+            throw new IOException( e.getCause() );
+        }
+    }
+
+    private static boolean isRemote( String path )
+    {
+        return ! IOHelper.getType( path ).equals( IOHelper.ResourceType.FILE );
+    }
+
+    public static int getNumPlanes( FileInfo[] header )
+    {
+        return Arrays.stream( header ).mapToInt( info -> Math.max( 1, info.nImages ) ).sum();
+    }
+
+    /*
+     * ImageJ describes contiguous, uncompressed stacks by one FileInfo with nImages > 1,
+     * other multi-page TIFFs by one FileInfo per page.
+     */
+    static FileInfo getPlaneInfo( FileInfo[] header, int plane )
+    {
+        int first = 0;
+        for ( FileInfo info : header )
+        {
+            final int numImages = Math.max( 1, info.nImages );
+            if ( plane < first + numImages )
+            {
+                if ( numImages == 1 )
+                    return info;
+
+                final FileInfo planeInfo = ( FileInfo ) info.clone();
+                final long planeBytes = ( long ) info.width * info.height * info.getBytesPerPixel();
+                planeInfo.longOffset = info.getOffset() + ( plane - first ) * ( planeBytes + info.gapBetweenImages );
+                planeInfo.nImages = 1;
+                return planeInfo;
+            }
+            first += numImages;
+        }
+        throw new IllegalArgumentException( "Plane " + plane + " does not exist." );
+    }
+}
@@ -0,0 +1,248 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.tiff;
+
+import bdv.img.cache.SimpleCacheArrayLoader;
+import bdv.img.n5.DataTypeProperties;
+import ij.io.FileInfo;
+import ij.io.ImageReader;
+import ij.util.StringSorter;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.img.basictypeaccess.DataAccess;
+import net.imglib2.util.Cast;
+import org.janelia.saalfeldlab.n5.DataType;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * A series of TIFF files of equal dimensions and pixel type.
+ * <p>
+ * If each file holds a single plane, the files are the z-slices
+ * of one timepoint; otherwise each file is one timepoint.
+ * <p>
+ * Only the header of the first file is read upfront.
+ * The headers of the other files are read when their pixels are.
+ */
+public class TIFFSeries implements TIFFImage
+{
+    private final String directory;
+    private final String[] fileNames;
+    private final int width;
+    private final int height;
+    private final int numPlanesPerFile;
+    private final DataType dataType;
+    private final VoxelDimensions voxelDimensions;
+
+    private final TIFFPlaneReader reader;
+
+    private TIFFSeries( String directory, String[] fileNames, TIFFPlaneReader reader, FileInfo[] firstHeader, DataType dataType )
+    {
+        this.directory = directory;
+        this.reader = reader;
+        this.fileNames = fileNames;
+        this.dataType = dataType;
+        final FileInfo info = firstHeader[ 0 ];
+        this.width = info.width;
+        this.height = info.height;
+        this.numPlanesPerFile = TIFFPlaneReader.getNumPlanes( firstHeader );
+        this.voxelDimensions = new FinalVoxelDimensions(
+                info.unit == null ? "pixel" : info.unit,
+                info.pixelWidth, info.pixelHeight, info.pixelDepth );
+    }
+
+    /**
+     * Opens the TIFF files in the folder whose names match the filter.
+     *
+     * @return the series, or null if there are no matching files or the
+     *         pixel type is not supported (e.g. RGB)
+     */
+    public static TIFFSeries open( String folder, Pattern filter ) throws IOException
+    {
+        final String directory = folder.endsWith( File.separator ) ? folder : folder + File.separator;
+        final String[] fileNames = new File( directory ).list( ( dir, name ) -> filter.matcher( name ).matches() );
+        if ( fileNames == null || fileNames.length == 0 )
+            return null;
+
+        StringSorter.sortNumerically( fileNames );
+        final TIFFPlaneReader reader = new TIFFPlaneReader();
+        final FileInfo[] header = reader.getHeader( directory + fileNames[ 0 ] );
+
+        final DataType dataType = getDataType( header[ 0 ] );
+        if ( dataType == null )
+            return null;
+
+        return new TIFFSeries( directory, fileNames, reader, header, dataType );
+    }
+
+    /**
+     * Opens a single TIFF file, e.g. a remote one, whose planes are the z-slices.
+     *
+     * @return the series, or null if the pixel type is not supported (e.g. RGB)
+     */
+    public static TIFFSeries openFile( String uri ) throws IOException
+    {
+        final int nameStart = Math.max( uri.lastIndexOf( '/' ), uri.lastIndexOf( File.separatorChar ) ) + 1;
+        final TIFFPlaneReader reader = new TIFFPlaneReader();
+        final FileInfo[] header = reader.getHeader( uri );
+
+        final DataType dataType = getDataType( header[ 0 ] );
+        if ( dataType == null )
+            return null;
+
+        return new TIFFSeries( uri.substring( 0, nameStart ), new String[] { uri.substring( nameStart ) }, reader, header, dataType );
+    }
+
+    /**
+     * @return the pixel type as it is returned by {@link ImageReader},
+     *         or null if it is not a single channel type
+     */
+    public static DataType getDataType( FileInfo info )
+    {
+        switch ( info.fileType )
+        {
+            case FileInfo.GRAY8:
+            case FileInfo.COLOR8:
+            case FileInfo.BITMAP:
+                return DataType.UINT8;
+            case FileInfo.GRAY16_SIGNED:
+            case FileInfo.GRAY16_UNSIGNED:
+            case FileInfo.GRAY12_UNSIGNED:
+                return DataType.UINT16;
+            case FileInfo.GRAY24_UNSIGNED:
+            case FileInfo.GRAY32_INT:
+            case FileInfo.GRAY32_UNSIGNED:
+            case FileInfo.GRAY32_FLOAT:
+            case FileInfo.GRAY64_FLOAT:
+                return DataType.FLOAT32;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public int getWidth()
+    {
+        return width;
+    }
+
+    @Override
+    public int getHeight()
+    {
+        return height;
+    }
+
+    @Override
+    public int getNumSlices()
+    {
+        return numPlanesPerFile == 1 ? fileNames.length : numPlanesPerFile;
+    }
+
+    @Override
+    public String getName()
+    {
+        return new File( directory ).getName();
+    }
+
+    @Override
+    public int getNumChannels()
+    {
+        return 1;
+    }
+
+    @Override
+    public int getNumTimepoints()
+    {
+        return numPlanesPerFile == 1 ? 1 : fileNames.length;
+    }
+
+    @Override
+    public DataType getDataType()
+    {
+        return dataType;
+    }
+
+    @Override
+    public VoxelDimensions getVoxelDimensions()
+    {
+        return voxelDimensions;
+    }
+
+    /**
+     * Reads the pixels of one plane.
+     *
+     * @return a byte[], short[] or float[], depending on {@link #getDataType()}
+     */
+    public Object readPlane( int timepoint, int slice ) throws IOException
+    {
+        final int fileIndex = numPlanesPerFile == 1 ? slice : timepoint;
+        final int plane = numPlanesPerFile == 1 ? 0 : slice;
+        return reader.readPlane( directory + fileNames[ fileIndex ], plane );
+    }
+
+    @Override
+    public int[] getCellDimensions()
+    {
+        // one cell per plane
+        return new int[] { width, height, 1 };
+    }
+
+    @Override
+    public SimpleCacheArrayLoader< ? > createCellLoader( int channel, int timepoint )
+    {
+        return new PlaneLoader<>( this, timepoint, DataTypeProperties.of( dataType ).createVolatileArrayAccess() );
+    }
+
+    /**
+     * Decodes one plane per cell.
+     */
+    static class PlaneLoader< P, A extends DataAccess > implements SimpleCacheArrayLoader< A >
+    {
+        private final TIFFSeries series;
+        private final int timepoint;
+        private final Function< P, A > createVolatileArrayAccess;
+
+        PlaneLoader( final TIFFSeries series, final int timepoint, final Function< P, A > createVolatileArrayAccess )
+        {
+            this.series = series;
+            this.timepoint = timepoint;
+            this.createVolatileArrayAccess = createVolatileArrayAccess;
+        }
+
+        @Override
+        public A loadArray( final long[] gridPosition, final int[] cellDimensions ) throws IOException
+        {
+            final P pixels = Cast.unchecked( series.readPlane( timepoint, ( int ) gridPosition[ 2 ] ) );
+            return createVolatileArrayAccess.apply( pixels );
+        }
+    }
+}
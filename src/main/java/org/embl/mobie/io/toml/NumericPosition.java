@@ -0,0 +1,116 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.toml;
+
+/**
+ * A position along one axis, given by the value of a named regex group.
+ * <p>
+ * Values that are decimal numbers are ordered numerically ("2" before "10"),
+ * using a key that is parsed once, such that comparisons neither allocate
+ * nor rescan strings. Other values are ordered lexicographically,
+ * after all numeric values.
+ */
+abstract class NumericPosition
+{
+	static final long NOT_NUMERIC = -1;
+
+	private final String value;
+	private final long key;
+
+	NumericPosition( String value )
+	{
+		this.value = value;
+		this.key = parseKey( value );
+	}
+
+	/**
+	 * @return the non-negative numeric value, or {@link #NOT_NUMERIC}
+	 */
+	static long parseKey( String value )
+	{
+		final int length = value.length();
+		if ( length == 0 || length > 18 )
+			return NOT_NUMERIC;
+
+		long key = 0;
+		for ( int i = 0; i < length; i++ )
+		{
+			final char c = value.charAt( i );
+			if ( c < '0' || c > '9' )
+				return NOT_NUMERIC;
+			key = 10 * key + ( c - '0' );
+		}
+		return key;
+	}
+
+	public long getKey()
+	{
+		return key;
+	}
+
+	int compareKeys( NumericPosition o )
+	{
+		if ( key != NOT_NUMERIC && o.key != NOT_NUMERIC )
+		{
+			final int compare = Long.compare( key, o.key );
+			// e.g. "01" and "1"
+			return compare != 0 ? compare : value.compareTo( o.value );
+		}
+
+		if ( key != NOT_NUMERIC )
+			return -1;
+		if ( o.key != NOT_NUMERIC )
+			return 1;
+
+		return value.compareTo( o.value );
+	}
+
+	@Override
+	public String toString()
+	{
+		return value;
+	}
+
+	@Override
+	public boolean equals( Object o )
+	{
+		if ( this == o )
+			return true;
+		if ( o == null || getClass() != o.getClass() )
+			return false;
+		final NumericPosition position = ( NumericPosition ) o;
+		return key == position.key && value.equals( position.value );
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return value.hashCode();
+	}
+}
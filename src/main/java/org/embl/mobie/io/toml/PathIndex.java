@@ -0,0 +1,113 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.toml;
+
+import org.embl.mobie.io.util.IOHelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persists the paths that match the path regex of a {@code .toml} file
+ * in an index file next to it ({@code <name>.toml.index}),
+ * such that large folders need not be scanned on every opening.
+ * <p>
+ * The index is rescanned if the regex changed, or if the {@code .toml} file
+ * or the scanned directory were modified after the index was written.
+ * Files that are added to sub-directories do not modify the scanned directory,
+ * in which case the index file needs to be deleted.
+ */
+public class PathIndex
+{
+	private static final String REGEX_PREFIX = "# regex=";
+
+	public static List< String > getPaths( File tomlFile, String regex, int maxDepth )
+	{
+		final File indexFile = new File( tomlFile.getPath() + ".index" );
+		final File directory = tomlFile.getAbsoluteFile().getParentFile();
+
+		final List< String > indexedPaths = read( indexFile, directory, regex, tomlFile );
+		if ( indexedPaths != null )
+			return indexedPaths;
+
+		final List< String > paths = IOHelper.getPaths( directory.getPath(), regex, maxDepth );
+		write( indexFile, directory, regex, paths );
+		return paths;
+	}
+
+	private static List< String > read( File indexFile, File directory, String regex, File tomlFile )
+	{
+		if ( ! indexFile.exists()
+				|| indexFile.lastModified() < directory.lastModified()
+				|| indexFile.lastModified() < tomlFile.lastModified() )
+			return null;
+
+		try
+		{
+			final List< String > lines = Files.readAllLines( indexFile.toPath(), StandardCharsets.UTF_8 );
+			if ( lines.isEmpty() || ! lines.get( 0 ).equals( REGEX_PREFIX + regex ) )
+				return null;
+
+			final List< String > paths = new ArrayList<>( lines.size() - 1 );
+			for ( String relativePath : lines.subList( 1, lines.size() ) )
+				paths.add( new File( directory, relativePath ).getPath() );
+			return paths;
+		}
+		catch ( IOException e )
+		{
+			System.err.println( "Could not read path index " + indexFile + ": " + e.getMessage() );
+			return null;
+		}
+	}
+
+	private static void write( File indexFile, File directory, String regex, List< String > paths )
+	{
+		final String directoryPath = directory.getPath();
+		final List< String > lines = new ArrayList<>( paths.size() + 1 );
+		lines.add( REGEX_PREFIX + regex );
+		for ( String path : paths )
+			lines.add( path.startsWith( directoryPath )
+					? path.substring( directoryPath.length() + 1 )
+					: path );
+
+		try
+		{
+			Files.write( indexFile.toPath(), lines, StandardCharsets.UTF_8 );
+		}
+		catch ( IOException e )
+		{
+			// the index is an optimisation, e.g. the folder may be read-only
+			System.err.println( "Could not write path index " + indexFile + ": " + e.getMessage() );
+		}
+	}
+}
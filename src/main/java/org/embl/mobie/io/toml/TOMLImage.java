@@ -0,0 +1,185 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.toml;
+
+import bdv.img.cache.SimpleCacheArrayLoader;
+import bdv.img.n5.DataTypeProperties;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.img.basictypeaccess.DataAccess;
+import net.imglib2.util.Cast;
+import org.embl.mobie.io.tiff.TIFFImage;
+import org.embl.mobie.io.tiff.TIFFImgLoader;
+import org.embl.mobie.io.tiff.TIFFPlaneReader;
+import org.janelia.saalfeldlab.n5.DataType;
+
+import java.io.IOException;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * The TIFF files that are described by a {@code .image.toml} file,
+ * loaded plane by plane via a {@link TIFFImgLoader}.
+ * <p>
+ * Each file holds one channel, slice and frame, or, without a slice group,
+ * all slices of one channel and frame.
+ */
+public class TOMLImage implements TIFFImage
+{
+	private final String name;
+	private final String[] paths;
+	private final int numChannels;
+	private final int numFileSlices;
+	private final int numTimepoints;
+	private final int planesPerFile;
+	private final int width;
+	private final int height;
+	private final DataType dataType;
+	private final VoxelDimensions voxelDimensions;
+	private final TIFFPlaneReader reader;
+
+	/**
+	 * @param paths
+	 * 		the file paths, at index c + numChannels * ( z + numFileSlices * t ),
+	 * 		null where a file is missing
+	 */
+	public TOMLImage(
+			String name,
+			String[] paths,
+			int numChannels,
+			int numFileSlices,
+			int numTimepoints,
+			int planesPerFile,
+			int width,
+			int height,
+			DataType dataType,
+			VoxelDimensions voxelDimensions,
+			TIFFPlaneReader reader )
+	{
+		this.name = name;
+		this.paths = paths;
+		this.numChannels = numChannels;
+		this.numFileSlices = numFileSlices;
+		this.numTimepoints = numTimepoints;
+		this.planesPerFile = planesPerFile;
+		this.width = width;
+		this.height = height;
+		this.dataType = dataType;
+		this.voxelDimensions = voxelDimensions;
+		this.reader = reader;
+	}
+
+	@Override
+	public String getName()
+	{
+		return name;
+	}
+
+	@Override
+	public int getWidth()
+	{
+		return width;
+	}
+
+	@Override
+	public int getHeight()
+	{
+		return height;
+	}
+
+	@Override
+	public int getNumSlices()
+	{
+		return numFileSlices * planesPerFile;
+	}
+
+	@Override
+	public int getNumChannels()
+	{
+		return numChannels;
+	}
+
+	@Override
+	public int getNumTimepoints()
+	{
+		return numTimepoints;
+	}
+
+	@Override
+	public DataType getDataType()
+	{
+		return dataType;
+	}
+
+	@Override
+	public VoxelDimensions getVoxelDimensions()
+	{
+		return voxelDimensions;
+	}
+
+	@Override
+	public int[] getCellDimensions()
+	{
+		// one cell per plane
+		return new int[] { width, height, 1 };
+	}
+
+	@Override
+	public SimpleCacheArrayLoader< ? > createCellLoader( int channel, int timepoint )
+	{
+		return new PlaneLoader<>( channel, timepoint, DataTypeProperties.of( dataType ) );
+	}
+
+	private class PlaneLoader< P, A extends DataAccess > implements SimpleCacheArrayLoader< A >
+	{
+		private final int channel;
+		private final int timepoint;
+		private final IntFunction< P > createPrimitiveArray;
+		private final Function< P, A > createVolatileArrayAccess;
+
+		PlaneLoader( int channel, int timepoint, DataTypeProperties< ?, ?, P, A > properties )
+		{
+			this.channel = channel;
+			this.timepoint = timepoint;
+			this.createPrimitiveArray = properties.createPrimitiveArray();
+			this.createVolatileArrayAccess = properties.createVolatileArrayAccess();
+		}
+
+		@Override
+		public A loadArray( long[] gridPosition, int[] cellDimensions ) throws IOException
+		{
+			final int z = ( int ) gridPosition[ 2 ];
+			final String path = paths[ channel + numChannels * ( z / planesPerFile + numFileSlices * timepoint ) ];
+			if ( path == null )
+				return createVolatileArrayAccess.apply( createPrimitiveArray.apply( width * height ) );
+
+			final P pixels = Cast.unchecked( reader.readPlane( path, z % planesPerFile ) );
+			return createVolatileArrayAccess.apply( pixels );
+		}
+	}
+}
@@ -32,19 +32,31 @@ import com.moandjiezana.toml.Toml;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.VirtualStack;
+import ij.io.FileInfo;
 import ij.measure.Calibration;
+import mpicbg.spim.data.generic.AbstractSpimData;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import org.embl.mobie.io.tiff.TIFFImgLoader;
+import org.embl.mobie.io.tiff.TIFFPlaneReader;
+import org.embl.mobie.io.tiff.TIFFSeries;
 import org.embl.mobie.io.util.IOHelper;
+import org.janelia.saalfeldlab.n5.DataType;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class TOMLOpener
 {
+	private static final String FRAME = "frame";
+	private static final String SLICE = "slice";
+	private static final String CHANNEL = "channel";
+
 	private final String tomlImagePath;
 
 	public TOMLOpener( String tomlImagePath )
@@ -52,6 +64,121 @@ public class TOMLOpener
 		this.tomlImagePath = tomlImagePath;
 	}
 
+	/**
+	 * Opens the described files as a lazily loaded image, with the
+	 * named groups frame, slice and channel of the path regex
+	 * determining the position of each file.
+	 * Only the TIFF header of the first file is read.
+	 *
+	 * @return the image, or null if the files are not single channel TIFFs
+	 */
+	public AbstractSpimData< ? > openSpimData()
+	{
+		final File tomlFile = new File( tomlImagePath );
+		final Toml toml = new Toml().read( tomlFile );
+		final String path = toml.getString( "path" );
+		final String imageName = tomlFile.getName().replace( ".image.toml", "" );
+
+		final List< String > groups = IOHelper.getNamedGroups( path );
+		if ( ! groups.contains( FRAME ) && ! groups.contains( SLICE ) && ! groups.contains( CHANNEL ) )
+			throw new UnsupportedOperationException("TOML opening of path not yet supported: " + path );
+
+		final Pattern pattern = Pattern.compile( path );
+		final List< String > filePaths = findPaths( toml, tomlFile, path );
+		final int numFiles = filePaths.size();
+		final TPosition[] tPositions = new TPosition[ numFiles ];
+		final ZPosition[] zPositions = new ZPosition[ numFiles ];
+		final CPosition[] cPositions = new CPosition[ numFiles ];
+		final String[] matchedPaths = new String[ numFiles ];
+		int numMatches = 0;
+		for ( String filePath : filePaths )
+		{
+			final Matcher matcher = pattern.matcher( new File( filePath ).getName() );
+			if ( ! matcher.matches() ) continue;
+
+			tPositions[ numMatches ] = new TPosition( groups.contains( FRAME ) ? matcher.group( FRAME ) : "0" );
+			zPositions[ numMatches ] = new ZPosition( groups.contains( SLICE ) ? matcher.group( SLICE ) : "0" );
+			cPositions[ numMatches ] = new CPosition( groups.contains( CHANNEL ) ? matcher.group( CHANNEL ) : "0" );
+			matchedPaths[ numMatches ] = filePath;
+			numMatches++;
+		}
+
+		if ( numMatches == 0 )
+			throw new RuntimeException( "Could not find any files matching " + path + " within " + tomlFile.getParent() );
+
+		final int[] tIndices = toIndices( tPositions, numMatches );
+		final int[] zIndices = toIndices( zPositions, numMatches );
+		final int[] cIndices = toIndices( cPositions, numMatches );
+		final int nT = max( tIndices ) + 1;
+		final int nZ = max( zIndices ) + 1;
+		final int nC = max( cIndices ) + 1;
+		final String[] paths = new String[ nC * nZ * nT ];
+		for ( int i = 0; i < numMatches; i++ )
+			paths[ cIndices[ i ] + nC * ( zIndices[ i ] + nZ * tIndices[ i ] ) ] = matchedPaths[ i ];
+
+		// dimensions and pixel type from the header of the first file
+		final TIFFPlaneReader reader = new TIFFPlaneReader();
+		final FileInfo[] header;
+		try
+		{
+			header = reader.getHeader( Arrays.stream( paths ).filter( Objects::nonNull ).findFirst().get() );
+		}
+		catch ( IOException e )
+		{
+			return null;
+		}
+
+		final FileInfo info = header[ 0 ];
+		final DataType dataType = TIFFSeries.getDataType( info );
+		if ( dataType == null )
+			return null;
+
+		final int planesPerFile = groups.contains( SLICE ) ? 1 : TIFFPlaneReader.getNumPlanes( header );
+		final VoxelDimensions voxelDimensions = new FinalVoxelDimensions(
+				toml.getString( "unit_xy", info.unit == null ? "pixel" : info.unit ),
+				toml.getDouble( "scale_xy", info.pixelWidth ),
+				toml.getDouble( "scale_xy", info.pixelHeight ),
+				toml.getDouble( "scale_z", info.pixelDepth ) );
+
+		final TOMLImage image = new TOMLImage( imageName, paths, nC, nZ, nT, planesPerFile,
+				info.width, info.height, dataType, voxelDimensions, reader );
+		return TIFFImgLoader.createSpimData( image, tomlFile.getAbsoluteFile().getParentFile() );
+	}
+
+	/**
+	 * @return for each of the first n positions, the index of its value
+	 *         among the sorted distinct values
+	 */
+	private static < P extends Comparable< P > > int[] toIndices( P[] positions, int n )
+	{
+		final P[] sorted = Arrays.copyOf( positions, n );
+		Arrays.sort( sorted );
+		int numDistinct = 0;
+		for ( int i = 0; i < n; i++ )
+			if ( numDistinct == 0 || sorted[ numDistinct - 1 ].compareTo( sorted[ i ] ) != 0 )
+				sorted[ numDistinct++ ] = sorted[ i ];
+
+		final int[] indices = new int[ n ];
+		for ( int i = 0; i < n; i++ )
+			indices[ i ] = Arrays.binarySearch( sorted, 0, numDistinct, positions[ i ] );
+		return indices;
+	}
+
+	private static int max( int[] values )
+	{
+		int max = 0;
+		for ( int value : values )
+			max = Math.max( max, value );
+		return max;
+	}
+
+	private static List< String > findPaths( Toml toml, File tomlFile, String path )
+	{
+		return toml.getBoolean( "index", false )
+				? PathIndex.getPaths( tomlFile, path, 999 )
+				: IOHelper.getPaths( tomlFile.getParent(), path, 999 );
+	}
+
 	public ImagePlus openImagePlus()
 	{
 		final File tomlFile = new File( tomlImagePath );
@@ -65,45 +192,46 @@ public class TOMLOpener
 
 		final List< String > groups = IOHelper.getNamedGroups( path );
 
-		final Map< TPosition, Map< ZPosition, String > > frameSlicePaths = new HashMap<>();
-
-		if ( groups.contains( "frame" ) && ! groups.contains( "slice" ) )
+		if ( ! groups.contains( FRAME ) || groups.contains( SLICE ) )
 		{
-			List< String > framePaths = IOHelper.getPaths( tomlFile.getParent(), path, 999 );
-			for ( String framePath : framePaths )
-			{
-				final TPosition tPosition = new TPosition( framePath );
-				final Map< ZPosition, String > slicePaths = new HashMap<>();
-				slicePaths.put( new ZPosition( "0" ), framePath );
-				frameSlicePaths.put( tPosition, slicePaths );
-			}
+			throw new UnsupportedOperationException("TOML opening of path not yet supported: " + path );
 		}
-		else
+
+		// order the frames by their frame group
+		final Pattern pattern = Pattern.compile( path );
+		final List< String > framePaths = findPaths( toml, tomlFile, path );
+		final TPosition[] tPositions = new TPosition[ framePaths.size() ];
+		final String[] paths = new String[ framePaths.size() ];
+		int nT = 0;
+		for ( String framePath : framePaths )
 		{
-			throw new UnsupportedOperationException("TOML opening of path not yet supported: " + path );
+			final Matcher matcher = pattern.matcher( new File( framePath ).getName() );
+			if ( ! matcher.matches() ) continue;
+			tPositions[ nT ] = new TPosition( matcher.group( FRAME ) );
+			paths[ nT ] = framePath;
+			nT++;
 		}
 
-		VirtualStack virtualStack = null;
+		if ( nT == 0 )
+			throw new RuntimeException( "Could not find any files matching " + path + " within " + tomlFile.getParent() );
+
+		final int[] tIndices = toIndices( tPositions, nT );
+		final String[] sortedPaths = new String[ max( tIndices ) + 1 ];
+		for ( int i = 0; i < nT; i++ )
+			sortedPaths[ tIndices[ i ] ] = paths[ i ];
+		nT = sortedPaths.length;
+		final int nZ = 1;
 
-		final ArrayList< TPosition > tPositions = new ArrayList<>( frameSlicePaths.keySet() );
-		Collections.sort( tPositions );
-		int nT = tPositions.size();
-		int nZ = 1;
-		for ( TPosition t : tPositions )
+		VirtualStack virtualStack = null;
+		for ( String framePath : sortedPaths )
 		{
-			final Set< ZPosition > zPositions = frameSlicePaths.get( t ).keySet();
-			nZ = zPositions.size();
-			for ( ZPosition z : zPositions )
+			if ( virtualStack == null )
 			{
-				if ( virtualStack == null )
-				{
-					final String imagePath = frameSlicePaths.get( t ).get( z );
-					final ImagePlus imp = IJ.openImage( imagePath );
-					virtualStack = new VirtualStack( imp.getWidth(), imp.getHeight(), null, "" );
-				}
-
-				virtualStack.addSlice( frameSlicePaths.get( t ).get( z ) );
+				final ImagePlus imp = IJ.openImage( framePath );
+				virtualStack = new VirtualStack( imp.getWidth(), imp.getHeight(), null, "" );
 			}
+
+			virtualStack.addSlice( framePath );
 		}
 
 		final ImagePlus imagePlus = new ImagePlus( imageName, virtualStack );
@@ -28,18 +28,18 @@
  */
 package org.embl.mobie.io.toml;
 
-public class ZPosition
-{
-	private final String zPosition;
+import org.jetbrains.annotations.NotNull;
 
+public class ZPosition extends NumericPosition implements Comparable< ZPosition >
+{
 	public ZPosition( String zPosition )
 	{
-		this.zPosition = zPosition;
+		super( zPosition );
 	}
 
 	@Override
-	public String toString()
+	public int compareTo( @NotNull ZPosition o )
 	{
-		return zPosition;
+		return compareKeys( o );
 	}
 }
@@ -0,0 +1,224 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import org.embl.mobie.io.metrics.Metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the number of concurrent requests to one endpoint, adapting the limit
+ * with additive increase and multiplicative decrease (AIMD).
+ * <p>
+ * While the latency of the requests stays within {@code tolerance} times the lowest
+ * recently seen latency, the limit grows by about one per round of requests, as more
+ * concurrency then adds throughput. If the latency rises beyond that, or the endpoint
+ * throttles (HTTP 503 SlowDown or 429), the limit is multiplied by {@code backoff},
+ * at most once per typical request latency so that one congestion event is not
+ * punished by every request that was in flight.
+ * <p>
+ * Only successful fetches are sampled, without the time to decode the block:
+ * missing blocks return fast and decoding is bound by the cores, so either would
+ * distort the latency of the link.
+ * <p>
+ * The fetcher threads of all loaders of the endpoint are then only an upper bound
+ * of the concurrency; the threads above the limit wait in {@link #acquire()}.
+ * A permit is only held while the bytes of a block are fetched, not while it is decoded.
+ */
+public class AdaptiveConcurrencyLimiter
+{
+    private static final LongAdder INCREASES = Metrics.counter( "limiter.increases" );
+    private static final LongAdder DECREASES = Metrics.counter( "limiter.decreases" );
+
+    /**
+     * Below the connection pool of the S3 client, which also serves the requests
+     * of other readers, such that fetches do not wait for a connection.
+     */
+    public static final int DEFAULT_MAX_LIMIT = ClientConfiguration.DEFAULT_MAX_CONNECTIONS - 2;
+
+    private static final int WINDOW_SIZE = 256;
+
+    private static final Map< String, AdaptiveConcurrencyLimiter > ENDPOINTS = new ConcurrentHashMap<>();
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double backoff;
+
+    private double limit;
+    private int numInFlight;
+
+    // the lowest latency of the previous and the current window of requests,
+    // so that the baseline follows lasting changes of the link
+    private long previousMinLatency = Long.MAX_VALUE;
+    private long currentMinLatency = Long.MAX_VALUE;
+    private int numSamples;
+    private double averageLatency;
+    private long lastDecrease;
+
+    public AdaptiveConcurrencyLimiter( int initialLimit, int minLimit, int maxLimit, double tolerance, double backoff )
+    {
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.backoff = backoff;
+        this.lastDecrease = System.nanoTime();
+    }
+
+    public AdaptiveConcurrencyLimiter()
+    {
+        this( Math.max( 1, Runtime.getRuntime().availableProcessors() ), 1, DEFAULT_MAX_LIMIT, 2.0, 0.7 );
+    }
+
+    /**
+     * @return the limiter shared by all loaders that read from the given endpoint
+     */
+    public static AdaptiveConcurrencyLimiter forEndpoint( String endpoint )
+    {
+        return ENDPOINTS.computeIfAbsent( endpoint, e -> new AdaptiveConcurrencyLimiter() );
+    }
+
+    /**
+     * Waits until fewer than {@link #getLimit()} requests are in flight.
+     */
+    public synchronized void acquire() throws InterruptedException
+    {
+        while ( numInFlight >= ( int ) limit )
+            wait();
+        numInFlight++;
+    }
+
+    /**
+     * Ends a request that was started with {@link #acquire()}.
+     */
+    public synchronized void release()
+    {
+        numInFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Adapts the limit to the latency of a successful fetch.
+     *
+     * @param latencyNanos
+     *        the duration of the fetch, without decoding
+     */
+    public synchronized void recordLatency( long latencyNanos )
+    {
+        if ( ++numSamples > WINDOW_SIZE )
+        {
+            previousMinLatency = currentMinLatency;
+            currentMinLatency = Long.MAX_VALUE;
+            numSamples = 1;
+        }
+        currentMinLatency = Math.min( currentMinLatency, latencyNanos );
+        averageLatency = averageLatency == 0 ? latencyNanos : 0.9 * averageLatency + 0.1 * latencyNanos;
+        final long baseline = Math.min( previousMinLatency, currentMinLatency );
+
+        if ( latencyNanos > tolerance * baseline )
+        {
+            decrease();
+        }
+        else if ( limit < maxLimit )
+        {
+            final int before = ( int ) limit;
+            limit = Math.min( maxLimit, limit + 1.0 / limit );
+            if ( ( int ) limit > before )
+                INCREASES.increment();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Backs off because the endpoint rejected a request because of its request rate.
+     */
+    public synchronized void recordThrottled()
+    {
+        decrease();
+    }
+
+    private void decrease()
+    {
+        final long now = System.nanoTime();
+        if ( now - lastDecrease > averageLatency )
+        {
+            limit = Math.max( minLimit, limit * backoff );
+            lastDecrease = now;
+            DECREASES.increment();
+        }
+    }
+
+    public int getMaxLimit()
+    {
+        return maxLimit;
+    }
+
+    public synchronized int getLimit()
+    {
+        return ( int ) limit;
+    }
+
+    public synchronized int getNumInFlight()
+    {
+        return numInFlight;
+    }
+
+    /**
+     * @return whether the exception, or one of its causes, reports that the endpoint throttles requests
+     */
+    public static boolean isThrottling( Throwable throwable )
+    {
+        for ( Throwable t = throwable; t != null; t = t.getCause() )
+        {
+            if ( t instanceof AmazonServiceException )
+            {
+                final int statusCode = ( ( AmazonServiceException ) t ).getStatusCode();
+                if ( statusCode == 503 || statusCode == 429 )
+                    return true;
+            }
+            if ( t.getCause() == t )
+                break;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format( "limit %d, in flight %d, min latency %.1f ms, average latency %.1f ms",
+                ( int ) limit, numInFlight,
+                Math.min( previousMinLatency, currentMinLatency ) / 1e6,
+                averageLatency / 1e6 );
+    }
+}
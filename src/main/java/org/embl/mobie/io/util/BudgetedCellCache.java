@@ -0,0 +1,253 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import bdv.cache.SharedQueue;
+import bdv.img.cache.SimpleCacheArrayLoader;
+import bdv.img.cache.VolatileCachedCellImg;
+import bdv.img.cache.VolatileGlobalCellCache;
+import net.imglib2.cache.queue.BlockingFetchQueues;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.img.basictypeaccess.DataAccess;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.IntervalIndexer;
+import org.embl.mobie.io.metrics.Metrics;
+
+import java.lang.reflect.Array;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link VolatileGlobalCellCache} that accounts the bytes of its cells
+ * against the process-wide {@link CacheBudget}, which evicts single cells
+ * of all caches when the budget is exceeded.
+ * <p>
+ * Each image loader needs its own instance, because the cells are keyed
+ * by timepoint, setup, level and position only.
+ * <p>
+ * Cell requests that the fetcher threads answer without loading, because the
+ * cell was loaded in the meantime, e.g. by a prefetch or an earlier request of
+ * the same cell, count as cache hits ("cache.cells.hit"), and each load as a miss
+ * ("cache.cells.loaded"). Lookups of cells that are already valid do not reach
+ * the fetch queue and are not counted, nor are the requests of a cache that
+ * creates its own queue.
+ */
+public class BudgetedCellCache extends VolatileGlobalCellCache
+{
+    private static final LongAdder CELLS_LOADED = Metrics.counter( "cache.cells.loaded" );
+    private static final LongAdder BYTES_LOADED = Metrics.counter( "cache.bytes.loaded" );
+    private static final LongAdder CELLS_HIT = Metrics.counter( "cache.cells.hit" );
+
+    /**
+     * The number of cells that the current thread has loaded, to tell the
+     * requests that loaded their cell from those that found it in the cache.
+     */
+    private static final ThreadLocal< long[] > NUM_LOADS = ThreadLocal.withInitial( () -> new long[ 1 ] );
+
+    private final CacheBudget budget;
+    private final AtomicLong numBytes = new AtomicLong();
+    private final LongAdder numHits;
+
+    public BudgetedCellCache( SharedQueue queue )
+    {
+        this( queue, CacheBudget.getInstance() );
+    }
+
+    public BudgetedCellCache( SharedQueue queue, CacheBudget budget )
+    {
+        this( new HitCountingQueue( queue ), budget );
+    }
+
+    private BudgetedCellCache( HitCountingQueue queue, CacheBudget budget )
+    {
+        super( queue );
+        this.budget = budget;
+        this.numHits = queue.numHits;
+        budget.register( this );
+    }
+
+    public BudgetedCellCache( int maxNumLevels, int numFetcherThreads )
+    {
+        super( maxNumLevels, numFetcherThreads );
+        this.budget = CacheBudget.getInstance();
+        this.numHits = new LongAdder();
+        budget.register( this );
+    }
+
+    /**
+     * Creates a cache that keeps its cells off-heap if {@link OffHeapCellCache#isEnabled()},
+     * and on the heap otherwise.
+     */
+    public static BudgetedCellCache create( SharedQueue queue )
+    {
+        return OffHeapCellCache.isEnabled() ? new OffHeapCellCache( queue ) : new BudgetedCellCache( queue );
+    }
+
+    public long getNumBytes()
+    {
+        return numBytes.get();
+    }
+
+    /**
+     * @return the number of cell requests of this cache that were answered without loading
+     */
+    public long getNumHits()
+    {
+        return numHits.sum();
+    }
+
+    @Override
+    public void clearCache()
+    {
+        super.clearCache();
+        budget.cleared( this );
+    }
+
+    /**
+     * Removes a single cell from the cache, without touching the fetch queue.
+     */
+    void invalidate( Key key )
+    {
+        backingCache.invalidate( key );
+    }
+
+    void added( long cellBytes )
+    {
+        numBytes.addAndGet( cellBytes );
+    }
+
+    void released( long cellBytes )
+    {
+        numBytes.addAndGet( -cellBytes );
+    }
+
+    @Override
+    public < T extends NativeType< T >, A extends DataAccess > VolatileCachedCellImg< T, A > createImg(
+            CellGrid grid,
+            int timepoint,
+            int setup,
+            int level,
+            CacheHints cacheHints,
+            SimpleCacheArrayLoader< A > cacheArrayLoader,
+            T type )
+    {
+        final long[] gridDimensions = grid.getGridDimensions();
+        final SimpleCacheArrayLoader< A > accountingLoader = ( gridPosition, cellDimensions ) ->
+        {
+            final A loaded = cacheArrayLoader.loadArray( gridPosition, cellDimensions );
+            final long cellBytes = getNumBytes( loaded );
+            final A access = store( loaded );
+            final Key key = new Key( timepoint, setup, level, IntervalIndexer.positionToIndex( gridPosition, gridDimensions ) );
+            budget.added( this, key, access, cellBytes );
+            // each load is a cache miss
+            NUM_LOADS.get()[ 0 ]++;
+            CELLS_LOADED.increment();
+            BYTES_LOADED.add( cellBytes );
+            return access;
+        };
+
+        return super.createImg( grid, timepoint, setup, level, cacheHints, accountingLoader, type );
+    }
+
+    /**
+     * Called with each loaded cell before it is handed to the cache.
+     *
+     * @return the access to be cached
+     */
+    protected < A extends DataAccess > A store( A access )
+    {
+        return access;
+    }
+
+    /*
+     * Only primitive arrays are counted; other accesses, e.g. the nio buffers
+     * of memory-mapped cells, do not occupy the heap. Off-heap cells are
+     * counted by the arrays that they are copied from.
+     */
+    static long getNumBytes( Object access )
+    {
+        if ( access instanceof ArrayDataAccess )
+        {
+            final Object array = ( ( ArrayDataAccess< ? > ) access ).getCurrentStorageArray();
+            return ( long ) Array.getLength( array ) * ElementSizes.getBytesPerElement( array.getClass().getComponentType() );
+        }
+
+        return 0;
+    }
+
+    /*
+     * Hands the cell requests to the fetcher threads of the given queue and
+     * counts those that do not load their cell.
+     */
+    private static class HitCountingQueue extends SharedQueue
+    {
+        private final SharedQueue delegate;
+        private final LongAdder numHits = new LongAdder();
+
+        HitCountingQueue( SharedQueue delegate )
+        {
+            super( 1, delegate.getNumPriorities() );
+            // the tasks and the frame counter are those of the delegate
+            super.shutdown();
+            this.delegate = delegate;
+        }
+
+        @Override
+        public BlockingFetchQueues< Callable< ? > > getQueue()
+        {
+            return delegate.getQueue();
+        }
+
+        @Override
+        public int getNumFetcherThreads()
+        {
+            return delegate.getNumFetcherThreads();
+        }
+
+        @Override
+        public void put( Callable< ? > task, int priority, boolean enqueueToFront )
+        {
+            delegate.put( () ->
+            {
+                final long[] numLoads = NUM_LOADS.get();
+                final long numLoadsBefore = numLoads[ 0 ];
+                final Object result = task.call();
+                if ( numLoads[ 0 ] == numLoadsBefore )
+                {
+                    numHits.increment();
+                    CELLS_HIT.increment();
+                }
+                return result;
+            }, priority, enqueueToFront );
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import bdv.img.cache.VolatileGlobalCellCache;
+import org.embl.mobie.io.metrics.Metrics;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide byte budget for the cells of all {@link BudgetedCellCache}s.
+ * <p>
+ * Each cache reports the cells that it loads. The budget counts the bytes of
+ * the cells that are resident: a cell is released when it is evicted, or when
+ * the garbage collector has cleared it from its soft-referencing cache.
+ * If the resident bytes exceed the budget, single cells are evicted, least
+ * recently loaded first and regardless of the cache they belong to, until
+ * the bytes are again below the budget. Cells that are still needed are loaded
+ * again and thereby move to the end of the eviction order.
+ * Caches and their fetch queues are never cleared as a whole.
+ * <p>
+ * The eviction order is thus first-in-first-out rather than least-recently-used:
+ * cache hits are served by the {@link VolatileGlobalCellCache} from within the
+ * random accesses of the rendering threads and never reach the budget, and
+ * intercepting them would put a synchronized update on the hottest path of the
+ * viewer. This affects the heap budget and the off-heap budget alike. A cell is
+ * only evicted after a budget's worth of other cells has been loaded after it,
+ * and the budget is meant to hold many screens of cells, so a cell that is still
+ * on screen is rarely evicted; if it is, it is loaded once more and is then the
+ * last to be evicted again. A high rate of {@code cache.evictions} relative to
+ * {@code cache.cells.loaded} means that the budget is too small for the data that
+ * is viewed, not that the order is wrong.
+ * <p>
+ * The {@link #getOffHeapInstance() off-heap budget} counts evicted cells until they are
+ * collected, because only then is their direct memory freed.
+ */
+public class CacheBudget
+{
+    private static final LongAdder EVICTIONS = Metrics.counter( "cache.evictions" );
+
+    private static final CacheBudget INSTANCE = new CacheBudget( Runtime.getRuntime().maxMemory() / 2 );
+
+    // the JVM limits direct memory to the max heap size, unless -XX:MaxDirectMemorySize is given
+    private static final CacheBudget OFF_HEAP_INSTANCE = new CacheBudget( Runtime.getRuntime().maxMemory() / 2, true );
+
+    private final Set< BudgetedCellCache > caches = Collections.newSetFromMap( new WeakHashMap<>() );
+
+    // the resident cells in load order, which is the eviction order; guarded by itself
+    private final LinkedHashSet< CellEntry > cells = new LinkedHashSet<>();
+    // the evicted cells that still occupy memory until they are collected; guarded by cells
+    private final Set< CellEntry > evicted = new HashSet<>();
+    private final ReferenceQueue< Object > collected = new ReferenceQueue<>();
+
+    private final AtomicLong numBytes = new AtomicLong();
+    private final AtomicLong numEvictedPendingBytes = new AtomicLong();
+    private final boolean releaseOnCollection;
+    private final AtomicLong numLoadedCells = new AtomicLong();
+    private final AtomicLong numEvictions = new AtomicLong();
+    private final AtomicLong numEvictedBytes = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final ExecutorService evictor = Executors.newSingleThreadExecutor( runnable ->
+    {
+        Thread thread = new Thread( runnable, "cache-budget-evictor" );
+        thread.setDaemon( true );
+        return thread;
+    } );
+
+    private volatile long maxNumBytes;
+
+    CacheBudget( long maxNumBytes )
+    {
+        this( maxNumBytes, false );
+    }
+
+    /**
+     * @param releaseOnCollection
+     *        whether evicted cells are counted until they are collected, e.g. because
+     *        their memory is only freed then, as for direct buffers; otherwise they are
+     *        released when they are evicted, as the garbage collector reclaims heap
+     *        memory on demand
+     */
+    CacheBudget( long maxNumBytes, boolean releaseOnCollection )
+    {
+        this.maxNumBytes = maxNumBytes;
+        this.releaseOnCollection = releaseOnCollection;
+    }
+
+    public static CacheBudget getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the budget of the {@link OffHeapCellCache}s
+     */
+    public static CacheBudget getOffHeapInstance()
+    {
+        return OFF_HEAP_INSTANCE;
+    }
+
+    public long getMaxNumBytes()
+    {
+        return maxNumBytes;
+    }
+
+    /**
+     * Sets the budget; the default is half of the maximum heap size.
+     */
+    public void setMaxNumBytes( long maxNumBytes )
+    {
+        this.maxNumBytes = maxNumBytes;
+        evictIfNeeded();
+    }
+
+    /**
+     * @return the bytes of the resident cells, including evicted cells that
+     *         are not yet collected if this budget releases cells on collection
+     */
+    public long getNumBytes()
+    {
+        releaseCollected();
+        return numBytes.get();
+    }
+
+    public int getNumCaches()
+    {
+        synchronized ( caches )
+        {
+            return caches.size();
+        }
+    }
+
+    public int getNumCells()
+    {
+        synchronized ( cells )
+        {
+            return cells.size();
+        }
+    }
+
+    public long getNumLoadedCells()
+    {
+        return numLoadedCells.get();
+    }
+
+    public long getNumEvictions()
+    {
+        return numEvictions.get();
+    }
+
+    public long getNumEvictedBytes()
+    {
+        return numEvictedBytes.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format( "CacheBudget: %d caches, %d cells, %d / %d MB, %d cells loaded, %d evictions (%d MB)",
+                getNumCaches(),
+                getNumCells(),
+                getNumBytes() >> 20,
+                getMaxNumBytes() >> 20,
+                getNumLoadedCells(),
+                getNumEvictions(),
+                getNumEvictedBytes() >> 20 );
+    }
+
+    void register( BudgetedCellCache cache )
+    {
+        synchronized ( caches )
+        {
+            caches.add( cache );
+        }
+    }
+
+    /**
+     * Accounts a cell that has been loaded into the cache.
+     *
+     * @param access
+     *        the access that the cache keeps for the cell; the cell is released once it is collected
+     */
+    void added( BudgetedCellCache cache, VolatileGlobalCellCache.Key key, Object access, long cellBytes )
+    {
+        releaseCollected();
+        numLoadedCells.incrementAndGet();
+        final CellEntry entry = new CellEntry( cache, key, access, cellBytes, collected );
+        synchronized ( cells )
+        {
+            cells.add( entry );
+        }
+        cache.added( cellBytes );
+        if ( numBytes.addAndGet( cellBytes ) > maxNumBytes )
+            evictIfNeeded();
+    }
+
+    /**
+     * Releases all cells of a cache that has been cleared.
+     */
+    void cleared( BudgetedCellCache cache )
+    {
+        final List< CellEntry > released = new ArrayList<>();
+        synchronized ( cells )
+        {
+            for ( Iterator< CellEntry > it = cells.iterator(); it.hasNext(); )
+            {
+                final CellEntry entry = it.next();
+                if ( entry.cache == cache )
+                {
+                    it.remove();
+                    released.add( entry );
+                }
+            }
+        }
+        released.forEach( this::release );
+    }
+
+    private void releaseCollected()
+    {
+        CellEntry entry;
+        while ( ( entry = ( CellEntry ) collected.poll() ) != null )
+        {
+            final boolean resident;
+            final boolean pending;
+            synchronized ( cells )
+            {
+                resident = cells.remove( entry );
+                pending = evicted.remove( entry );
+            }
+            if ( resident )
+                release( entry );
+            else if ( pending )
+            {
+                numEvictedPendingBytes.addAndGet( -entry.numBytes );
+                numBytes.addAndGet( -entry.numBytes );
+            }
+        }
+    }
+
+    private void release( CellEntry entry )
+    {
+        numBytes.addAndGet( -entry.numBytes );
+        entry.cache.released( entry.numBytes );
+    }
+
+    /*
+     * The bytes of the cells that can still be evicted.
+     */
+    private long getNumEvictableBytes()
+    {
+        return numBytes.get() - numEvictedPendingBytes.get();
+    }
+
+    /*
+     * Eviction is done on a separate thread, because it is triggered from
+     * within the loading of a cell, and the cache is not to be modified concurrently.
+     */
+    private void evictIfNeeded()
+    {
+        if ( getNumEvictableBytes() <= maxNumBytes || ! evicting.compareAndSet( false, true ) )
+            return;
+
+        evictor.execute( () ->
+        {
+            try
+            {
+                releaseCollected();
+                while ( getNumEvictableBytes() > maxNumBytes )
+                {
+                    final CellEntry entry;
+                    synchronized ( cells )
+                    {
+                        final Iterator< CellEntry > it = cells.iterator();
+                        if ( ! it.hasNext() )
+                            break;
+                        entry = it.next();
+                        it.remove();
+                        if ( releaseOnCollection )
+                            evicted.add( entry );
+                    }
+                    if ( releaseOnCollection )
+                    {
+                        numEvictedPendingBytes.addAndGet( entry.numBytes );
+                        entry.cache.released( entry.numBytes );
+                    }
+                    else
+                    {
+                        release( entry );
+                    }
+                    entry.cache.invalidate( entry.key );
+                    numEvictions.incrementAndGet();
+                    EVICTIONS.increment();
+                    numEvictedBytes.addAndGet( entry.numBytes );
+                }
+            }
+            finally
+            {
+                evicting.set( false );
+            }
+            // cells may have been added while evicting
+            evictIfNeeded();
+        } );
+    }
+
+    /*
+     * Weakly references the cached access of a cell, such that the cell can be released
+     * when the garbage collector has cleared it from the soft-referencing cache.
+     * Identity equality, as required for the set of resident cells.
+     */
+    private static class CellEntry extends WeakReference< Object >
+    {
+        private final BudgetedCellCache cache;
+        private final VolatileGlobalCellCache.Key key;
+        private final long numBytes;
+
+        CellEntry( BudgetedCellCache cache, VolatileGlobalCellCache.Key key, Object access, long numBytes, ReferenceQueue< Object > queue )
+        {
+            super( access, queue );
+            this.cache = cache;
+            this.key = key;
+            this.numBytes = numBytes;
+        }
+    }
+}
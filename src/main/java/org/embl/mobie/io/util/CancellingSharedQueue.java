@@ -0,0 +1,135 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import bdv.cache.SharedQueue;
+import net.imglib2.cache.queue.BlockingFetchQueues;
+import org.embl.mobie.io.metrics.Metrics;
+import org.embl.mobie.io.metrics.TimedSharedQueue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link SharedQueue} that drops the cell requests of frames that BDV no longer renders.
+ * <p>
+ * Before each frame, BDV moves the queued requests to the prefetch queue and advances
+ * the frame counter of the queue; the cells that are still visible are then requested
+ * again, tagged with the new frame. A request that is older than {@code maxFrameAge} frames
+ * when a fetcher thread takes it is thus either a duplicate or off-screen, and it is dropped
+ * instead of downloaded. Its cell stays unloaded and is requested again once it is visible.
+ * <p>
+ * Blocks that are already being downloaded are not aborted, as they end up in the cache
+ * and will be used when the user returns to that view.
+ * <p>
+ * A queue that was created elsewhere, e.g. passed in by the caller to share its fetcher
+ * threads between images, gets the same behaviour by {@link #wrap wrapping} it.
+ */
+public class CancellingSharedQueue extends TimedSharedQueue
+{
+    private static final LongAdder DROPPED = Metrics.counter( "queue.tasks.dropped" );
+
+    private final int maxFrameAge;
+
+    /**
+     * The queue whose fetcher threads run the tasks, or null if this queue runs them.
+     */
+    private final SharedQueue delegate;
+
+    public CancellingSharedQueue( int numFetcherThreads )
+    {
+        this( numFetcherThreads, 1 );
+    }
+
+    public CancellingSharedQueue( int numFetcherThreads, int numPriorities )
+    {
+        this( numFetcherThreads, numPriorities, 2 );
+    }
+
+    public CancellingSharedQueue( int numFetcherThreads, int numPriorities, int maxFrameAge )
+    {
+        super( numFetcherThreads, numPriorities );
+        this.maxFrameAge = maxFrameAge;
+        this.delegate = null;
+    }
+
+    private CancellingSharedQueue( SharedQueue delegate, int maxFrameAge )
+    {
+        super( 1, delegate.getNumPriorities() );
+        // the tasks and the frame counter are those of the delegate
+        super.shutdown();
+        this.maxFrameAge = maxFrameAge;
+        this.delegate = delegate;
+    }
+
+    /**
+     * @return the queue itself if it already drops stale requests, otherwise a queue
+     *         that drops them and hands the others to the fetcher threads of the queue;
+     *         shutting the returned queue down leaves the given queue running
+     */
+    public static SharedQueue wrap( SharedQueue queue )
+    {
+        if ( queue == null || queue instanceof CancellingSharedQueue )
+            return queue;
+
+        return new CancellingSharedQueue( queue, 2 );
+    }
+
+    @Override
+    public BlockingFetchQueues< Callable< ? > > getQueue()
+    {
+        return delegate == null ? super.getQueue() : delegate.getQueue();
+    }
+
+    @Override
+    public int getNumFetcherThreads()
+    {
+        return delegate == null ? super.getNumFetcherThreads() : delegate.getNumFetcherThreads();
+    }
+
+    @Override
+    public void put( Callable< ? > task, int priority, boolean enqueueToFront )
+    {
+        final int frame = getQueue().getCurrentFrame();
+        final Callable< ? > cancellableTask = () ->
+        {
+            if ( getQueue().getCurrentFrame() - frame > maxFrameAge )
+            {
+                DROPPED.increment();
+                return null;
+            }
+            return task.call();
+        };
+
+        if ( delegate == null )
+            super.put( cancellableTask, priority, enqueueToFront );
+        else
+            delegate.put( cancellableTask, priority, enqueueToFront );
+    }
+}
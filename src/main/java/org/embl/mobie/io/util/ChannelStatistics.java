@@ -0,0 +1,314 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import net.imglib2.type.numeric.RealType;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * The intensity range of one channel of an {@link ImagePlus}:
+ * the minimum and maximum, a histogram of {@link #NUM_BINS} bins from minimum to maximum and,
+ * as contrast limits, the values below and above which
+ * {@link SampledDisplayRange#SATURATED} of the voxels lie (half at each end).
+ * <p>
+ * The planes are added to an {@link Accumulator} one by one, such that the statistics
+ * can be gathered while the planes are read for another purpose.
+ * For 8 and 16-bit images the limits and histogram are derived from exact histograms,
+ * for other images from a stratified sample of each plane.
+ */
+public class ChannelStatistics
+{
+    public static final int NUM_BINS = 256;
+
+    private static final int SAMPLES_PER_PLANE = 10_000;
+
+    public final double min;
+    public final double max;
+    public final double start;
+    public final double end;
+
+    /**
+     * {@link #NUM_BINS} bins of equal width from {@link #min} to {@link #max};
+     * for floating point images, the counts are those of the sampled voxels.
+     */
+    public final long[] histogram;
+
+    public ChannelStatistics( double min, double max, double start, double end, long[] histogram )
+    {
+        this.min = min;
+        this.max = max;
+        this.start = start;
+        this.end = end;
+        this.histogram = histogram;
+    }
+
+    /**
+     * Reads all planes of the channel once and adds them in parallel;
+     * the planes of virtual stacks are {@link SampledDisplayRange#getProcessor read one at a time}.
+     *
+     * @param channel zero-based channel index
+     * @return the statistics, or null if the image is RGB
+     */
+    public static ChannelStatistics compute( ImagePlus imagePlus, int channel )
+    {
+        final Accumulator accumulator = Accumulator.of( imagePlus );
+        if ( accumulator == null )
+            return null;
+
+        final ImageStack stack = imagePlus.getStack();
+        final int numSlices = imagePlus.getNSlices();
+        final int numPlanes = numSlices * imagePlus.getNFrames();
+        IntStream.range( 0, numPlanes ).parallel().forEach( plane ->
+                accumulator.add( plane, SampledDisplayRange.getProcessor( stack,
+                        imagePlus.getStackIndex( channel + 1, plane % numSlices + 1, plane / numSlices + 1 ) ) ) );
+
+        return accumulator.get();
+    }
+
+    /**
+     * Computes the statistics of all voxels, e.g. of a downsampled resolution level.
+     */
+    public static ChannelStatistics compute( Iterable< ? extends RealType< ? > > voxels )
+    {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for ( RealType< ? > voxel : voxels )
+        {
+            final double value = voxel.getRealDouble();
+            if ( Double.isNaN( value ) ) continue;
+            if ( value < min ) min = value;
+            if ( value > max ) max = value;
+        }
+        if ( Double.isInfinite( min ) )
+            return new ChannelStatistics( 0, 0, 0, 0, new long[ NUM_BINS ] );
+
+        final long[] histogram = new long[ NUM_BINS ];
+        for ( RealType< ? > voxel : voxels )
+        {
+            final double value = voxel.getRealDouble();
+            if ( ! Double.isNaN( value ) )
+                histogram[ bin( value, min, max ) ]++;
+        }
+
+        final double[] limits = getLimits( histogram, min, max );
+        return new ChannelStatistics( min, max, limits[ 0 ], limits[ 1 ], histogram );
+    }
+
+    /**
+     * Gathers the statistics of a channel plane by plane; thread-safe.
+     * Planes that are added again are ignored, such that planes can be
+     * added whenever they are read.
+     */
+    public static class Accumulator
+    {
+        private final boolean integer;
+        private final long[] integerHistogram;
+        private final double[] planeMin;
+        private final double[] planeMax;
+        private final float[][] planeSamples;
+        private final BitSet added = new BitSet();
+
+        Accumulator( int bitDepth, int numPlanes )
+        {
+            integer = bitDepth == 8 || bitDepth == 16;
+            integerHistogram = integer ? new long[ 1 << bitDepth ] : null;
+            planeMin = new double[ numPlanes ];
+            planeMax = new double[ numPlanes ];
+            planeSamples = new float[ numPlanes ][];
+        }
+
+        /**
+         * @return an accumulator for one channel of the image, or null if the image is RGB
+         */
+        public static Accumulator of( ImagePlus imagePlus )
+        {
+            if ( imagePlus.getBitDepth() == 24 )
+                return null;
+
+            return new Accumulator( imagePlus.getBitDepth(), imagePlus.getNSlices() * imagePlus.getNFrames() );
+        }
+
+        /**
+         * @param plane
+         *        the zero-based index of the plane within the channel
+         */
+        public void add( int plane, ImageProcessor processor )
+        {
+            synchronized ( added )
+            {
+                if ( added.get( plane ) )
+                    return;
+                added.set( plane );
+            }
+
+            if ( integer )
+            {
+                final int[] planeHistogram = ( processor instanceof ByteProcessor || processor instanceof ShortProcessor )
+                        ? processor.getHistogram()
+                        : processor.convertToShortProcessor( false ).getHistogram();
+                synchronized ( integerHistogram )
+                {
+                    for ( int i = 0; i < planeHistogram.length; i++ )
+                        integerHistogram[ i ] += planeHistogram[ i ];
+                }
+            }
+            else
+            {
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                final int numPixels = processor.getPixelCount();
+                for ( int i = 0; i < numPixels; i++ )
+                {
+                    final float value = processor.getf( i );
+                    if ( Float.isNaN( value ) ) continue;
+                    if ( value < min ) min = value;
+                    if ( value > max ) max = value;
+                }
+                planeMin[ plane ] = min;
+                planeMax[ plane ] = max;
+                planeSamples[ plane ] = SampledDisplayRange.sample( processor, SAMPLES_PER_PLANE, new Random( plane ) );
+            }
+        }
+
+        public boolean contains( int plane )
+        {
+            synchronized ( added )
+            {
+                return added.get( plane );
+            }
+        }
+
+        public int getNumPlanes()
+        {
+            return planeMin.length;
+        }
+
+        public ChannelStatistics get()
+        {
+            return integer ? fromIntegerHistogram( integerHistogram ) : fromSamples( planeMin, planeMax, planeSamples );
+        }
+    }
+
+    private static ChannelStatistics fromIntegerHistogram( long[] integerHistogram )
+    {
+        int min = -1, max = 0;
+        for ( int i = 0; i < integerHistogram.length; i++ )
+        {
+            if ( integerHistogram[ i ] == 0 ) continue;
+            if ( min == -1 ) min = i;
+            max = i;
+        }
+        min = Math.max( min, 0 );
+
+        final long total = Arrays.stream( integerHistogram ).sum();
+        final long lowerCount = ( long ) ( SampledDisplayRange.SATURATED / 2 * total );
+        final long upperCount = ( long ) ( ( 1 - SampledDisplayRange.SATURATED / 2 ) * total );
+        final long[] histogram = new long[ NUM_BINS ];
+        int start = 0, end = 0;
+        long cumulative = 0;
+        for ( int i = min; i <= max; i++ )
+        {
+            if ( integerHistogram[ i ] == 0 ) continue;
+            histogram[ bin( i, min, max ) ] += integerHistogram[ i ];
+            if ( cumulative <= lowerCount ) start = i;
+            cumulative += integerHistogram[ i ];
+            if ( cumulative - integerHistogram[ i ] <= upperCount ) end = i;
+        }
+        if ( end <= start )
+        {
+            // e.g. a sparse mask
+            start = min;
+            end = max;
+        }
+        return new ChannelStatistics( min, max, start, end, histogram );
+    }
+
+    private static ChannelStatistics fromSamples( double[] planeMin, double[] planeMax, float[][] planeSamples )
+    {
+        final double min = Arrays.stream( planeMin ).min().orElse( 0 );
+        final double max = Arrays.stream( planeMax ).max().orElse( 0 );
+        final float[] samples = SampledDisplayRange.concatenate( planeSamples );
+        if ( samples.length == 0 || Double.isInfinite( min ) )
+            return new ChannelStatistics( 0, 0, 0, 0, new long[ NUM_BINS ] );
+
+        final long[] histogram = new long[ NUM_BINS ];
+        for ( float sample : samples )
+            if ( ! Float.isNaN( sample ) )
+                histogram[ bin( sample, min, max ) ]++;
+
+        Arrays.sort( samples );
+        double start = samples[ ( int ) ( SampledDisplayRange.SATURATED / 2 * ( samples.length - 1 ) ) ];
+        double end = samples[ ( int ) ( ( 1 - SampledDisplayRange.SATURATED / 2 ) * ( samples.length - 1 ) ) ];
+        if ( end <= start )
+        {
+            start = min;
+            end = max;
+        }
+        return new ChannelStatistics( min, max, start, end, histogram );
+    }
+
+    /*
+     * The contrast limits from a histogram, at the resolution of its bins.
+     */
+    private static double[] getLimits( long[] histogram, double min, double max )
+    {
+        final long total = Arrays.stream( histogram ).sum();
+        final long lowerCount = ( long ) ( SampledDisplayRange.SATURATED / 2 * total );
+        final long upperCount = ( long ) ( ( 1 - SampledDisplayRange.SATURATED / 2 ) * total );
+        final double binWidth = ( max - min ) / NUM_BINS;
+        int start = 0, end = NUM_BINS - 1;
+        long cumulative = 0;
+        for ( int i = 0; i < NUM_BINS; i++ )
+        {
+            if ( histogram[ i ] == 0 ) continue;
+            if ( cumulative <= lowerCount ) start = i;
+            cumulative += histogram[ i ];
+            if ( cumulative - histogram[ i ] <= upperCount ) end = i;
+        }
+        if ( end <= start )
+            return new double[]{ min, max };
+        return new double[]{ min + start * binWidth, Math.min( max, min + ( end + 1 ) * binWidth ) };
+    }
+
+    private static int bin( double value, double min, double max )
+    {
+        if ( max <= min )
+            return 0;
+        return ( int ) Math.max( 0, Math.min( NUM_BINS - 1, ( value - min ) / ( max - min ) * NUM_BINS ) );
+    }
+}
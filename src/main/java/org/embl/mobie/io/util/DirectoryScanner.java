@@ -0,0 +1,161 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the files and directories whose names match a pattern,
+ * like {@link Files#find}, but scans sub-directories in parallel and
+ * splits large directories into shards whose entries are examined in parallel.
+ * <p>
+ * Listing and stat-ing entries is I/O bound, especially on network file systems,
+ * thus the scan runs in its own pool with more threads than processors.
+ */
+public class DirectoryScanner
+{
+    private static final int SHARD_SIZE = 512;
+
+    private static final ForkJoinPool POOL = new ForkJoinPool( Math.max( 8, 2 * Runtime.getRuntime().availableProcessors() ) );
+
+    /**
+     * @return the matching paths, in no particular order
+     */
+    public static List< String > find( Path root, Pattern fileNamePattern, int maxDepth ) throws IOException
+    {
+        final ConcurrentLinkedQueue< String > paths = new ConcurrentLinkedQueue<>();
+
+        final Path rootName = root.getFileName();
+        if ( rootName != null && fileNamePattern.matcher( rootName.toString() ).matches() )
+            paths.add( root.toString() );
+
+        try
+        {
+            if ( maxDepth > 0 )
+                POOL.invoke( new DirectoryTask( root, 1, fileNamePattern, maxDepth, paths ) );
+        }
+        catch ( UncheckedIOException e )
+        {
+            throw e.getCause();
+        }
+
+        return new ArrayList<>( paths );
+    }
+
+    private static class DirectoryTask extends RecursiveAction
+    {
+        private final Path directory;
+        private final int depth;
+        private final Pattern pattern;
+        private final int maxDepth;
+        private final Collection< String > paths;
+
+        DirectoryTask( Path directory, int depth, Pattern pattern, int maxDepth, Collection< String > paths )
+        {
+            this.directory = directory;
+            this.depth = depth;
+            this.pattern = pattern;
+            this.maxDepth = maxDepth;
+            this.paths = paths;
+        }
+
+        @Override
+        protected void compute()
+        {
+            final List< Path > entries = new ArrayList<>();
+            try ( DirectoryStream< Path > stream = Files.newDirectoryStream( directory ) )
+            {
+                for ( Path entry : stream )
+                    entries.add( entry );
+            }
+            catch ( IOException e )
+            {
+                throw new UncheckedIOException( e );
+            }
+
+            final List< ShardTask > shards = new ArrayList<>();
+            for ( int i = 0; i < entries.size(); i += SHARD_SIZE )
+                shards.add( new ShardTask( entries.subList( i, Math.min( entries.size(), i + SHARD_SIZE ) ), this ) );
+            invokeAll( shards );
+        }
+    }
+
+    private static class ShardTask extends RecursiveAction
+    {
+        private final List< Path > entries;
+        private final DirectoryTask parent;
+
+        ShardTask( List< Path > entries, DirectoryTask parent )
+        {
+            this.entries = entries;
+            this.parent = parent;
+        }
+
+        @Override
+        protected void compute()
+        {
+            final Matcher matcher = parent.pattern.matcher( "" );
+            final List< DirectoryTask > subDirectories = new ArrayList<>();
+            for ( Path entry : entries )
+            {
+                final BasicFileAttributes attributes;
+                try
+                {
+                    attributes = Files.readAttributes( entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS );
+                }
+                catch ( IOException e )
+                {
+                    throw new UncheckedIOException( e );
+                }
+
+                if ( ( attributes.isRegularFile() || attributes.isDirectory() )
+                        && matcher.reset( entry.getFileName().toString() ).matches() )
+                    parent.paths.add( entry.toString() );
+
+                if ( attributes.isDirectory() && parent.depth < parent.maxDepth )
+                    subDirectories.add( new DirectoryTask( entry, parent.depth + 1, parent.pattern, parent.maxDepth, parent.paths ) );
+            }
+            invokeAll( subDirectories );
+        }
+    }
+}
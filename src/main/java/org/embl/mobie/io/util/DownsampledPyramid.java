@@ -0,0 +1,349 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import bdv.cache.SharedQueue;
+import bdv.util.volatiles.VolatileViews;
+import bdv.viewer.Source;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.Volatile;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Cast;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Downsampled resolution levels of a single-resolution 3D {@link Source},
+ * which are computed lazily per cell and cached.
+ * <p>
+ * Each level is computed from the previous level by averaging
+ * (or, for non-real types, sampling) blocks of 2 pixels along every
+ * dimension that is still large enough, such that computing a cell of
+ * a low resolution level only touches cached cells of the level above.
+ */
+public class DownsampledPyramid< T extends NumericType< T > & NativeType< T > >
+{
+    public static final int[] CELL_DIMENSIONS = { 64, 64, 64 };
+
+    /**
+     * Dimensions smaller than this are not downsampled further.
+     */
+    private static final int MIN_SIZE = 32;
+
+    /**
+     * Levels are added until the lowest resolution level fits into this size.
+     */
+    private static final int MAX_TOP_LEVEL_SIZE = 256;
+
+    /**
+     * The levels of this many timepoints are kept, the least recently used are dropped.
+     */
+    static final int MAX_NUM_TIMEPOINTS = 8;
+
+    private final Source< T > source;
+    private final SharedQueue sharedQueue;
+    private final List< long[] > factors;
+    private final Map< Integer, TimepointLevels< T > > levels =
+            new LinkedHashMap< Integer, TimepointLevels< T > >( 16, 0.75f, true )
+            {
+                @Override
+                protected boolean removeEldestEntry( Map.Entry< Integer, TimepointLevels< T > > eldest )
+                {
+                    return size() > MAX_NUM_TIMEPOINTS;
+                }
+            };
+
+    public DownsampledPyramid( Source< T > source, int timepoint )
+    {
+        this( source, timepoint, null );
+    }
+
+    /**
+     * @param sharedQueue
+     *         the queue that loads the cells of the volatile levels, may be null
+     */
+    public DownsampledPyramid( Source< T > source, int timepoint, SharedQueue sharedQueue )
+    {
+        this.source = source;
+        this.sharedQueue = sharedQueue;
+        this.factors = source.isPresent( timepoint )
+                ? proposeFactors( source.getSource( timepoint, 0 ).dimensionsAsLongArray() )
+                : proposeFactors( new long[] { 1, 1, 1 } );
+    }
+
+    public static List< long[] > proposeFactors( long[] dimensions )
+    {
+        final List< long[] > factors = new ArrayList<>();
+        long[] factor = new long[ dimensions.length ];
+        Arrays.fill( factor, 1 );
+        factors.add( factor );
+
+        while ( true )
+        {
+            final long[] next = factor.clone();
+            long maxSize = 0;
+            for ( int d = 0; d < dimensions.length; d++ )
+            {
+                final long size = ( dimensions[ d ] + factor[ d ] - 1 ) / factor[ d ];
+                maxSize = Math.max( maxSize, size );
+                if ( size >= 2 * MIN_SIZE )
+                    next[ d ] *= 2;
+            }
+
+            if ( maxSize <= MAX_TOP_LEVEL_SIZE || Arrays.equals( next, factor ) )
+                return factors;
+
+            factors.add( next );
+            factor = next;
+        }
+    }
+
+    public int getNumLevels()
+    {
+        return factors.size();
+    }
+
+    public List< long[] > getFactors()
+    {
+        return factors;
+    }
+
+    public long[] getFactors( int level )
+    {
+        return factors.get( level );
+    }
+
+    public Source< T > getSource()
+    {
+        return source;
+    }
+
+    /**
+     * @return the image of the resolution level at the timepoint,
+     *         level 0 being the image of the source
+     */
+    public RandomAccessibleInterval< T > getLevel( int timepoint, int level )
+    {
+        if ( level == 0 )
+            return source.getSource( timepoint, 0 );
+
+        // creating a level is cheap, as its cells are only computed when accessed
+        synchronized ( levels )
+        {
+            return getTimepointLevels( timepoint, level ).levels.get( level );
+        }
+    }
+
+    /**
+     * The volatile levels are cached together with the levels they wrap,
+     * such that both are dropped with their timepoint and a volatile level
+     * always shows the cells of the level returned by {@link #getLevel}.
+     *
+     * @return the volatile view of the resolution level at the timepoint,
+     *         level 0 is not downsampled and thus not supported
+     */
+    public < V extends Volatile< T > > RandomAccessibleInterval< V > getVolatileLevel( int timepoint, int level )
+    {
+        if ( level == 0 )
+            throw new IllegalArgumentException( "Level 0 is the image of the source, use its volatile source instead." );
+
+        synchronized ( levels )
+        {
+            final TimepointLevels< T > timepointLevels = getTimepointLevels( timepoint, level );
+            RandomAccessibleInterval< ? > volatileLevel = timepointLevels.volatileLevels.get( level );
+            if ( volatileLevel == null )
+            {
+                final RandomAccessibleInterval< T > blockingLevel = timepointLevels.levels.get( level );
+                volatileLevel = sharedQueue == null
+                        ? VolatileViews.wrapAsVolatile( blockingLevel )
+                        : VolatileViews.wrapAsVolatile( blockingLevel, sharedQueue );
+                timepointLevels.volatileLevels.put( level, volatileLevel );
+            }
+            return Cast.unchecked( volatileLevel );
+        }
+    }
+
+    /**
+     * @return the number of timepoints whose levels are currently kept
+     */
+    int getNumCachedTimepoints()
+    {
+        synchronized ( levels )
+        {
+            return levels.size();
+        }
+    }
+
+    // must be called while holding the lock on levels
+    private TimepointLevels< T > getTimepointLevels( int timepoint, int level )
+    {
+        TimepointLevels< T > timepointLevels = levels.get( timepoint );
+        if ( timepointLevels == null )
+        {
+            timepointLevels = new TimepointLevels<>();
+            timepointLevels.levels.add( source.getSource( timepoint, 0 ) );
+            levels.put( timepoint, timepointLevels );
+        }
+
+        final List< RandomAccessibleInterval< T > > blockingLevels = timepointLevels.levels;
+        for ( int l = blockingLevels.size(); l <= level; l++ )
+            blockingLevels.add( createLevel( blockingLevels.get( l - 1 ), l ) );
+
+        return timepointLevels;
+    }
+
+    private RandomAccessibleInterval< T > createLevel( RandomAccessibleInterval< T > previousLevel, int level )
+    {
+        final RandomAccessibleInterval< T > previous = Views.zeroMin( previousLevel );
+        final long[] previousFactors = factors.get( level - 1 );
+        final long[] levelFactors = factors.get( level );
+        final int n = previous.numDimensions();
+        final int[] relativeFactors = new int[ n ];
+        final long[] dimensions = new long[ n ];
+        for ( int d = 0; d < n; d++ )
+        {
+            relativeFactors[ d ] = ( int ) ( levelFactors[ d ] / previousFactors[ d ] );
+            dimensions[ d ] = ( previous.dimension( d ) + relativeFactors[ d ] - 1 ) / relativeFactors[ d ];
+        }
+
+        final T type = source.getType().createVariable();
+        final ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions.options()
+                .cellDimensions( CELL_DIMENSIONS )
+                .volatileAccesses( true );
+        return new ReadOnlyCachedCellImgFactory( options ).create(
+                dimensions,
+                type,
+                type instanceof RealType
+                        ? new AveragingLoader<>( previous, relativeFactors )
+                        : new SamplingLoader<>( previous, relativeFactors ) );
+    }
+
+    private static class TimepointLevels< T >
+    {
+        private final List< RandomAccessibleInterval< T > > levels = new ArrayList<>();
+        private final Map< Integer, RandomAccessibleInterval< ? > > volatileLevels = new HashMap<>();
+    }
+
+    private static class SamplingLoader< T extends NumericType< T > > implements CellLoader< T >
+    {
+        private final RandomAccessibleInterval< T > source;
+        private final int[] factors;
+
+        SamplingLoader( RandomAccessibleInterval< T > source, int[] factors )
+        {
+            this.source = source;
+            this.factors = factors;
+        }
+
+        @Override
+        public void load( SingleCellArrayImg< T, ? > cell )
+        {
+            final RandomAccess< T > access = source.randomAccess();
+            final Cursor< T > cursor = cell.localizingCursor();
+            while ( cursor.hasNext() )
+            {
+                cursor.fwd();
+                for ( int d = 0; d < factors.length; d++ )
+                    access.setPosition( cursor.getLongPosition( d ) * factors[ d ], d );
+                cursor.get().set( access.get() );
+            }
+        }
+    }
+
+    private static class AveragingLoader< T extends NumericType< T > > implements CellLoader< T >
+    {
+        private final RandomAccessibleInterval< T > source;
+        private final int[] factors;
+        private final long[] max;
+
+        AveragingLoader( RandomAccessibleInterval< T > source, int[] factors )
+        {
+            this.source = source;
+            this.factors = factors;
+            this.max = source.maxAsLongArray();
+        }
+
+        @Override
+        public void load( SingleCellArrayImg< T, ? > cell )
+        {
+            final int n = factors.length;
+            final RandomAccess< T > access = source.randomAccess();
+            final Cursor< T > cursor = cell.localizingCursor();
+            final long[] min = new long[ n ];
+            final long[] blockMax = new long[ n ];
+            final long[] position = new long[ n ];
+            while ( cursor.hasNext() )
+            {
+                cursor.fwd();
+                for ( int d = 0; d < n; d++ )
+                {
+                    min[ d ] = cursor.getLongPosition( d ) * factors[ d ];
+                    blockMax[ d ] = Math.min( min[ d ] + factors[ d ] - 1, max[ d ] );
+                }
+
+                // iterate over the block of source pixels
+                double sum = 0;
+                int count = 0;
+                System.arraycopy( min, 0, position, 0, n );
+                while ( true )
+                {
+                    access.setPosition( position );
+                    sum += ( ( RealType< ? > ) access.get() ).getRealDouble();
+                    count++;
+
+                    int d = 0;
+                    for ( ; d < n; d++ )
+                    {
+                        if ( ++position[ d ] <= blockMax[ d ] )
+                            break;
+                        position[ d ] = min[ d ];
+                    }
+                    if ( d == n )
+                        break;
+                }
+
+                ( ( RealType< ? > ) cursor.get() ).setReal( sum / count );
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import org.janelia.saalfeldlab.n5.DataType;
+
+/**
+ * The sizes of the elements of N5 data types and primitive arrays,
+ * e.g. to account the bytes of blocks and cells.
+ */
+public class ElementSizes
+{
+    public static int getBytesPerElement( DataType dataType )
+    {
+        switch ( dataType )
+        {
+            case UINT8:
+            case INT8:
+                return 1;
+            case UINT16:
+            case INT16:
+                return 2;
+            case UINT64:
+            case INT64:
+            case FLOAT64:
+                return 8;
+            default:
+                return 4;
+        }
+    }
+
+    /**
+     * @param componentType
+     *        the component type of a primitive array
+     */
+    public static int getBytesPerElement( Class< ? > componentType )
+    {
+        if ( componentType == byte.class || componentType == boolean.class ) return 1;
+        if ( componentType == short.class || componentType == char.class ) return 2;
+        if ( componentType == int.class || componentType == float.class ) return 4;
+        return 8;
+    }
+}
@@ -0,0 +1,206 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import org.embl.mobie.io.metrics.Metrics;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Exception;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Byte-bounded LRU cache of decoded blocks (HDF5 chunks) of one dataset.
+ * <p>
+ * A chunk that is shared by several cells (e.g. one 64x64x64xC chunk
+ * of an ilastik probability map serves the cells of C channels)
+ * is read and decompressed only once, also if several fetcher threads
+ * request it concurrently.
+ */
+public class HDF5ChunkCache
+{
+    private static final LongAdder HITS = Metrics.counter( "hdf5.chunks.hit" );
+    private static final LongAdder MISSES = Metrics.counter( "hdf5.chunks.miss" );
+
+    private final N5Reader n5;
+    private final String dataset;
+    private final DatasetAttributes attributes;
+    private final long maxNumBytes;
+    private final int bytesPerElement;
+
+    private final LinkedHashMap< Key, DataBlock< ? > > blocks = new LinkedHashMap<>( 16, 0.75f, true );
+    private final Map< Key, CompletableFuture< DataBlock< ? > > > loading = new ConcurrentHashMap<>();
+    private long numBytes;
+
+    public HDF5ChunkCache( N5Reader n5, String dataset, DatasetAttributes attributes, long maxNumBytes )
+    {
+        this.n5 = n5;
+        this.dataset = dataset;
+        this.attributes = attributes;
+        this.maxNumBytes = maxNumBytes;
+        this.bytesPerElement = ElementSizes.getBytesPerElement( attributes.getDataType() );
+    }
+
+    /**
+     * Proposes a cache size that holds the chunks that all fetcher threads
+     * work on plus some look-ahead, but not more than 1/16 of the heap.
+     */
+    public static long proposeNumBytes( DatasetAttributes attributes, int numFetcherThreads )
+    {
+        final long chunkBytes = Arrays.stream( attributes.getBlockSize() ).asLongStream().reduce( 1, ( a, b ) -> a * b )
+                * ElementSizes.getBytesPerElement( attributes.getDataType() );
+        final long proposed = Math.max( 64L * 1024 * 1024, 4L * Math.max( 1, numFetcherThreads ) * chunkBytes );
+        return Math.min( proposed, Runtime.getRuntime().maxMemory() / 16 );
+    }
+
+    public DatasetAttributes getAttributes()
+    {
+        return attributes;
+    }
+
+    public long getMaxNumBytes()
+    {
+        return maxNumBytes;
+    }
+
+    /**
+     * @return the block at the grid position, or null if it does not exist
+     */
+    public DataBlock< ? > get( long[] gridPosition ) throws IOException
+    {
+        final Key key = new Key( gridPosition );
+
+        synchronized ( blocks )
+        {
+            final DataBlock< ? > block = blocks.get( key );
+            if ( block != null )
+            {
+                HITS.increment();
+                return block;
+            }
+        }
+        MISSES.increment();
+
+        final CompletableFuture< DataBlock< ? > > future = new CompletableFuture<>();
+        final CompletableFuture< DataBlock< ? > > existing = loading.putIfAbsent( key, future );
+        if ( existing != null )
+            return await( existing );
+
+        try
+        {
+            final DataBlock< ? > block = n5.readBlock( dataset, attributes, gridPosition );
+            if ( block != null )
+                put( key, block );
+            future.complete( block );
+            return block;
+        }
+        catch ( N5Exception e )
+        {
+            future.completeExceptionally( e );
+            throw new IOException( e );
+        }
+        catch ( Throwable t )
+        {
+            // threads waiting for this block must not wait forever
+            future.completeExceptionally( t );
+            throw t;
+        }
+        finally
+        {
+            loading.remove( key );
+        }
+    }
+
+    private void put( Key key, DataBlock< ? > block )
+    {
+        synchronized ( blocks )
+        {
+            if ( blocks.put( key, block ) == null )
+                numBytes += ( long ) block.getNumElements() * bytesPerElement;
+
+            final Iterator< DataBlock< ? > > iterator = blocks.values().iterator();
+            while ( numBytes > maxNumBytes && blocks.size() > 1 && iterator.hasNext() )
+            {
+                numBytes -= ( long ) iterator.next().getNumElements() * bytesPerElement;
+                iterator.remove();
+            }
+        }
+    }
+
+    private static DataBlock< ? > await( CompletableFuture< DataBlock< ? > > future ) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( e );
+        }
+        catch ( ExecutionException e )
+        {
+            throw new IOException( e.getCause() );
+        }
+    }
+    }
+
+    private static final class Key
+    {
+        private final long[] gridPosition;
+        private final int hashCode;
+
+        Key( long[] gridPosition )
+        {
+            this.gridPosition = gridPosition.clone();
+            this.hashCode = Arrays.hashCode( gridPosition );
+        }
+
+        @Override
+        public boolean equals( Object o )
+        {
+            return o instanceof Key && Arrays.equals( gridPosition, ( ( Key ) o ).gridPosition );
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hashCode;
+        }
+    }
+}
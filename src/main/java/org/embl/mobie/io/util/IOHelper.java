@@ -37,9 +37,11 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -55,8 +57,13 @@ import loci.plugins.in.ImportProcess;
 import loci.plugins.in.ImporterOptions;
 import org.apache.commons.io.IOUtils;
 import org.embl.mobie.io.github.GitHubUtils;
+import org.embl.mobie.io.metrics.LatencyHistogram;
+import org.embl.mobie.io.metrics.Metrics;
+import org.embl.mobie.io.metrics.Tracing;
 
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
 import org.jetbrains.annotations.NotNull;
 
 import static org.embl.mobie.io.github.GitHubUtils.isGithub;
@@ -66,24 +73,20 @@ import static org.embl.mobie.io.util.S3Utils.selectS3PathFromDirectory;
 
 public class IOHelper {
 
+    private static final LongAdder REQUESTS = Metrics.counter( "io.requests" );
+    private static final LongAdder FAILURES = Metrics.counter( "io.failures" );
+    private static final LongAdder BYTES_READ = Metrics.counter( "io.bytes.read" );
+    private static final LatencyHistogram TIME_TO_FIRST_BYTE = Metrics.histogram( "io.time-to-first-byte" );
+    private static final LatencyHistogram RANGE_READ = Metrics.histogram( "io.range.read" );
+
     public static ResourceType getType(String uri)
     {
-        if ( ( uri.startsWith("http") && uri.contains( "s3." ) ) )
-        {
-            return IOHelper.ResourceType.S3;
-        }
-        else if ( uri.startsWith("http") && uri.contains( ".zarr" ) )
-        {
-            return IOHelper.ResourceType.S3;
-        }
-        else if ( uri.startsWith("http") )
-        {
-            return IOHelper.ResourceType.HTTP;
-        }
-        else
-        {
-            return IOHelper.ResourceType.FILE;
-        }
+        return ResourceLocation.of( uri ).getType();
+    }
+
+    public static ResourceType getType( ResourceLocation location )
+    {
+        return location.getType();
     }
 
     public static BufferedReader getReader(String path) {
@@ -105,18 +108,22 @@ public class IOHelper {
     }
 
     public static void populateFileList(File directory, String fileNameRegExp, List<File> files, boolean recursive) {
+        populateFileList(directory, Pattern.compile(fileNameRegExp), files, recursive);
+    }
+
+    public static void populateFileList(File directory, Pattern fileNamePattern, List<File> files, boolean recursive) {
 
         // Get all the files from a directory.
         File[] fList = directory.listFiles();
 
         if (fList != null) {
+            final Matcher matcher = fileNamePattern.matcher("");
             for (File file : fList) {
                 if (file.isFile()) {
-                    final Matcher matcher = Pattern.compile(fileNameRegExp).matcher(file.getName());
-                    if (matcher.matches())
+                    if (matcher.reset(file.getName()).matches())
                         files.add(file);
                 } else if (file.isDirectory() && recursive) {
-                    populateFileList(file, fileNameRegExp, files, recursive);
+                    populateFileList(file, fileNamePattern, files, recursive);
                 }
             }
         }
@@ -168,29 +175,39 @@ public class IOHelper {
     }
 
     public static String getSeparator(String uri) {
-        IOHelper.ResourceType type = getType(uri);
-        switch (type) {
-            case FILE:
-                return File.separator;
-            case HTTP:
-            case S3:
-            default:
-                return "/";
-        }
+        return ResourceLocation.of( uri ).getSeparator();
+    }
+
+    public static String getSeparator( ResourceLocation location ) {
+        return location.getSeparator();
     }
 
     public static String combinePath(String... paths) {
         final String separator = getSeparator(paths[0]);
 
-        String combined = paths[0];
+        final StringBuilder combined = new StringBuilder( paths[0] );
         for (int i = 1; i < paths.length; i++) {
-            if (combined.endsWith(separator))
-                combined = combined + paths[i];
-            else
-                combined = combined + separator + paths[i];
+            if ( ! endsWith( combined, separator ) )
+                combined.append( separator );
+            combined.append( paths[i] );
         }
 
-        return combined;
+        return combined.toString();
+    }
+
+    public static String combinePath( ResourceLocation location, String... paths ) {
+        final String[] all = new String[ paths.length + 1 ];
+        all[ 0 ] = location.getURI();
+        System.arraycopy( paths, 0, all, 1, paths.length );
+        return combinePath( all );
+    }
+
+    private static boolean endsWith( StringBuilder builder, String suffix ) {
+        final int offset = builder.length() - suffix.length();
+        if ( offset < 0 ) return false;
+        for ( int i = 0; i < suffix.length(); i++ )
+            if ( builder.charAt( offset + i ) != suffix.charAt( i ) ) return false;
+        return true;
     }
 
     public static String removeTrailingSlash(String path) {
@@ -199,22 +216,122 @@ public class IOHelper {
     }
 
     public static InputStream getInputStream(String uri) throws IOException {
-        IOHelper.ResourceType type = getType(uri);
-        switch (type) {
+        return getInputStream( ResourceLocation.of( uri ) );
+    }
+
+    public static InputStream getInputStream( ResourceLocation location ) throws IOException {
+        return getInputStream( location, null );
+    }
+
+    /**
+     * @param s3AccessAndSecretKey
+     *        credentials for S3 resources, or null to use the ones set in {@link S3Utils}
+     */
+    public static InputStream getInputStream( ResourceLocation location, String[] s3AccessAndSecretKey ) throws IOException {
+        REQUESTS.increment();
+        final long start = System.nanoTime();
+        try ( Tracing.Span span = Tracing.isEnabled() ? Tracing.span( "io.getInputStream", location.getURI() ) : null ) {
+            final InputStream inputStream = openInputStream( location, s3AccessAndSecretKey );
+            // for remote resources the response headers have arrived at this point;
+            // opening a local file says nothing about the network
+            if ( ! location.getType().equals( ResourceType.FILE ) )
+                TIME_TO_FIRST_BYTE.recordSince( start );
+            return inputStream;
+        } catch ( IOException | RuntimeException e ) {
+            FAILURES.increment();
+            throw e;
+        }
+    }
+
+    private static InputStream openInputStream( ResourceLocation location, String[] s3AccessAndSecretKey ) throws IOException {
+        final String uri = location.getURI();
+        switch (location.getType()) {
             case HTTP:
                 URL url = new URL(uri);
                 return url.openStream();
             case FILE:
                 return Files.newInputStream( new File( uri ).toPath() );
             case S3:
-                AmazonS3 s3 = S3Utils.getS3Client( uri );
-                String[] bucketAndObject = S3Utils.getBucketAndObject(uri);
-                return s3.getObject(bucketAndObject[0], bucketAndObject[1]).getObjectContent();
+                AmazonS3 s3 = S3Utils.getS3Client( location, s3AccessAndSecretKey );
+                return s3.getObject( location.getBucket(), location.getObject() ).getObjectContent();
             default:
                 throw new IOException("Could not open uri: " + uri);
         }
     }
 
+    /**
+     * Reads up to {@code length} bytes, starting at {@code offset}.
+     * For remote resources only the requested byte range is fetched.
+     *
+     * @return the bytes that were read; the array is shorter than
+     *         {@code length} if the end of the resource was reached.
+     */
+    public static byte[] readRange( ResourceLocation location, long offset, int length ) throws IOException {
+        // there is no valid byte range for zero bytes
+        if ( length == 0 )
+            return new byte[ 0 ];
+
+        REQUESTS.increment();
+        final long start = System.nanoTime();
+        try ( Tracing.Span span = Tracing.isEnabled() ? Tracing.span( "io.readRange", location.getURI() + " " + offset + "+" + length ) : null ) {
+            final byte[] bytes = fetchRange( location, offset, length );
+            RANGE_READ.recordSince( start );
+            BYTES_READ.add( bytes.length );
+            return bytes;
+        } catch ( IOException | RuntimeException e ) {
+            FAILURES.increment();
+            throw e;
+        }
+    }
+
+    private static byte[] fetchRange( ResourceLocation location, long offset, int length ) throws IOException {
+        final String uri = location.getURI();
+        switch (location.getType()) {
+            case FILE:
+                try ( RandomAccessFile file = new RandomAccessFile( uri, "r" ) ) {
+                    file.seek( offset );
+                    final byte[] bytes = new byte[ ( int ) Math.max( 0, Math.min( length, file.length() - offset ) ) ];
+                    file.readFully( bytes );
+                    return bytes;
+                }
+            case HTTP:
+                HttpURLConnection con = (HttpURLConnection) new URL(uri).openConnection();
+                try {
+                    con.setRequestProperty( "Range", "bytes=" + offset + "-" + ( offset + length - 1 ) );
+                    final int responseCode = con.getResponseCode();
+                    if ( responseCode != HttpURLConnection.HTTP_PARTIAL && responseCode != HttpURLConnection.HTTP_OK )
+                        throw new IOException( "Could not read " + uri + " (HTTP " + responseCode + ")" );
+                    try ( InputStream stream = con.getInputStream() ) {
+                        // servers that ignore the Range header send the whole resource
+                        if ( responseCode == HttpURLConnection.HTTP_OK )
+                            IOUtils.skipFully( stream, offset );
+                        return readAtMost( stream, length );
+                    }
+                } finally {
+                    con.disconnect();
+                }
+            case S3:
+                AmazonS3 s3 = S3Utils.getS3Client( location );
+                final GetObjectRequest request = new GetObjectRequest( location.getBucket(), location.getObject() )
+                        .withRange( offset, offset + length - 1 );
+                try ( S3Object object = s3.getObject( request );
+                      InputStream stream = object.getObjectContent() ) {
+                    return readAtMost( stream, length );
+                }
+            default:
+                throw new IOException("Could not read uri: " + uri);
+        }
+    }
+
+    private static byte[] readAtMost( InputStream stream, int length ) throws IOException {
+        final byte[] bytes = new byte[ length ];
+        int numRead = 0;
+        int n;
+        while ( numRead < length && ( n = stream.read( bytes, numRead, length - numRead ) ) != -1 )
+            numRead += n;
+        return numRead == length ? bytes : Arrays.copyOf( bytes, numRead );
+    }
+
     public static String read(String uri) throws IOException {
         try (final InputStream inputStream = IOHelper.getInputStream(uri)) {
             final String s = IOUtils.toString(inputStream, StandardCharsets.UTF_8.name());
@@ -240,9 +357,9 @@ public class IOHelper {
 
     // overwrite existing object
     public static void writeS3Object(String uri, String text) {
-        AmazonS3 s3 = S3Utils.getS3Client(uri);
-        String[] bucketAndObject = S3Utils.getBucketAndObject(uri);
-        s3.putObject(bucketAndObject[0], bucketAndObject[1], text);
+        final ResourceLocation location = ResourceLocation.of( uri );
+        AmazonS3 s3 = S3Utils.getS3Client( location );
+        s3.putObject( location.getBucket(), location.getObject(), text );
     }
 
     // overwrites existing file
@@ -301,8 +418,12 @@ public class IOHelper {
     }
 
     public static boolean exists(String uri) {
-        IOHelper.ResourceType type = getType(uri);
-        switch (type) {
+        return exists( ResourceLocation.of( uri ) );
+    }
+
+    public static boolean exists( ResourceLocation location ) {
+        final String uri = location.getURI();
+        switch (location.getType()) {
             case HTTP:
                 try {
                     HttpURLConnection con = (HttpURLConnection) new URL(uri).openConnection();
@@ -315,9 +436,8 @@ public class IOHelper {
             case FILE:
                 return new File(uri).exists();
             case S3:
-                AmazonS3 s3 = S3Utils.getS3Client(uri);
-                String[] bucketAndObject = S3Utils.getBucketAndObject(uri);
-                return s3.doesObjectExist(bucketAndObject[0], bucketAndObject[1]);
+                AmazonS3 s3 = S3Utils.getS3Client( location );
+                return s3.doesObjectExist( location.getBucket(), location.getObject() );
             default:
                 return false;
         }
@@ -485,14 +605,7 @@ public class IOHelper {
     {
         try
         {
-            final List< String > paths = Files.find( Paths.get( dir ), maxDepth,
-                            ( path, basicFileAttribute ) -> {
-                                final boolean isFileOrDirectory = basicFileAttribute.isRegularFile() || basicFileAttribute.isDirectory();
-                                final String fileName = path.getFileName().toString();
-                                final boolean matchesRegex = fileName.matches( regex );
-                                return isFileOrDirectory && matchesRegex;
-                            } )
-                    .map( path -> path.toString() ).collect( Collectors.toList() );
+            final List< String > paths = DirectoryScanner.find( Paths.get( dir ), Pattern.compile( regex ), maxDepth );
             Collections.sort( paths );
 
             if ( paths.size() == 0 )
@@ -510,10 +623,15 @@ public class IOHelper {
     }
 
     public static ImagePlus openWithBioFormatsFromS3( String path, int seriesIndex )
+    {
+        return openWithBioFormatsFromS3( path, seriesIndex, null );
+    }
+
+    public static ImagePlus openWithBioFormatsFromS3( String path, int seriesIndex, String[] s3AccessAndSecretKey )
     {
         try
         {
-            InputStream inputStream = getInputStream( path );
+            InputStream inputStream = getInputStream( ResourceLocation.of( path ), s3AccessAndSecretKey );
             ByteArrayOutputStream buffer = new ByteArrayOutputStream();
             int nRead;
             byte[] data = new byte[ 1024 ];
@@ -0,0 +1,103 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import bdv.util.AbstractSource;
+import bdv.util.MipmapTransforms;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A {@link Source} that serves the resolution levels of a
+ * {@link DownsampledPyramid}, using the transform of the
+ * underlying single-resolution source for level 0.
+ */
+public class MultiResolutionSource< T extends NumericType< T > > extends AbstractSource< T >
+{
+    public interface Levels< T >
+    {
+        RandomAccessibleInterval< T > getLevel( int timepoint, int level );
+    }
+
+    private final Source< ? > source;
+    private final Levels< T > levels;
+    private final AffineTransform3D[] mipmapTransforms;
+
+    public MultiResolutionSource( Source< ? > source, T type, List< long[] > factors, Levels< T > levels )
+    {
+        super( type, source.getName(), source.getVoxelDimensions() );
+        this.source = source;
+        this.levels = levels;
+        this.mipmapTransforms = new AffineTransform3D[ factors.size() ];
+        for ( int level = 0; level < mipmapTransforms.length; level++ )
+            mipmapTransforms[ level ] = MipmapTransforms.getMipmapTransformDefault(
+                    Arrays.stream( factors.get( level ) ).asDoubleStream().toArray() );
+    }
+
+    @Override
+    public boolean isPresent( int t )
+    {
+        return source.isPresent( t );
+    }
+
+    @Override
+    public int getNumMipmapLevels()
+    {
+        return mipmapTransforms.length;
+    }
+
+    @Override
+    public RandomAccessibleInterval< T > getSource( int t, int level )
+    {
+        return levels.getLevel( t, level );
+    }
+
+    @Override
+    public RealRandomAccessible< T > getInterpolatedSource( int t, int level, Interpolation method )
+    {
+        final T zero = getType().createVariable();
+        zero.setZero();
+        return Views.interpolate( Views.extendValue( getSource( t, level ), zero ), interpolators.get( method ) );
+    }
+
+    @Override
+    public void getSourceTransform( int t, int level, AffineTransform3D transform )
+    {
+        source.getSourceTransform( t, 0, transform );
+        transform.concatenate( mipmapTransforms[ level ] );
+    }
+}
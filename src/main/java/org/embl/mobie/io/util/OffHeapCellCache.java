@@ -0,0 +1,155 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import bdv.cache.SharedQueue;
+import net.imglib2.img.basictypeaccess.DataAccess;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.basictypeaccess.nio.ByteBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.DoubleBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.FloatBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.IntBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.LongBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.ShortBufferAccess;
+import net.imglib2.util.Cast;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A {@link BudgetedCellCache} that copies each loaded cell into a direct
+ * {@link ByteBuffer}, such that large caches do not add to the work of the
+ * garbage collector: only the small access objects remain on the heap.
+ * <p>
+ * The cells count against {@link CacheBudget#getOffHeapInstance()}, which evicts single
+ * cells, least recently loaded first. As the direct memory of a cell is only freed once
+ * its access object is collected, evicted cells are counted until then, and no more cells
+ * are evicted in their place. If direct memory runs short before that, the JVM triggers
+ * the collection when allocating the next buffer.
+ * For caches beyond the heap size, start the JVM with
+ * {@code -XX:MaxDirectMemorySize} and raise the off-heap budget accordingly.
+ * <p>
+ * Off-heap storage is enabled with {@link #setEnabled(boolean)} or the
+ * system property {@code mobie.io.offHeapCells=true}.
+ */
+public class OffHeapCellCache extends BudgetedCellCache
+{
+    private static volatile boolean enabled = Boolean.getBoolean( "mobie.io.offHeapCells" );
+
+    public OffHeapCellCache( SharedQueue queue )
+    {
+        this( queue, CacheBudget.getOffHeapInstance() );
+    }
+
+    public OffHeapCellCache( SharedQueue queue, CacheBudget budget )
+    {
+        super( queue, budget );
+    }
+
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    public static void setEnabled( boolean enabled )
+    {
+        OffHeapCellCache.enabled = enabled;
+    }
+
+    @Override
+    protected < A extends DataAccess > A store( A access )
+    {
+        if ( ! ( access instanceof ArrayDataAccess ) )
+            return access;
+
+        final Object array = ( ( ArrayDataAccess< ? > ) access ).getCurrentStorageArray();
+        final DataAccess bufferAccess = toBufferAccess( array );
+        return bufferAccess == null ? access : Cast.unchecked( bufferAccess );
+    }
+
+    /*
+     * @return a valid buffer access with a copy of the array,
+     *         or null for arrays that have no nio counterpart (boolean, char)
+     */
+    static DataAccess toBufferAccess( Object array )
+    {
+        if ( array instanceof byte[] )
+        {
+            final byte[] values = ( byte[] ) array;
+            final ByteBuffer buffer = allocate( values.length );
+            buffer.put( values ).rewind();
+            return new ByteBufferAccess( buffer, true );
+        }
+        else if ( array instanceof short[] )
+        {
+            final short[] values = ( short[] ) array;
+            final ByteBuffer buffer = allocate( values.length * 2L );
+            buffer.asShortBuffer().put( values );
+            return new ShortBufferAccess( buffer, true );
+        }
+        else if ( array instanceof int[] )
+        {
+            final int[] values = ( int[] ) array;
+            final ByteBuffer buffer = allocate( values.length * 4L );
+            buffer.asIntBuffer().put( values );
+            return new IntBufferAccess( buffer, true );
+        }
+        else if ( array instanceof long[] )
+        {
+            final long[] values = ( long[] ) array;
+            final ByteBuffer buffer = allocate( values.length * 8L );
+            buffer.asLongBuffer().put( values );
+            return new LongBufferAccess( buffer, true );
+        }
+        else if ( array instanceof float[] )
+        {
+            final float[] values = ( float[] ) array;
+            final ByteBuffer buffer = allocate( values.length * 4L );
+            buffer.asFloatBuffer().put( values );
+            return new FloatBufferAccess( buffer, true );
+        }
+        else if ( array instanceof double[] )
+        {
+            final double[] values = ( double[] ) array;
+            final ByteBuffer buffer = allocate( values.length * 8L );
+            buffer.asDoubleBuffer().put( values );
+            return new DoubleBufferAccess( buffer, true );
+        }
+
+        return null;
+    }
+
+    private static ByteBuffer allocate( long numBytes )
+    {
+        if ( numBytes > Integer.MAX_VALUE )
+            throw new IllegalArgumentException( "Cell too large for a ByteBuffer: " + numBytes + " bytes" );
+
+        return ByteBuffer.allocateDirect( ( int ) numBytes ).order( ByteOrder.nativeOrder() );
+    }
+}
@@ -9,17 +9,23 @@ import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.view.Views;
 
-import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class RandomAccessibleIntervalSource4D< T extends NumericType< T > > extends AbstractSource< T >
 {
-    private final RandomAccessibleInterval< T > source;
-
-    protected int currentTimePointIndex;
+    /**
+     * Number of timepoints whose views are kept, such that
+     * threads that render neighbouring timepoints do not evict each other.
+     */
+    private static final int NUM_CACHED_TIMEPOINTS = 8;
 
-    private RandomAccessibleInterval< T > currentSource;
+    private final RandomAccessibleInterval< T > source;
 
-    private final RealRandomAccessible< T >[] currentInterpolatedSources;
+    /**
+     * Immutable views of recently requested timepoints, in slot t mod {@link #NUM_CACHED_TIMEPOINTS}.
+     * Concurrent requests at worst build the same views twice.
+     */
+    private final AtomicReferenceArray< TimepointViews< T > > timepointViews = new AtomicReferenceArray<>( NUM_CACHED_TIMEPOINTS );
 
     private final AffineTransform3D sourceTransform;
 
@@ -33,26 +39,33 @@ public class RandomAccessibleIntervalSource4D< T extends NumericType< T > > exte
         super( type, name, voxelDimensions );
         this.source = img;
         this.sourceTransform = sourceTransform;
-        currentInterpolatedSources = new RealRandomAccessible[ Interpolation.values().length ];
-        loadTimepoint( 0 );
     }
 
-    private void loadTimepoint( final int timepointIndex )
+    private TimepointViews< T > getTimepointViews( final int t )
     {
-        currentTimePointIndex = timepointIndex;
-        if ( isPresent( timepointIndex ) )
-        {
-            final T zero = getType().createVariable();
-            zero.setZero();
-            currentSource = Views.hyperSlice( source, 3, timepointIndex );
-            for ( final Interpolation method : Interpolation.values() )
-                currentInterpolatedSources[ method.ordinal() ] = Views.interpolate( Views.extendValue( currentSource, zero ), interpolators.get( method ) );
-        }
-        else
-        {
-            currentSource = null;
-            Arrays.fill( currentInterpolatedSources, null );
-        }
+        final int slot = Math.floorMod( t, NUM_CACHED_TIMEPOINTS );
+        final TimepointViews< T > cached = timepointViews.get( slot );
+        if ( cached != null && cached.timepoint == t )
+            return cached;
+
+        final TimepointViews< T > views = createTimepointViews( t );
+        timepointViews.set( slot, views );
+        return views;
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private TimepointViews< T > createTimepointViews( final int t )
+    {
+        final RealRandomAccessible< T >[] interpolatedSources = new RealRandomAccessible[ Interpolation.values().length ];
+        if ( ! isPresent( t ) )
+            return new TimepointViews<>( t, null, interpolatedSources );
+
+        final T zero = getType().createVariable();
+        zero.setZero();
+        final RandomAccessibleInterval< T > timepointSource = Views.hyperSlice( source, 3, t );
+        for ( final Interpolation method : Interpolation.values() )
+            interpolatedSources[ method.ordinal() ] = Views.interpolate( Views.extendValue( timepointSource, zero ), interpolators.get( method ) );
+        return new TimepointViews<>( t, timepointSource, interpolatedSources );
     }
 
     @Override
@@ -64,22 +77,32 @@ public class RandomAccessibleIntervalSource4D< T extends NumericType< T > > exte
     @Override
     public RandomAccessibleInterval< T > getSource( final int t, final int level )
     {
-        if ( t != currentTimePointIndex )
-            loadTimepoint( t );
-        return currentSource;
+        return getTimepointViews( t ).source;
     }
 
     @Override
     public RealRandomAccessible< T > getInterpolatedSource( final int t, final int level, final Interpolation method )
     {
-        if ( t != currentTimePointIndex )
-            loadTimepoint( t );
-        return currentInterpolatedSources[ method.ordinal() ];
+        return getTimepointViews( t ).interpolatedSources[ method.ordinal() ];
     }
 
     @Override
-    public synchronized void getSourceTransform( final int t, final int level, final AffineTransform3D transform )
+    public void getSourceTransform( final int t, final int level, final AffineTransform3D transform )
     {
         transform.set( sourceTransform );
     }
+
+    private static final class TimepointViews< T >
+    {
+        private final int timepoint;
+        private final RandomAccessibleInterval< T > source;
+        private final RealRandomAccessible< T >[] interpolatedSources;
+
+        TimepointViews( final int timepoint, final RandomAccessibleInterval< T > source, final RealRandomAccessible< T >[] interpolatedSources )
+        {
+            this.timepoint = timepoint;
+            this.source = source;
+            this.interpolatedSources = interpolatedSources;
+        }
+    }
 }
@@ -0,0 +1,311 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import org.embl.mobie.io.metrics.Metrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Merges reads of nearby byte ranges of one resource into a single range read.
+ * <p>
+ * In contiguous or sharded layouts (TIFF strips, HDF5 contiguous datasets, shards),
+ * neighbouring chunks are adjacent byte ranges of one object. Ranges requested through
+ * {@link #read} are held back for {@code lingerMillis}; then the pending ranges of each
+ * resource are sorted, ranges that are at most {@code maxGap} bytes apart are merged into
+ * one {@link IOHelper#readRange} of at most {@code maxRequestLength} bytes, and the response
+ * is split again. The bytes in the gaps are read and discarded, which is cheaper than
+ * another round trip for small gaps.
+ * <p>
+ * {@link #readAll} does the same for ranges that the caller already knows, without waiting.
+ * <p>
+ * The {@link org.embl.mobie.io.tiff.TIFFPlaneReader} reads the strips of remote TIFF files
+ * with the {@link #getDefault() default} coalescer.
+ */
+public class RangeReadCoalescer
+{
+    private static final LongAdder RANGES = Metrics.counter( "io.coalescer.ranges" );
+    private static final LongAdder REQUESTS = Metrics.counter( "io.coalescer.requests" );
+
+    private static RangeReadCoalescer defaultCoalescer;
+
+    private final long maxGap;
+    private final int maxRequestLength;
+    private final long lingerMillis;
+    private final Map< String, List< Range > > pending = new HashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService readers;
+
+    // the ranges whose futures are not yet complete, such that they can be failed on shutdown
+    private final Set< Range > unfinished = ConcurrentHashMap.newKeySet();
+    private boolean isShutdown;
+
+    public RangeReadCoalescer( long maxGap, int maxRequestLength, long lingerMillis, int numThreads )
+    {
+        this.maxGap = maxGap;
+        this.maxRequestLength = maxRequestLength;
+        this.lingerMillis = lingerMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor( runnable ->
+        {
+            Thread thread = new Thread( runnable, "range-read-coalescer" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        this.readers = Executors.newFixedThreadPool( numThreads, runnable ->
+        {
+            Thread thread = new Thread( runnable, "range-read-coalescer-reader" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+    }
+
+    /**
+     * Merges ranges that are up to 64 KiB apart into requests of up to 16 MiB,
+     * holding requested ranges back for 2 ms.
+     */
+    public RangeReadCoalescer()
+    {
+        this( 64 * 1024, 16 * 1024 * 1024, 2, 8 );
+    }
+
+    /**
+     * @return a coalescer with the default settings, which is never shut down
+     */
+    public static synchronized RangeReadCoalescer getDefault()
+    {
+        if ( defaultCoalescer == null )
+            defaultCoalescer = new RangeReadCoalescer();
+        return defaultCoalescer;
+    }
+
+    /**
+     * Reads up to {@code length} bytes, starting at {@code offset}, together with
+     * nearby ranges of the same resource that are requested within the linger time.
+     */
+    public CompletableFuture< byte[] > read( ResourceLocation location, long offset, int length )
+    {
+        final Range range = newRange( location, offset, length );
+        final String key = location.getURI();
+        synchronized ( pending )
+        {
+            if ( isShutdown )
+            {
+                range.future.completeExceptionally( shutdownException() );
+                return range.future;
+            }
+
+            List< Range > ranges = pending.get( key );
+            if ( ranges == null )
+            {
+                ranges = new ArrayList<>();
+                pending.put( key, ranges );
+                scheduler.schedule( () -> flush( key ), lingerMillis, TimeUnit.MILLISECONDS );
+            }
+            ranges.add( range );
+        }
+        return range.future;
+    }
+
+    /**
+     * Reads the given ranges of one resource with as few requests as possible.
+     *
+     * @return the bytes of each range, in the order of {@code offsets}.
+     */
+    public List< byte[] > readAll( ResourceLocation location, long[] offsets, int[] lengths ) throws IOException
+    {
+        final List< Range > ranges = new ArrayList<>();
+        for ( int i = 0; i < offsets.length; i++ )
+            ranges.add( newRange( location, offsets[ i ], lengths[ i ] ) );
+
+        for ( List< Range > merged : merge( ranges ) )
+            submit( merged );
+
+        final List< byte[] > bytes = new ArrayList<>();
+        try
+        {
+            for ( Range range : ranges )
+                bytes.add( range.future.get() );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( e );
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof IOException )
+                throw ( IOException ) e.getCause();
+            throw new IOException( e.getCause() );
+        }
+        return bytes;
+    }
+
+    /**
+     * Stops reading; the reads that are not yet complete fail.
+     */
+    public void shutdown()
+    {
+        synchronized ( pending )
+        {
+            isShutdown = true;
+            pending.clear();
+        }
+        scheduler.shutdownNow();
+        readers.shutdownNow();
+
+        final IOException e = shutdownException();
+        for ( Range range : unfinished )
+            range.future.completeExceptionally( e );
+    }
+
+    private Range newRange( ResourceLocation location, long offset, int length )
+    {
+        final Range range = new Range( location, offset, length );
+        unfinished.add( range );
+        range.future.whenComplete( ( bytes, throwable ) -> unfinished.remove( range ) );
+        return range;
+    }
+
+    private void submit( List< Range > merged )
+    {
+        try
+        {
+            readers.execute( () -> readMerged( merged ) );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            final IOException shutdown = shutdownException();
+            merged.forEach( range -> range.future.completeExceptionally( shutdown ) );
+        }
+    }
+
+    private static IOException shutdownException()
+    {
+        return new IOException( "The range read coalescer is shut down" );
+    }
+
+    private void flush( String key )
+    {
+        final List< Range > ranges;
+        synchronized ( pending )
+        {
+            ranges = pending.remove( key );
+        }
+        if ( ranges == null )
+            return;
+
+        for ( List< Range > merged : merge( ranges ) )
+            submit( merged );
+    }
+
+    /**
+     * Groups the ranges, sorted by offset, into runs that can be read with one request.
+     */
+    private List< List< Range > > merge( List< Range > ranges )
+    {
+        final List< Range > sorted = new ArrayList<>( ranges );
+        sorted.sort( Comparator.comparingLong( range -> range.offset ) );
+
+        final List< List< Range > > merged = new ArrayList<>();
+        List< Range > current = null;
+        long start = 0;
+        long end = 0;
+        for ( Range range : sorted )
+        {
+            final long rangeEnd = range.offset + range.length;
+            if ( current == null
+                    || range.offset - end > maxGap
+                    || Math.max( end, rangeEnd ) - start > maxRequestLength )
+            {
+                current = new ArrayList<>();
+                merged.add( current );
+                start = range.offset;
+                end = rangeEnd;
+            }
+            current.add( range );
+            end = Math.max( end, rangeEnd );
+        }
+        return merged;
+    }
+
+    private static void readMerged( List< Range > ranges )
+    {
+        final long start = ranges.get( 0 ).offset;
+        final long end = ranges.stream().mapToLong( range -> range.offset + range.length ).max().getAsLong();
+        RANGES.add( ranges.size() );
+        REQUESTS.increment();
+        try
+        {
+            final byte[] bytes = IOHelper.readRange( ranges.get( 0 ).location, start, ( int ) ( end - start ) );
+            for ( Range range : ranges )
+            {
+                // the resource may end within the range
+                final int from = ( int ) Math.min( bytes.length, range.offset - start );
+                final int to = ( int ) Math.min( bytes.length, range.offset - start + range.length );
+                range.future.complete( Arrays.copyOfRange( bytes, from, to ) );
+            }
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            for ( Range range : ranges )
+                range.future.completeExceptionally( e );
+        }
+    }
+
+    private static class Range
+    {
+        private final ResourceLocation location;
+        private final long offset;
+        private final int length;
+        private final CompletableFuture< byte[] > future = new CompletableFuture<>();
+
+        Range( ResourceLocation location, long offset, int length )
+        {
+            this.location = location;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable, parsed representation of a resource URI.
+ * <p>
+ * The resource type, the endpoint and the S3 bucket and object key
+ * are determined once, when the location is created,
+ * such that the helpers in {@link IOHelper} and {@link S3Utils}
+ * do not need to re-split the URI string on every call.
+ * <p>
+ * Use {@link #of(String)} to obtain an interned instance.
+ */
+public final class ResourceLocation
+{
+    // bound the number of interned locations such that
+    // browsing many files does not slowly fill the heap
+    static final int MAX_NUM_INTERNED = 10_000;
+
+    // least recently used first, such that the locations in use stay interned
+    private static final Map< String, ResourceLocation > interned = new LinkedHashMap< String, ResourceLocation >( 16, 0.75f, true )
+    {
+        @Override
+        protected boolean removeEldestEntry( Map.Entry< String, ResourceLocation > eldest )
+        {
+            return size() > MAX_NUM_INTERNED;
+        }
+    };
+
+    private final String uri;
+
+    private final IOHelper.ResourceType type;
+
+    // scheme and authority, e.g. https://s3.embl.de
+    private final String endpoint;
+
+    // null if the URI does not contain a path below the endpoint
+    private final String bucket;
+
+    private final String object;
+
+    private ResourceLocation( String uri )
+    {
+        this.uri = uri;
+        this.type = parseType( uri );
+
+        // The endpoint ends before the third slash, e.g. https://s3.embl.de
+        // The bucket is the path element after the endpoint and
+        // the object key is everything after the bucket.
+        final int endpointEnd = indexOf( uri, '/', 0, 3 );
+        if ( endpointEnd == -1 )
+        {
+            endpoint = uri;
+            bucket = null;
+            object = null;
+        }
+        else
+        {
+            endpoint = uri.substring( 0, endpointEnd );
+            final int bucketEnd = uri.indexOf( '/', endpointEnd + 1 );
+            if ( bucketEnd == -1 )
+            {
+                bucket = endpointEnd + 1 < uri.length() ? uri.substring( endpointEnd + 1 ) : null;
+                object = bucket == null ? null : "";
+            }
+            else
+            {
+                bucket = uri.substring( endpointEnd + 1, bucketEnd );
+                object = stripTrailingSlashes( uri.substring( bucketEnd + 1 ) );
+            }
+        }
+    }
+
+    public static ResourceLocation of( String uri )
+    {
+        synchronized ( interned )
+        {
+            return interned.computeIfAbsent( uri, ResourceLocation::new );
+        }
+    }
+
+    public String getURI()
+    {
+        return uri;
+    }
+
+    public IOHelper.ResourceType getType()
+    {
+        return type;
+    }
+
+    public String getSeparator()
+    {
+        return type.equals( IOHelper.ResourceType.FILE ) ? File.separator : "/";
+    }
+
+    public String getEndpoint()
+    {
+        return endpoint;
+    }
+
+    public String getBucket()
+    {
+        if ( bucket == null )
+            throw new IllegalArgumentException( "No bucket in: " + uri );
+
+        return bucket;
+    }
+
+    public String getObject()
+    {
+        if ( object == null )
+            throw new IllegalArgumentException( "No object key in: " + uri );
+
+        return object;
+    }
+
+    @Override
+    public boolean equals( Object o )
+    {
+        if ( this == o )
+            return true;
+        if ( o == null || getClass() != o.getClass() )
+            return false;
+        return uri.equals( ( ( ResourceLocation ) o ).uri );
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return uri.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return uri;
+    }
+
+    private static IOHelper.ResourceType parseType( String uri )
+    {
+        if ( ! uri.startsWith( "http" ) )
+            return IOHelper.ResourceType.FILE;
+        else if ( uri.contains( "s3." ) || uri.contains( ".zarr" ) )
+            return IOHelper.ResourceType.S3;
+        else
+            return IOHelper.ResourceType.HTTP;
+    }
+
+    // index of the n-th occurrence of c, or -1
+    private static int indexOf( String string, char c, int fromIndex, int n )
+    {
+        int index = fromIndex - 1;
+        for ( int i = 0; i < n; i++ )
+        {
+            index = string.indexOf( c, index + 1 );
+            if ( index == -1 )
+                return -1;
+        }
+        return index;
+    }
+
+    private static String stripTrailingSlashes( String string )
+    {
+        int end = string.length();
+        while ( end > 0 && string.charAt( end - 1 ) == '/' )
+            end--;
+        return string.substring( 0, end );
+    }
+}
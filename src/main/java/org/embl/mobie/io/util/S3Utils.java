@@ -32,10 +32,8 @@ package org.embl.mobie.io.util;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
 
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.auth.*;
@@ -47,6 +45,8 @@ import com.amazonaws.services.s3.model.*;
 
 import com.google.api.client.http.HttpStatusCodes;
 import ij.gui.GenericDialog;
+import org.embl.mobie.io.metrics.Tracing;
+import org.janelia.saalfeldlab.n5.universe.N5Factory;
 import org.jetbrains.annotations.NotNull;
 
 public abstract class S3Utils
@@ -172,19 +172,63 @@ public abstract class S3Utils
     public static Map< String, AmazonS3 > locationToS3Client = new ConcurrentHashMap<>();
 
     public static AmazonS3 getS3Client( String uri ) {
-        final String endpoint = getEndpoint( uri );
-        String[] bucketAndObject = getBucketAndObject( uri );
-        String key = endpoint + "/" + bucketAndObject[0];
+        return getS3Client( ResourceLocation.of( uri ) );
+    }
+
+    public static AmazonS3 getS3Client( ResourceLocation location ) {
+        final String endpoint = location.getEndpoint();
+        final String bucket = location.getBucket();
+        String key = endpoint + "/" + bucket;
         if ( ! locationToS3Client.containsKey( key ) )
         {
             // It takes some time to build the client,
             // thus we cache it.
-            AmazonS3 s3Client = buildS3Client( endpoint, null, bucketAndObject[ 0 ] );
+            try ( Tracing.Span span = Tracing.span( "s3.buildClient", key ) )
+            {
+                AmazonS3 s3Client = buildS3Client( endpoint, null, bucket );
+                locationToS3Client.put( key, s3Client );
+            }
+        }
+        return locationToS3Client.get( key );
+    }
+
+    /**
+     * Returns an S3 client that uses the given credentials,
+     * or {@link #getS3Client(ResourceLocation)} if they are null.
+     */
+    public static AmazonS3 getS3Client( ResourceLocation location, String[] s3AccessAndSecretKey ) {
+        if ( s3AccessAndSecretKey == null )
+            return getS3Client( location );
+
+        final String endpoint = location.getEndpoint();
+        String key = endpoint + "/" + location.getBucket() + "/" + s3AccessAndSecretKey[ 0 ];
+        if ( ! locationToS3Client.containsKey( key ) )
+        {
+            final BasicAWSCredentials credentials = new BasicAWSCredentials( s3AccessAndSecretKey[ 0 ], s3AccessAndSecretKey[ 1 ] );
+            AmazonS3 s3Client = AmazonS3ClientBuilder
+                    .standard()
+                    .withPathStyleAccessEnabled( true )
+                    .withEndpointConfiguration( new AwsClientBuilder.EndpointConfiguration( endpoint, null ) )
+                    .withCredentials( new AWSStaticCredentialsProvider( credentials ) )
+                    .build();
             locationToS3Client.put( key, s3Client );
         }
         return locationToS3Client.get( key );
     }
 
+    /**
+     * Returns an N5Factory that uses the given credentials
+     * or, if they are null, the globally set ones.
+     */
+    public static N5Factory createN5Factory( String[] s3AccessAndSecretKey ) {
+        final String[] accessAndSecretKey = s3AccessAndSecretKey != null ? s3AccessAndSecretKey : S3Utils.s3AccessAndSecretKey;
+        final N5Factory n5Factory = new N5Factory();
+        if ( accessAndSecretKey == null )
+            return n5Factory;
+
+        return n5Factory.s3UseCredentials( new BasicAWSCredentials( accessAndSecretKey[ 0 ], accessAndSecretKey[ 1 ] ) );
+    }
+
     public static void checkCredentialsExistence( AWSCredentialsProvider credentialsProvider ) {
         try {
            credentialsProvider.getCredentials();
@@ -194,16 +238,19 @@ public abstract class S3Utils
     }
 
     public static String[] getBucketAndObject( String uri ) {
-        final String[] split = uri.split("/");
-        String bucket = split[3];
-        String object = Arrays.stream(split).skip(4).collect(Collectors.joining("/"));
-        return new String[]{bucket, object};
+        return getBucketAndObject( ResourceLocation.of( uri ) );
+    }
+
+    public static String[] getBucketAndObject( ResourceLocation location ) {
+        return new String[]{ location.getBucket(), location.getObject() };
     }
 
     public static String getEndpoint( String uri ) {
-        final String[] split = uri.split("/");
-        String endpoint = Arrays.stream(split).limit(3).collect(Collectors.joining("/"));
-        return endpoint;
+        return ResourceLocation.of( uri ).getEndpoint();
+    }
+
+    public static String getEndpoint( ResourceLocation location ) {
+        return location.getEndpoint();
     }
 
     public static String selectS3PathFromDirectory( String directory, String objectName ) throws IOException {
@@ -0,0 +1,173 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Estimates a display range of one channel of an {@link ImagePlus}
+ * from a stratified random sample of its voxels.
+ * <p>
+ * Up to {@link #MAX_NUM_PLANES} planes, evenly spread over z and t, are sampled in parallel;
+ * the planes of virtual stacks are {@link #getProcessor read one at a time}.
+ * Within each plane, one pixel is drawn at random from each cell of a regular grid.
+ * Like ImageJ's auto-contrast, {@link #SATURATED} of the samples are saturated,
+ * half at each end of the range.
+ */
+public class SampledDisplayRange
+{
+    public static final int MAX_NUM_PLANES = 32;
+
+    public static final int NUM_SAMPLES = 100_000;
+
+    public static final double SATURATED = 0.0035;
+
+    /**
+     * @param channel
+     *         zero-based channel index
+     * @return the display range { min, max }, or null if the image is RGB
+     */
+    public static double[] estimate( ImagePlus imagePlus, int channel )
+    {
+        if ( imagePlus.getType() == ImagePlus.COLOR_RGB )
+            return null;
+
+        final ImageStack stack = imagePlus.getStack();
+        final int numPlanes = imagePlus.getNSlices() * imagePlus.getNFrames();
+        final int numSampledPlanes = Math.min( numPlanes, MAX_NUM_PLANES );
+        final int samplesPerPlane = ( NUM_SAMPLES + numSampledPlanes - 1 ) / numSampledPlanes;
+
+        final float[][] planeSamples = new float[ numSampledPlanes ][];
+        IntStream.range( 0, numSampledPlanes ).parallel().forEach( i ->
+        {
+            final Random random = new Random( i );
+            // stratified over the planes: one random plane per stratum
+            final long stratumStart = ( long ) i * numPlanes / numSampledPlanes;
+            final long stratumEnd = ( long ) ( i + 1 ) * numPlanes / numSampledPlanes;
+            final int plane = ( int ) ( stratumStart + random.nextInt( ( int ) ( stratumEnd - stratumStart ) ) );
+            final int z = plane % imagePlus.getNSlices();
+            final int t = plane / imagePlus.getNSlices();
+            final ImageProcessor processor = getProcessor( stack, imagePlus.getStackIndex( channel + 1, z + 1, t + 1 ) );
+            planeSamples[ i ] = sample( processor, samplesPerPlane, random );
+        } );
+
+        final float[] samples = concatenate( planeSamples );
+        if ( samples.length == 0 )
+            return null;
+
+        Arrays.sort( samples );
+        final int lower = ( int ) ( SATURATED / 2 * ( samples.length - 1 ) );
+        final int upper = ( int ) ( ( 1 - SATURATED / 2 ) * ( samples.length - 1 ) );
+        double min = samples[ lower ];
+        double max = samples[ upper ];
+        if ( max <= min )
+        {
+            // e.g. a sparse label or mask image
+            min = samples[ 0 ];
+            max = samples[ samples.length - 1 ];
+        }
+        return new double[] { min, max };
+    }
+
+    /**
+     * Reads a plane of the stack, such that it can be called from several threads:
+     * virtual stacks, e.g. those of Bio-Formats, are not thread-safe,
+     * thus their planes are read one at a time.
+     *
+     * @param n
+     *         one-based index of the plane
+     */
+    public static ImageProcessor getProcessor( ImageStack stack, int n )
+    {
+        if ( ! stack.isVirtual() )
+            return stack.getProcessor( n );
+
+        synchronized ( stack )
+        {
+            return stack.getProcessor( n );
+        }
+    }
+
+    static float[] sample( ImageProcessor processor, int numSamples, Random random )
+    {
+        if ( processor == null || processor instanceof ColorProcessor )
+            return new float[ 0 ];
+
+        final int width = processor.getWidth();
+        final int height = processor.getHeight();
+        final long numPixels = ( long ) width * height;
+        if ( numPixels <= numSamples )
+        {
+            final float[] samples = new float[ ( int ) numPixels ];
+            for ( int i = 0; i < samples.length; i++ )
+                samples[ i ] = processor.getf( i );
+            return samples;
+        }
+
+        // a grid of square cells, each of which contributes one random pixel
+        final int cellSize = Math.max( 1, ( int ) Math.sqrt( ( double ) numPixels / numSamples ) );
+        final int numCellsX = ( width + cellSize - 1 ) / cellSize;
+        final int numCellsY = ( height + cellSize - 1 ) / cellSize;
+        final float[] samples = new float[ numCellsX * numCellsY ];
+        int i = 0;
+        for ( int cy = 0; cy < numCellsY; cy++ )
+        {
+            final int y0 = cy * cellSize;
+            final int cellHeight = Math.min( cellSize, height - y0 );
+            for ( int cx = 0; cx < numCellsX; cx++ )
+            {
+                final int x0 = cx * cellSize;
+                final int cellWidth = Math.min( cellSize, width - x0 );
+                final int x = x0 + random.nextInt( cellWidth );
+                final int y = y0 + random.nextInt( cellHeight );
+                samples[ i++ ] = processor.getf( x + y * width );
+            }
+        }
+        return samples;
+    }
+
+    static float[] concatenate( float[][] arrays )
+    {
+        final float[] concatenated = new float[ Arrays.stream( arrays ).mapToInt( a -> a.length ).sum() ];
+        int offset = 0;
+        for ( float[] array : arrays )
+        {
+            System.arraycopy( array, 0, concatenated, offset, array.length );
+            offset += array.length;
+        }
+        return concatenated;
+    }
+}
@@ -0,0 +1,335 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.util;
+
+import bdv.util.MipmapTransforms;
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import bdv.viewer.ViewerPanel;
+import bdv.viewer.ViewerState;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import org.embl.mobie.io.metrics.Metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Loads the cells that will be visible in the next timepoints while a time-lapse is played.
+ * <p>
+ * Given the current view, timepoint and playback direction, the cells of the visible part
+ * of each source are loaded, at the resolution level that BDV will render,
+ * for the next {@code numTimepointsAhead} timepoints, nearest timepoint first.
+ * The cells are loaded through the blocking (non-volatile) images of the sources, which share
+ * their cache with the volatile images that BDV renders. The bytes of the cells being loaded
+ * are capped, and each call to {@link #prefetch} (e.g. when the user scrubs to another
+ * timepoint) drops the cells of the previous call that are not yet loading.
+ * <p>
+ * Sources that are not backed by a cell image (e.g. hyperslices of a 4D N5 dataset)
+ * are touched every {@code DEFAULT_STEP} voxels, which loads each of their cells once
+ * for cell sizes of at least that many voxels.
+ */
+public class TimepointPrefetcher
+{
+    private static final LongAdder CELLS_REQUESTED = Metrics.counter( "prefetch.cells.requested" );
+    private static final LongAdder CELLS_CANCELLED = Metrics.counter( "prefetch.cells.cancelled" );
+
+    private static final int DEFAULT_STEP = 32;
+
+    private final int numTimepointsAhead;
+    private final int maxKiBInFlight;
+    private final Semaphore kiBInFlight;
+    private final AtomicLong generation = new AtomicLong();
+    private final ExecutorService scheduler;
+    private final ExecutorService loaders;
+
+    public TimepointPrefetcher( int numTimepointsAhead, long maxBytesInFlight, int numThreads )
+    {
+        this.numTimepointsAhead = numTimepointsAhead;
+        this.maxKiBInFlight = ( int ) Math.max( 1, Math.min( Integer.MAX_VALUE, maxBytesInFlight / 1024 ) );
+        this.kiBInFlight = new Semaphore( maxKiBInFlight );
+        this.scheduler = Executors.newSingleThreadExecutor( daemonThreads( "timepoint-prefetcher" ) );
+        this.loaders = Executors.newFixedThreadPool( numThreads, daemonThreads( "timepoint-prefetcher-loader" ) );
+    }
+
+    /**
+     * Prefetches 3 timepoints ahead with at most 256 MiB in flight, using 8 threads.
+     */
+    public TimepointPrefetcher()
+    {
+        this( 3, 256L * 1024 * 1024, 8 );
+    }
+
+    /**
+     * Prefetches the cells of the given sources that are visible in the screen
+     * of the given size, for the timepoints following {@code timepoint} in the given
+     * {@code direction} (+1 or -1), and cancels the pending cells of previous calls.
+     * Returns immediately; the cells are loaded in the background.
+     */
+    public void prefetch(
+            List< ? extends Source< ? > > sources,
+            AffineTransform3D viewerTransform,
+            int screenWidth,
+            int screenHeight,
+            int timepoint,
+            int numTimepoints,
+            int direction )
+    {
+        final long current = generation.incrementAndGet();
+        final AffineTransform3D transform = viewerTransform.copy();
+        final List< Source< ? > > sourceList = new ArrayList<>( sources );
+        scheduler.submit( () ->
+        {
+            for ( int i = 1; i <= numTimepointsAhead; i++ )
+            {
+                final int t = timepoint + i * Integer.signum( direction );
+                if ( t < 0 || t >= numTimepoints )
+                    return null;
+
+                for ( Source< ? > source : sourceList )
+                {
+                    if ( ! source.isPresent( t ) )
+                        continue;
+
+                    for ( CellLoad cell : getVisibleCells( source, t, transform, screenWidth, screenHeight ) )
+                        if ( ! submit( cell, current ) )
+                            return null;
+                }
+            }
+            return null;
+        } );
+    }
+
+    /**
+     * Drops all cells that are not yet loading.
+     */
+    public void cancel()
+    {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Prefetches for the visible sources of the viewer whenever its timepoint changes.
+     * The playback direction is that from the previous to the current timepoint.
+     */
+    public void install( ViewerPanel viewer )
+    {
+        final AtomicInteger previousTimepoint = new AtomicInteger( viewer.state().getCurrentTimepoint() );
+        viewer.timePointListeners().add( timepoint ->
+        {
+            final int previous = previousTimepoint.getAndSet( timepoint );
+            final ViewerState state = viewer.state().snapshot();
+            final List< Source< ? > > sources = state.getVisibleAndPresentSources().stream()
+                    .map( SourceAndConverter::getSpimSource )
+                    .collect( Collectors.toList() );
+            prefetch( sources,
+                    state.getViewerTransform(),
+                    viewer.getDisplay().getWidth(),
+                    viewer.getDisplay().getHeight(),
+                    timepoint,
+                    state.getNumTimepoints(),
+                    timepoint >= previous ? 1 : -1 );
+        } );
+    }
+
+    public void shutdown()
+    {
+        cancel();
+        scheduler.shutdownNow();
+        loaders.shutdownNow();
+    }
+
+    private boolean submit( CellLoad cell, long current ) throws InterruptedException
+    {
+        final int kiB = ( int ) Math.min( maxKiBInFlight, Math.max( 1, cell.numBytes / 1024 ) );
+        while ( ! kiBInFlight.tryAcquire( kiB, 100, TimeUnit.MILLISECONDS ) )
+            if ( generation.get() != current )
+                return false;
+
+        if ( generation.get() != current )
+        {
+            kiBInFlight.release( kiB );
+            return false;
+        }
+
+        CELLS_REQUESTED.increment();
+        loaders.submit( () ->
+        {
+            try
+            {
+                if ( generation.get() == current )
+                    cell.load.run();
+                else
+                    CELLS_CANCELLED.increment();
+            }
+            finally
+            {
+                kiBInFlight.release( kiB );
+            }
+        } );
+        return true;
+    }
+
+    /**
+     * The cells of the image of the source at the given timepoint and the level that BDV
+     * renders for the given view, which intersect the screen.
+     */
+    private static List< CellLoad > getVisibleCells(
+            Source< ? > source,
+            int timepoint,
+            AffineTransform3D viewerTransform,
+            int screenWidth,
+            int screenHeight )
+    {
+        final int level = MipmapTransforms.getBestMipMapLevel( viewerTransform, source, timepoint );
+        final RandomAccessibleInterval< ? > image = source.getSource( timepoint, level );
+        final int numDimensions = image.numDimensions();
+
+        final AffineTransform3D sourceToScreen = new AffineTransform3D();
+        source.getSourceTransform( timepoint, level, sourceToScreen );
+        sourceToScreen.preConcatenate( viewerTransform );
+
+        // the screen, one pixel thick, in voxel coordinates
+        final FinalRealInterval screen = new FinalRealInterval(
+                new double[]{ 0, 0, -1 },
+                new double[]{ screenWidth, screenHeight, 1 } );
+        final Interval bounds = Intervals.smallestContainingInterval( sourceToScreen.inverse().estimateBounds( screen ) );
+        final long[] min = new long[ numDimensions ];
+        final long[] max = new long[ numDimensions ];
+        for ( int d = 0; d < numDimensions; d++ )
+        {
+            min[ d ] = Math.max( image.min( d ), d < 3 ? bounds.min( d ) - 1 : image.min( d ) );
+            max[ d ] = Math.min( image.max( d ), d < 3 ? bounds.max( d ) + 1 : image.max( d ) );
+            if ( min[ d ] > max[ d ] )
+                return new ArrayList<>();
+        }
+
+        final List< CellLoad > cells = new ArrayList<>();
+        final long bytesPerElement = getBytesPerElement( image );
+        if ( image instanceof AbstractCellImg )
+        {
+            final AbstractCellImg< ?, ?, ?, ? > cellImg = ( AbstractCellImg< ?, ?, ?, ? > ) image;
+            final CellGrid grid = cellImg.getCellGrid();
+            final int[] cellDimensions = new int[ numDimensions ];
+            grid.cellDimensions( cellDimensions );
+            final long numBytes = Intervals.numElements( cellDimensions ) * bytesPerElement;
+            final long[] cellMin = new long[ numDimensions ];
+            final long[] cellMax = new long[ numDimensions ];
+            for ( int d = 0; d < numDimensions; d++ )
+            {
+                cellMin[ d ] = min[ d ] / cellDimensions[ d ];
+                cellMax[ d ] = max[ d ] / cellDimensions[ d ];
+            }
+            forEachPosition( cellMin, cellMax, new long[ numDimensions ], 1, cellPosition ->
+                    cells.add( new CellLoad( numBytes, () ->
+                    {
+                        final RandomAccess< ? > access = cellImg.getCells().randomAccess();
+                        access.setPosition( cellPosition );
+                        access.get();
+                    } ) ) );
+        }
+        else
+        {
+            final long numBytes = ( long ) Math.pow( DEFAULT_STEP, Math.min( 3, numDimensions ) ) * bytesPerElement;
+            forEachPosition( min, max, new long[ numDimensions ], DEFAULT_STEP, position ->
+                    cells.add( new CellLoad( numBytes, () ->
+                    {
+                        final RandomAccess< ? > access = image.randomAccess();
+                        access.setPosition( position );
+                        access.get();
+                    } ) ) );
+        }
+        return cells;
+    }
+
+    private static void forEachPosition( long[] min, long[] max, long[] position, long step, Consumer< long[] > action )
+    {
+        forEachPosition( min.length - 1, min, max, position, step, action );
+    }
+
+    private static void forEachPosition( int d, long[] min, long[] max, long[] position, long step, Consumer< long[] > action )
+    {
+        for ( position[ d ] = min[ d ]; position[ d ] <= max[ d ]; position[ d ] += step )
+        {
+            if ( d == 0 )
+                action.accept( position.clone() );
+            else
+                forEachPosition( d - 1, min, max, position, step, action );
+        }
+    }
+
+    private static long getBytesPerElement( RandomAccessibleInterval< ? > image )
+    {
+        final Object type = Util.getTypeFromInterval( image );
+        if ( type instanceof RealType )
+            return Math.max( 1, ( ( RealType< ? > ) type ).getBitsPerPixel() / 8 );
+        return 4;
+    }
+
+    private static ThreadFactory daemonThreads( String name )
+    {
+        final AtomicInteger count = new AtomicInteger();
+        return runnable ->
+        {
+            Thread thread = new Thread( runnable, name + "-" + count.getAndIncrement() );
+            thread.setDaemon( true );
+            return thread;
+        };
+    }
+
+    private static class CellLoad
+    {
+        private final long numBytes;
+        private final Runnable load;
+
+        CellLoad( long numBytes, Runnable load )
+        {
+            this.numBytes = numBytes;
+            this.load = load;
+        }
+    }
+}
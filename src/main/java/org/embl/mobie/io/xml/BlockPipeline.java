@@ -0,0 +1,346 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.xml;
+
+import org.apache.commons.io.IOUtils;
+import org.embl.mobie.io.metrics.BlockMetrics;
+import org.embl.mobie.io.util.AdaptiveConcurrencyLimiter;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockReader;
+import org.janelia.saalfeldlab.n5.GsonKeyValueN5Reader;
+import org.janelia.saalfeldlab.n5.KeyValueAccess;
+import org.janelia.saalfeldlab.n5.LockedChannel;
+import org.janelia.saalfeldlab.n5.N5Exception;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5URI;
+import org.janelia.saalfeldlab.n5.zarr.ZarrDatasetAttributes;
+import org.janelia.saalfeldlab.n5.zarr.ZarrKeyValueReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads N5 and Zarr blocks in two stages: an I/O stage that fetches the
+ * compressed bytes of a block, and a CPU stage, with one thread per core,
+ * that decompresses them.
+ * <p>
+ * With a single stage, a fetcher thread that decompresses a block does not fetch
+ * anything meanwhile, and, with many fetcher threads for a slow network,
+ * decompression oversubscribes the cores. With two stages the number of requests
+ * in flight and the number of blocks decoded in parallel are sized independently.
+ * <p>
+ * Both stages have bounded queues; if a queue is full, the calling thread
+ * runs the stage itself, which slows down the producers.
+ * <p>
+ * Readers other than the N5 and Zarr key-value readers (e.g. HDF5) are
+ * not {@link #supports(N5Reader, DatasetAttributes) supported}.
+ */
+public class BlockPipeline
+{
+    private static final int QUEUE_CAPACITY = 256;
+
+    private static BlockPipeline defaultPipeline;
+
+    private final ThreadPoolExecutor ioStage;
+    private final ThreadPoolExecutor cpuStage;
+
+    /**
+     * @param numIOThreads
+     *        the maximal number of blocks fetched concurrently
+     * @param numCPUThreads
+     *        the maximal number of blocks decoded concurrently
+     */
+    public BlockPipeline( int numIOThreads, int numCPUThreads )
+    {
+        ioStage = createStage( "block-pipeline-io", numIOThreads );
+        cpuStage = createStage( "block-pipeline-cpu", numCPUThreads );
+    }
+
+    /**
+     * @return a pipeline with one CPU thread per core and as many I/O threads as
+     *         the {@link AdaptiveConcurrencyLimiter#forEndpoint limiter of an endpoint}
+     *         lets fetch at most, such that the limiter, not the pipeline, bounds the
+     *         requests in flight of the fetcher threads; idle threads time out
+     */
+    public static synchronized BlockPipeline getDefault()
+    {
+        if ( defaultPipeline == null )
+            defaultPipeline = new BlockPipeline( AdaptiveConcurrencyLimiter.DEFAULT_MAX_LIMIT, Runtime.getRuntime().availableProcessors() );
+        return defaultPipeline;
+    }
+
+    /**
+     * @return whether {@link N5CacheArrayLoader}s use the default pipeline,
+     *         which is enabled with the system property {@code mobie.io.blockPipeline=true}
+     */
+    public static boolean isEnabledByDefault()
+    {
+        return Boolean.getBoolean( "mobie.io.blockPipeline" );
+    }
+
+    public static boolean supports( N5Reader n5, DatasetAttributes attributes )
+    {
+        if ( n5 instanceof ZarrKeyValueReader )
+            return attributes instanceof ZarrDatasetAttributes;
+
+        return n5 instanceof GsonKeyValueN5Reader;
+    }
+
+    /**
+     * Like {@link N5Reader#readBlock(String, DatasetAttributes, long...)}.
+     *
+     * @return the block, or null if it does not exist
+     */
+    public DataBlock< ? > readBlock( N5Reader n5, String pathName, DatasetAttributes attributes, long[] gridPosition ) throws IOException
+    {
+        return readBlock( n5, pathName, attributes, gridPosition, null );
+    }
+
+    /**
+     * Like {@link #readBlock(N5Reader, String, DatasetAttributes, long[])}.
+     *
+     * @param limiter
+     *        limits the concurrent fetches and receives the latency of fetching the bytes of existing blocks,
+     *        without decoding; or null
+     */
+    public DataBlock< ? > readBlock( N5Reader n5, String pathName, DatasetAttributes attributes, long[] gridPosition, AdaptiveConcurrencyLimiter limiter ) throws IOException
+    {
+        return readBlock( n5, pathName, attributes, gridPosition, limiter, null );
+    }
+
+    /**
+     * Like {@link #readBlock(N5Reader, String, DatasetAttributes, long[], AdaptiveConcurrencyLimiter)}.
+     *
+     * @param metrics
+     *        receives the times of fetching existing blocks and of decoding them; or null
+     */
+    public DataBlock< ? > readBlock( N5Reader n5, String pathName, DatasetAttributes attributes, long[] gridPosition, AdaptiveConcurrencyLimiter limiter, BlockMetrics metrics ) throws IOException
+    {
+        final CompletableFuture< DataBlock< ? > > block = new CompletableFuture<>();
+        execute( ioStage, block, () ->
+        {
+            final byte[] bytes = fetch( ( GsonKeyValueN5Reader ) n5, pathName, attributes, gridPosition, limiter, metrics );
+            if ( bytes == null )
+                block.complete( null );
+            else
+                execute( cpuStage, block, () -> block.complete( decode( n5, bytes, attributes, gridPosition, metrics ) ) );
+        } );
+
+        try
+        {
+            return block.get();
+        }
+        catch ( InterruptedException e )
+        {
+            block.cancel( true );
+            Thread.currentThread().interrupt();
+            throw new IOException( e );
+        }
+        catch ( ExecutionException e )
+        {
+            throw new IOException( e.getCause() );
+        }
+    }
+
+    /**
+     * Fetches and decodes the block on the calling thread, for loaders that
+     * limit the concurrent fetches or time fetching and decoding separately,
+     * but do not use a pipeline.
+     *
+     * @see #readBlock(N5Reader, String, DatasetAttributes, long[], AdaptiveConcurrencyLimiter, BlockMetrics)
+     */
+    static DataBlock< ? > readBlockDirectly( N5Reader n5, String pathName, DatasetAttributes attributes, long[] gridPosition, AdaptiveConcurrencyLimiter limiter, BlockMetrics metrics )
+    {
+        final byte[] bytes = fetch( ( GsonKeyValueN5Reader ) n5, pathName, attributes, gridPosition, limiter, metrics );
+        return bytes == null ? null : decode( n5, bytes, attributes, gridPosition, metrics );
+    }
+
+    /**
+     * Stops accepting blocks; reads of blocks that are not yet queued fail.
+     */
+    public void shutdown()
+    {
+        ioStage.shutdown();
+        cpuStage.shutdown();
+    }
+
+    /*
+     * Runs the task on the stage, and fails the block if the task fails or is rejected,
+     * such that the fetcher thread waiting for the block never waits forever.
+     */
+    private static void execute( ThreadPoolExecutor stage, CompletableFuture< ? > block, Runnable task )
+    {
+        try
+        {
+            stage.execute( () ->
+            {
+                try
+                {
+                    task.run();
+                }
+                catch ( Throwable t )
+                {
+                    block.completeExceptionally( t );
+                }
+            } );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            block.completeExceptionally( e );
+        }
+    }
+
+    /*
+     * Holds a permit of the limiter, if any, only while the bytes are fetched.
+     * Missing blocks return fast, thus they would distort the latency of the link
+     * and are neither reported to the limiter nor to the metrics.
+     */
+    private static byte[] fetch( GsonKeyValueN5Reader n5, String pathName, DatasetAttributes attributes, long[] gridPosition, AdaptiveConcurrencyLimiter limiter, BlockMetrics metrics )
+    {
+        if ( limiter != null )
+        {
+            try
+            {
+                limiter.acquire();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new N5Exception.N5IOException( "Interrupted while waiting to fetch a block", e );
+            }
+        }
+
+        try
+        {
+            final long start = System.nanoTime();
+            final byte[] bytes = fetch( n5, pathName, attributes, gridPosition );
+            if ( bytes != null )
+            {
+                final long nanos = System.nanoTime() - start;
+                if ( limiter != null )
+                    limiter.recordLatency( nanos );
+                if ( metrics != null )
+                    metrics.recordFetch( nanos );
+            }
+            return bytes;
+        }
+        catch ( RuntimeException e )
+        {
+            if ( limiter != null && AdaptiveConcurrencyLimiter.isThrottling( e ) )
+                limiter.recordThrottled();
+            throw e;
+        }
+        finally
+        {
+            if ( limiter != null )
+                limiter.release();
+        }
+    }
+
+    private static byte[] fetch( GsonKeyValueN5Reader n5, String pathName, DatasetAttributes attributes, long[] gridPosition )
+    {
+        final KeyValueAccess keyValueAccess = n5.getKeyValueAccess();
+        final String normalPath = N5URI.normalizeGroupPath( pathName );
+        final String path = n5 instanceof ZarrKeyValueReader
+                ? keyValueAccess.compose( n5.getURI(), normalPath, ZarrKeyValueReader.getZarrDataBlockString(
+                        gridPosition,
+                        ( ( ZarrDatasetAttributes ) attributes ).getDimensionSeparator(),
+                        ( ( ZarrDatasetAttributes ) attributes ).isRowMajor() ) )
+                : n5.absoluteDataBlockPath( normalPath, gridPosition );
+
+        try ( LockedChannel channel = keyValueAccess.lockForReading( path );
+              InputStream inputStream = channel.newInputStream() )
+        {
+            return IOUtils.toByteArray( inputStream );
+        }
+        catch ( N5Exception.N5NoSuchKeyException e )
+        {
+            return null;
+        }
+        catch ( IOException e )
+        {
+            throw new N5Exception.N5IOException( "Could not fetch block " + path, e );
+        }
+    }
+
+    private static DataBlock< ? > decode( N5Reader n5, byte[] bytes, DatasetAttributes attributes, long[] gridPosition, BlockMetrics metrics )
+    {
+        final long start = System.nanoTime();
+        try ( InputStream inputStream = new ByteArrayInputStream( bytes ) )
+        {
+            final DataBlock< ? > block = n5 instanceof ZarrKeyValueReader
+                    ? ZarrKeyValueReader.readBlock( inputStream, ( ZarrDatasetAttributes ) attributes, gridPosition )
+                    : DefaultBlockReader.readBlock( inputStream, attributes, gridPosition );
+            if ( metrics != null )
+                metrics.recordDecode( System.nanoTime() - start );
+            return block;
+        }
+        catch ( IOException e )
+        {
+            throw new N5Exception.N5IOException( "Could not decode block", e );
+        }
+    }
+
+    private static ThreadPoolExecutor createStage( String name, int numThreads )
+    {
+        final AtomicInteger threadIndex = new AtomicInteger();
+        final ThreadFactory threadFactory = runnable ->
+        {
+            final Thread thread = new Thread( runnable, name + "-" + threadIndex.getAndIncrement() );
+            thread.setDaemon( true );
+            return thread;
+        };
+
+        final ThreadPoolExecutor stage = new ThreadPoolExecutor(
+                numThreads,
+                numThreads,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>( QUEUE_CAPACITY ),
+                threadFactory,
+                ( runnable, executor ) ->
+                {
+                    // unlike CallerRunsPolicy, which silently discards tasks after shutdown
+                    if ( executor.isShutdown() )
+                        throw new RejectedExecutionException( name + " is shut down" );
+                    runnable.run();
+                } );
+        stage.allowCoreThreadTimeOut( true );
+        return stage;
+    }
+}
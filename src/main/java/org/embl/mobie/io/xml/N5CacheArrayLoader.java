@@ -0,0 +1,311 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.xml;
+
+import bdv.img.cache.SimpleCacheArrayLoader;
+import bdv.img.n5.DataTypeProperties;
+import net.imglib2.img.basictypeaccess.DataAccess;
+import net.imglib2.util.Cast;
+import net.imglib2.util.Intervals;
+import org.embl.mobie.io.metrics.BlockMetrics;
+import org.embl.mobie.io.metrics.Tracing;
+import org.embl.mobie.io.util.AdaptiveConcurrencyLimiter;
+import org.embl.mobie.io.util.ElementSizes;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Exception;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * Loads the cells of a {@link bdv.img.cache.VolatileGlobalCellCache}
+ * from the blocks of an N5 dataset.
+ * <p>
+ * Blocks that are missing or smaller than the cell (at the dataset border)
+ * are padded into an array of the cell size.
+ */
+public class N5CacheArrayLoader< T, A extends DataAccess > implements SimpleCacheArrayLoader< A >
+{
+    protected final N5Reader n5;
+    protected final String pathName;
+    protected final DatasetAttributes attributes;
+    protected final IntFunction< T > createPrimitiveArray;
+    protected final Function< T, A > createVolatileArrayAccess;
+    private BlockPipeline pipeline;
+    private AdaptiveConcurrencyLimiter limiter;
+    private BlockMetrics metrics = new BlockMetrics();
+
+    public N5CacheArrayLoader( final N5Reader n5, final String pathName, final DatasetAttributes attributes,
+                        final DataTypeProperties< ?, ?, T, A > dataTypeProperties )
+    {
+        this( n5, pathName, attributes, dataTypeProperties.createPrimitiveArray(), dataTypeProperties.createVolatileArrayAccess() );
+    }
+
+    public N5CacheArrayLoader( final N5Reader n5, final String pathName, final DatasetAttributes attributes,
+                        final IntFunction< T > createPrimitiveArray,
+                        final Function< T, A > createVolatileArrayAccess )
+    {
+        this.n5 = n5;
+        this.pathName = pathName;
+        this.attributes = attributes;
+        this.createPrimitiveArray = createPrimitiveArray;
+        this.createVolatileArrayAccess = createVolatileArrayAccess;
+        if ( BlockPipeline.isEnabledByDefault() )
+            setPipeline( BlockPipeline.getDefault() );
+    }
+
+    /**
+     * Reads the blocks with separate fetch and decode stages,
+     * if the reader is {@link BlockPipeline#supports(N5Reader, DatasetAttributes) supported}.
+     *
+     * @param pipeline
+     *        the pipeline, or null to fetch and decode on the calling thread
+     */
+    public void setPipeline( final BlockPipeline pipeline )
+    {
+        this.pipeline = pipeline != null && BlockPipeline.supports( n5, attributes ) ? pipeline : null;
+    }
+
+    /**
+     * Limits the number of concurrent fetches, e.g. of all loaders of one endpoint,
+     * whichever queue the fetcher threads belong to. A permit is only held while the
+     * bytes of a block are fetched, and only the latency of fetching existing blocks,
+     * without decoding, is reported to the limiter.
+     *
+     * @param limiter
+     *        the limiter, or null
+     */
+    public void setLimiter( final AdaptiveConcurrencyLimiter limiter )
+    {
+        this.limiter = limiter;
+    }
+
+    /**
+     * @param metrics
+     *        the metrics of the source whose blocks are read, e.g. shared by the
+     *        loaders of all resolution levels and timepoints of a view setup
+     */
+    public void setMetrics( final BlockMetrics metrics )
+    {
+        this.metrics = metrics;
+    }
+
+    public BlockMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    public static SimpleCacheArrayLoader< ? > create( final N5Reader n5, final String pathName ) throws IOException
+    {
+        final DatasetAttributes attributes;
+        try
+        {
+            attributes = n5.getDatasetAttributes( pathName );
+        }
+        catch ( final N5Exception e )
+        {
+            throw new IOException( e );
+        }
+        return new N5CacheArrayLoader<>( n5, pathName, attributes, DataTypeProperties.of( attributes.getDataType() ) );
+    }
+
+    @Override
+    public A loadArray( final long[] gridPosition, final int[] cellDimensions ) throws IOException
+    {
+        final DataBlock< T > dataBlock = readBlock( gridPosition );
+        if ( dataBlock != null && Arrays.equals( dataBlock.getSize(), cellDimensions ) )
+        {
+            return createVolatileArrayAccess.apply( dataBlock.getData() );
+        }
+        else
+        {
+            final T data = createPrimitiveArray.apply( ( int ) Intervals.numElements( cellDimensions ) );
+            if ( dataBlock != null )
+            {
+                final T src = dataBlock.getData();
+                final int[] srcDims = dataBlock.getSize();
+                final int[] pos = new int[ srcDims.length ];
+                final int[] size = new int[ srcDims.length ];
+                Arrays.setAll( size, d -> Math.min( srcDims[ d ], cellDimensions[ d ] ) );
+                ndArrayCopy( src, srcDims, pos, data, cellDimensions, pos, size );
+            }
+            return createVolatileArrayAccess.apply( data );
+        }
+    }
+
+    /**
+     * Reads the block at the given grid position of the dataset.
+     *
+     * @return the block, or null if the block does not exist
+     */
+    protected DataBlock< T > readBlock( final long[] gridPosition ) throws IOException
+    {
+        metrics.requested();
+        final long start = System.nanoTime();
+        try ( Tracing.Span span = Tracing.isEnabled() ? Tracing.span( "n5.readBlock", pathName + " " + Arrays.toString( gridPosition ) ) : null )
+        {
+            final DataBlock< T > dataBlock;
+            if ( pipeline != null )
+                dataBlock = Cast.unchecked( pipeline.readBlock( n5, pathName, attributes, gridPosition, limiter, metrics ) );
+            else if ( BlockPipeline.supports( n5, attributes ) )
+                // the same as n5.readBlock, but fetching and decoding are timed separately
+                dataBlock = Cast.unchecked( BlockPipeline.readBlockDirectly( n5, pathName, attributes, gridPosition, limiter, metrics ) );
+            else if ( limiter != null )
+                dataBlock = readBlockLimited( gridPosition );
+            else
+                dataBlock = Cast.unchecked( n5.readBlock( pathName, attributes, gridPosition ) );
+            metrics.recordRead( System.nanoTime() - start );
+            if ( dataBlock == null )
+                metrics.missing();
+            else
+                metrics.loaded( ( long ) dataBlock.getNumElements() * ElementSizes.getBytesPerElement( attributes.getDataType() ) );
+            return dataBlock;
+        }
+        catch ( final N5Exception e )
+        {
+            failed( e );
+            throw new IOException( e );
+        }
+        catch ( final IOException | RuntimeException e )
+        {
+            // e.g. an AmazonServiceException of an S3 reader
+            failed( e );
+            throw e;
+        }
+    }
+
+    private void failed( final Exception e )
+    {
+        metrics.failed( AdaptiveConcurrencyLimiter.isThrottling( e ) );
+    }
+
+    /*
+     * For readers that fetch and decode in one go, the permit is held for both
+     * and only throttling is reported.
+     */
+    private DataBlock< T > readBlockLimited( final long[] gridPosition ) throws IOException
+    {
+        try
+        {
+            limiter.acquire();
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( e );
+        }
+
+        try
+        {
+            return Cast.unchecked( n5.readBlock( pathName, attributes, gridPosition ) );
+        }
+        catch ( final RuntimeException e )
+        {
+            if ( AdaptiveConcurrencyLimiter.isThrottling( e ) )
+                limiter.recordThrottled();
+            throw e;
+        }
+        finally
+        {
+            limiter.release();
+        }
+    }
+
+    /**
+     * Like `System.arrayCopy()` but for flattened nD arrays.
+     *
+     * @param src
+     * 		the (flattened) source array.
+     * @param srcSize
+     * 		dimensions of the source array.
+     * @param srcPos
+     * 		starting position in the source array.
+     * @param dest
+     * 		the (flattened destination array.
+     * @param destSize
+     * 		dimensions of the source array.
+     * @param destPos
+     * 		starting position in the destination data.
+     * @param size
+     * 		the number of array elements to be copied.
+     */
+    // TODO: This will be moved to a new imglib2-blk artifact later. Re-use it from there when that happens.
+    public static < T > void ndArrayCopy(
+            final T src,  final int[] srcSize,  final int[] srcPos,
+            final T dest, final int[] destSize, final int[] destPos,
+            final int[] size)
+    {
+        final int n = srcSize.length;
+        int srcStride = 1;
+        int destStride = 1;
+        int srcOffset = 0;
+        int destOffset = 0;
+        for ( int d = 0; d < n; ++d )
+        {
+            srcOffset += srcStride * srcPos[ d ];
+            srcStride *= srcSize[ d ];
+            destOffset += destStride * destPos[ d ];
+            destStride *= destSize[ d ];
+        }
+        ndArrayCopy( n - 1, src, srcSize, srcOffset, dest, destSize, destOffset, size );
+    }
+
+    private static <T> void ndArrayCopy(
+            final int d,
+            final T src,  final int[] srcSize,  final int srcPos,
+            final T dest, final int[] destSize, final int destPos,
+            final int[] size)
+    {
+        if ( d == 0 )
+            System.arraycopy( src, srcPos, dest, destPos, size[ d ] );
+        else
+        {
+            int srcStride = 1;
+            int destStride = 1;
+            for ( int dd = 0; dd < d; ++dd )
+            {
+                srcStride *= srcSize[ dd ];
+                destStride *= destSize[ dd ];
+            }
+
+            final int w = size[ d ];
+            for ( int x = 0; x < w; ++x )
+            {
+                ndArrayCopy( d - 1,
+                        src, srcSize, srcPos + x * srcStride,
+                        dest, destSize, destPos + x * destStride,
+                        size );
+            }
+        }
+    }
+}
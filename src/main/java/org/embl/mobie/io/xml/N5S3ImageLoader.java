@@ -46,31 +46,29 @@ import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.*;
 import net.imglib2.cache.volatiles.CacheHints;
 import net.imglib2.cache.volatiles.LoadingStrategy;
-import net.imglib2.img.basictypeaccess.DataAccess;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.img.cell.CellImg;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.util.Cast;
-import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
+import org.embl.mobie.io.metrics.BlockMetrics;
+import org.embl.mobie.io.util.AdaptiveConcurrencyLimiter;
+import org.embl.mobie.io.util.BudgetedCellCache;
+import org.embl.mobie.io.util.CancellingSharedQueue;
 import org.embl.mobie.io.util.S3Utils;
 import org.janelia.saalfeldlab.n5.*;
-import org.janelia.saalfeldlab.n5.universe.N5Factory;
 
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.function.Function;
-import java.util.function.IntFunction;
 
 import static bdv.img.n5.BdvN5Format.*;
 
 
-public class N5S3ImageLoader< T extends NumericType< T > & NativeType< T > >  implements ViewerImgLoader, MultiResolutionImgLoader
+public class N5S3ImageLoader< T extends NumericType< T > & NativeType< T > >  implements ViewerImgLoader, MultiResolutionImgLoader, S3ImageLoader
 {
 
     private final Map< Integer, SetupImgLoader > setupImgLoaders = new HashMap<>();
@@ -87,6 +85,8 @@ public class N5S3ImageLoader< T extends NumericType< T > & NativeType< T > >  im
     private N5Reader n5;
     private int requestedNumFetcherThreads = -1;
     private SharedQueue requestedSharedQueue;
+    private String[] s3AccessAndSecretKey;
+    private AdaptiveConcurrencyLimiter limiter;
 
 
     public N5S3ImageLoader( String serviceEndpoint, String signingRegion, String bucketName, String key, AbstractSequenceDescription< ?, ?, ? > seq )
@@ -118,6 +118,12 @@ public class N5S3ImageLoader< T extends NumericType< T > & NativeType< T > >  im
         return key;
     }
 
+    @Override
+    public void setS3AccessAndSecretKey( final String[] s3AccessAndSecretKey )
+    {
+        this.s3AccessAndSecretKey = s3AccessAndSecretKey;
+    }
+
     @Override
     public synchronized void setNumFetcherThreads( final int n )
     {
@@ -142,9 +148,8 @@ public class N5S3ImageLoader< T extends NumericType< T > & NativeType< T > >  im
                 try
                 {
                     String uri = S3Utils.getURI( serviceEndpoint, bucketName, key );
-                    N5Factory n5Factory = new N5Factory();
-                    // FIXME: here the credentials S3Utils.getCredentials... are currently not used..
-                    n5 = n5Factory.openReader( uri );
+                    n5 = S3Utils.createN5Factory( s3AccessAndSecretKey ).openReader( uri );
+                    limiter = AdaptiveConcurrencyLimiter.forEndpoint( String.valueOf( serviceEndpoint ) );
 
                     int maxNumLevels = 0;
                     final List< ? extends BasicViewSetup > setups = seq.getViewSetupsOrdered();
@@ -156,13 +161,15 @@ public class N5S3ImageLoader< T extends NumericType< T > & NativeType< T > >  im
                         maxNumLevels = Math.max( maxNumLevels, setupImgLoader.numMipmapLevels() );
                     }
 
+                    // the limiter of the endpoint decides how many of the fetcher threads,
+                    // of this or an injected queue, fetch at the same time
                     final int numFetcherThreads = requestedNumFetcherThreads >= 0
                             ? requestedNumFetcherThreads
                             : Math.max( 1, Runtime.getRuntime().availableProcessors() );
                     final SharedQueue queue = requestedSharedQueue != null
                             ? requestedSharedQueue
-                            : ( createdSharedQueue = new SharedQueue( numFetcherThreads, maxNumLevels ) );
-                    cache = new VolatileGlobalCellCache( queue );
+                            : ( createdSharedQueue = new CancellingSharedQueue( numFetcherThreads, maxNumLevels ) );
+                    cache = BudgetedCellCache.create( queue );
                 }
                 catch ( final IOException e )
                 {
@@ -238,6 +245,8 @@ public class N5S3ImageLoader< T extends NumericType< T > & NativeType< T > >  im
 
         private final AffineTransform3D[] mipmapTransforms;
 
+        private final BlockMetrics metrics = new BlockMetrics();
+
         public SetupImgLoader( final int setupId, final DataTypeProperties< T, V, ?, ? > props ) throws IOException
         {
             this(setupId, props.type(), props.volatileType() );
@@ -312,6 +321,14 @@ public class N5S3ImageLoader< T extends NumericType< T > & NativeType< T > >  im
             return null;
         }
 
+        /**
+         * @return the metrics of the blocks of all levels and timepoints of this setup
+         */
+        public BlockMetrics getMetrics()
+        {
+            return metrics;
+        }
+
         /**
          * Create a {@link CellImg} backed by the cache.
          */
@@ -329,6 +346,11 @@ public class N5S3ImageLoader< T extends NumericType< T > & NativeType< T > >  im
                 final CacheHints cacheHints = new CacheHints( loadingStrategy, priority, false );
 
                 final SimpleCacheArrayLoader< ? > loader = createCacheArrayLoader( n5, pathName );
+                if ( loader instanceof N5CacheArrayLoader )
+                {
+                    ( ( N5CacheArrayLoader< ?, ? > ) loader ).setLimiter( limiter );
+                    ( ( N5CacheArrayLoader< ?, ? > ) loader ).setMetrics( metrics );
+                }
                 return cache.createImg( grid, timepointId, setupId, level, cacheHints, loader, type );
             }
             catch ( final IOException | N5Exception e )
@@ -343,143 +365,8 @@ public class N5S3ImageLoader< T extends NumericType< T > & NativeType< T > >  im
         }
     }
 
-    private static class N5CacheArrayLoader< T, A extends DataAccess > implements SimpleCacheArrayLoader< A >
-    {
-        private final N5Reader n5;
-        private final String pathName;
-        private final DatasetAttributes attributes;
-        private final IntFunction< T > createPrimitiveArray;
-        private final Function< T, A > createVolatileArrayAccess;
-
-        N5CacheArrayLoader( final N5Reader n5, final String pathName, final DatasetAttributes attributes,
-                            final DataTypeProperties< ?, ?, T, A > dataTypeProperties )
-        {
-            this( n5, pathName, attributes, dataTypeProperties.createPrimitiveArray(), dataTypeProperties.createVolatileArrayAccess() );
-        }
-
-        N5CacheArrayLoader( final N5Reader n5, final String pathName, final DatasetAttributes attributes,
-                            final IntFunction< T > createPrimitiveArray,
-                            final Function< T, A > createVolatileArrayAccess )
-        {
-            this.n5 = n5;
-            this.pathName = pathName;
-            this.attributes = attributes;
-            this.createPrimitiveArray = createPrimitiveArray;
-            this.createVolatileArrayAccess = createVolatileArrayAccess;
-        }
-
-        @Override
-        public A loadArray( final long[] gridPosition, final int[] cellDimensions ) throws IOException
-        {
-            final DataBlock< T > dataBlock;
-            try
-            {
-                dataBlock = Cast.unchecked( n5.readBlock( pathName, attributes, gridPosition ) );
-            }
-            catch ( final N5Exception e )
-            {
-                throw new IOException( e );
-            }
-            if ( dataBlock != null && Arrays.equals( dataBlock.getSize(), cellDimensions ) )
-            {
-                return createVolatileArrayAccess.apply( dataBlock.getData() );
-            }
-            else
-            {
-                final T data = createPrimitiveArray.apply( ( int ) Intervals.numElements( cellDimensions ) );
-                if ( dataBlock != null )
-                {
-                    final T src = dataBlock.getData();
-                    final int[] srcDims = dataBlock.getSize();
-                    final int[] pos = new int[ srcDims.length ];
-                    final int[] size = new int[ srcDims.length ];
-                    Arrays.setAll( size, d -> Math.min( srcDims[ d ], cellDimensions[ d ] ) );
-                    ndArrayCopy( src, srcDims, pos, data, cellDimensions, pos, size );
-                }
-                return createVolatileArrayAccess.apply( data );
-            }
-        }
-    }
-
     public static SimpleCacheArrayLoader< ? > createCacheArrayLoader( final N5Reader n5, final String pathName ) throws IOException
     {
-        final DatasetAttributes attributes;
-        try
-        {
-            attributes = n5.getDatasetAttributes( pathName );
-        }
-        catch ( final N5Exception e )
-        {
-            throw new IOException( e );
-        }
-        return new N5CacheArrayLoader<>( n5, pathName, attributes, DataTypeProperties.of( attributes.getDataType() ) );
-    }
-
-    /**
-     * Like `System.arrayCopy()` but for flattened nD arrays.
-     *
-     * @param src
-     * 		the (flattened) source array.
-     * @param srcSize
-     * 		dimensions of the source array.
-     * @param srcPos
-     * 		starting position in the source array.
-     * @param dest
-     * 		the (flattened destination array.
-     * @param destSize
-     * 		dimensions of the source array.
-     * @param destPos
-     * 		starting position in the destination data.
-     * @param size
-     * 		the number of array elements to be copied.
-     */
-    // TODO: This will be moved to a new imglib2-blk artifact later. Re-use it from there when that happens.
-    private static < T > void ndArrayCopy(
-            final T src,  final int[] srcSize,  final int[] srcPos,
-            final T dest, final int[] destSize, final int[] destPos,
-            final int[] size)
-    {
-        final int n = srcSize.length;
-        int srcStride = 1;
-        int destStride = 1;
-        int srcOffset = 0;
-        int destOffset = 0;
-        for ( int d = 0; d < n; ++d )
-        {
-            srcOffset += srcStride * srcPos[ d ];
-            srcStride *= srcSize[ d ];
-            destOffset += destStride * destPos[ d ];
-            destStride *= destSize[ d ];
-        }
-        ndArrayCopy( n - 1, src, srcSize, srcOffset, dest, destSize, destOffset, size );
-    }
-
-    private static <T> void ndArrayCopy(
-            final int d,
-            final T src,  final int[] srcSize,  final int srcPos,
-            final T dest, final int[] destSize, final int destPos,
-            final int[] size)
-    {
-        if ( d == 0 )
-            System.arraycopy( src, srcPos, dest, destPos, size[ d ] );
-        else
-        {
-            int srcStride = 1;
-            int destStride = 1;
-            for ( int dd = 0; dd < d; ++dd )
-            {
-                srcStride *= srcSize[ dd ];
-                destStride *= destSize[ dd ];
-            }
-
-            final int w = size[ d ];
-            for ( int x = 0; x < w; ++x )
-            {
-                ndArrayCopy( d - 1,
-                        src, srcSize, srcPos + x * srcStride,
-                        dest, destSize, destPos + x * destStride,
-                        size );
-            }
-        }
+        return N5CacheArrayLoader.create( n5, pathName );
     }
 }
@@ -0,0 +1,477 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.xml;
+
+import bdv.AbstractViewerSetupImgLoader;
+import bdv.ViewerImgLoader;
+import bdv.cache.CacheControl;
+import bdv.cache.SharedQueue;
+import bdv.img.cache.VolatileGlobalCellCache;
+import bdv.img.n5.DataTypeProperties;
+import bdv.util.ConstantRandomAccessible;
+import bdv.util.MipmapTransforms;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
+import mpicbg.spim.data.sequence.MultiResolutionImgLoader;
+import mpicbg.spim.data.sequence.MultiResolutionSetupImgLoader;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalDimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.Volatile;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.cache.volatiles.LoadingStrategy;
+import net.imglib2.img.basictypeaccess.DataAccess;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.Cast;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.embl.mobie.io.metrics.BlockMetrics;
+import org.embl.mobie.io.util.BudgetedCellCache;
+import org.embl.mobie.io.util.CancellingSharedQueue;
+import org.embl.mobie.io.util.S3Utils;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Exception;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads an OME-Zarr multiscale image that is referenced from a BDV XML.
+ * <p>
+ * Each view setup corresponds to one channel and each timepoint
+ * to one index along the time axis of the OME-Zarr.
+ * Cells are cached in a {@link VolatileGlobalCellCache}, like in {@link N5S3ImageLoader}.
+ */
+public class OMEZarrImageLoader implements ViewerImgLoader, MultiResolutionImgLoader
+{
+    private static final String MULTISCALES_KEY = "multiscales";
+    private static final String X = "x";
+    private static final String Y = "y";
+    private static final String Z = "z";
+    private static final String C = "c";
+    private static final String T = "t";
+
+    private final Map< Integer, SetupImgLoader< ?, ? > > setupImgLoaders = new HashMap<>();
+    private final String containerUri;
+    private final AbstractSequenceDescription< ?, ?, ? > seq;
+    private volatile boolean isOpen = false;
+    private VolatileGlobalCellCache cache;
+
+    private SharedQueue createdSharedQueue;
+    private N5Reader n5;
+    private int requestedNumFetcherThreads = -1;
+    private SharedQueue requestedSharedQueue;
+    protected String[] s3AccessAndSecretKey;
+
+    private List< String > axes;
+    private String[] datasetPaths;
+    private double[][] mipmapResolutions;
+
+    public OMEZarrImageLoader( final String containerUri, final AbstractSequenceDescription< ?, ?, ? > seq )
+    {
+        this.containerUri = containerUri;
+        this.seq = seq;
+    }
+
+    public String getContainerUri()
+    {
+        return containerUri;
+    }
+
+    @Override
+    public synchronized void setNumFetcherThreads( final int n )
+    {
+        requestedNumFetcherThreads = n;
+    }
+
+    @Override
+    public void setCreatedSharedQueue( final SharedQueue createdSharedQueue )
+    {
+        requestedSharedQueue = createdSharedQueue;
+    }
+
+    private void open()
+    {
+        if ( !isOpen )
+        {
+            synchronized ( this )
+            {
+                if ( isOpen )
+                    return;
+
+                try
+                {
+                    n5 = S3Utils.createN5Factory( s3AccessAndSecretKey ).openReader( containerUri );
+                    parseMultiscales();
+
+                    final List< ? extends BasicViewSetup > setups = seq.getViewSetupsOrdered();
+                    for ( final BasicViewSetup setup : setups )
+                    {
+                        final int setupId = setup.getId();
+                        setupImgLoaders.put( setupId, createSetupImgLoader( setupId ) );
+                    }
+
+                    final int numFetcherThreads = requestedNumFetcherThreads >= 0
+                            ? requestedNumFetcherThreads
+                            : Math.max( 1, Runtime.getRuntime().availableProcessors() );
+                    final SharedQueue queue = requestedSharedQueue != null
+                            ? requestedSharedQueue
+                            : ( createdSharedQueue = new CancellingSharedQueue( numFetcherThreads, datasetPaths.length ) );
+                    cache = BudgetedCellCache.create( queue );
+                }
+                catch ( final IOException | N5Exception e )
+                {
+                    throw new RuntimeException( e );
+                }
+
+                isOpen = true;
+            }
+        }
+    }
+
+    /**
+     * Clear the cache. Images that were obtained from
+     * this loader before {@link #close()} will stop working. Requesting images
+     * after {@link #close()} will cause the zarr to be reopened (with a
+     * new cache).
+     */
+    public void close()
+    {
+        if ( isOpen )
+        {
+            synchronized ( this )
+            {
+                if ( !isOpen )
+                    return;
+
+                if ( createdSharedQueue != null )
+                    createdSharedQueue.shutdown();
+                cache.clearCache();
+
+                createdSharedQueue = null;
+                isOpen = false;
+            }
+        }
+    }
+
+    @Override
+    public SetupImgLoader< ?, ? > getSetupImgLoader( final int setupId )
+    {
+        open();
+        return setupImgLoaders.get( setupId );
+    }
+
+    @Override
+    public CacheControl getCacheControl()
+    {
+        open();
+        return cache;
+    }
+
+    private void parseMultiscales() throws IOException
+    {
+        final JsonArray multiscales = n5.getAttribute( "/", MULTISCALES_KEY, JsonArray.class );
+        if ( multiscales == null || multiscales.size() == 0 )
+            throw new IOException( "No " + MULTISCALES_KEY + " found in " + containerUri );
+
+        final JsonObject multiscale = multiscales.get( 0 ).getAsJsonObject();
+        final JsonArray datasets = multiscale.get( "datasets" ).getAsJsonArray();
+        datasetPaths = new String[ datasets.size() ];
+        for ( int level = 0; level < datasetPaths.length; level++ )
+            datasetPaths[ level ] = datasets.get( level ).getAsJsonObject().get( "path" ).getAsString();
+
+        final long[][] dimensions = new long[ datasetPaths.length ][];
+        for ( int level = 0; level < datasetPaths.length; level++ )
+            dimensions[ level ] = n5.getDatasetAttributes( datasetPaths[ level ] ).getDimensions();
+
+        axes = parseAxes( multiscale, dimensions[ 0 ].length );
+
+        // the resolution of each level relative to the full resolution,
+        // derived from the dataset dimensions, which is
+        // what BDV expects as mipmap resolutions
+        final String[] spatialAxes = { X, Y, Z };
+        mipmapResolutions = new double[ datasetPaths.length ][ 3 ];
+        for ( int level = 0; level < datasetPaths.length; level++ )
+        {
+            for ( int d = 0; d < 3; d++ )
+            {
+                final int axis = axes.indexOf( spatialAxes[ d ] );
+                mipmapResolutions[ level ][ d ] = axis == -1
+                        ? 1.0
+                        : Math.round( ( double ) dimensions[ 0 ][ axis ] / dimensions[ level ][ axis ] );
+            }
+        }
+    }
+
+    // returns the axes in N5 (F-order), which is the reverse of the zarr (C-order) axes
+    private static List< String > parseAxes( JsonObject multiscale, int numDimensions )
+    {
+        final List< String > axes = new ArrayList<>();
+        if ( multiscale.has( "axes" ) )
+        {
+            for ( JsonElement axis : multiscale.get( "axes" ).getAsJsonArray() )
+            {
+                if ( axis.isJsonObject() )
+                    axes.add( axis.getAsJsonObject().get( "name" ).getAsString() ); // v0.4
+                else
+                    axes.add( axis.getAsString() ); // v0.3
+            }
+        }
+        else
+        {
+            // v0.1 and v0.2 are always 5D
+            axes.addAll( Arrays.asList( T, C, Z, Y, X ).subList( 5 - numDimensions, 5 ) );
+        }
+        Collections.reverse( axes );
+        return axes;
+    }
+
+    private SetupImgLoader< ?, ? > createSetupImgLoader( final int setupId ) throws IOException
+    {
+        final DataType dataType = n5.getDatasetAttributes( datasetPaths[ 0 ] ).getDataType();
+        return new SetupImgLoader<>( setupId, Cast.unchecked( DataTypeProperties.of( dataType ) ) );
+    }
+
+    public class SetupImgLoader< T extends NativeType< T >, V extends Volatile< T > & NativeType< V > >
+            extends AbstractViewerSetupImgLoader< T, V >
+            implements MultiResolutionSetupImgLoader< T >
+    {
+        private final int setupId;
+
+        private final AffineTransform3D[] mipmapTransforms;
+
+        private final BlockMetrics metrics = new BlockMetrics();
+
+        public SetupImgLoader( final int setupId, final DataTypeProperties< T, V, ?, ? > props )
+        {
+            super( props.type(), props.volatileType() );
+            this.setupId = setupId;
+            mipmapTransforms = new AffineTransform3D[ mipmapResolutions.length ];
+            for ( int level = 0; level < mipmapResolutions.length; level++ )
+                mipmapTransforms[ level ] = MipmapTransforms.getMipmapTransformDefault( mipmapResolutions[ level ] );
+        }
+
+        @Override
+        public RandomAccessibleInterval< V > getVolatileImage( final int timepointId, final int level, final ImgLoaderHint... hints )
+        {
+            return prepareCachedImage( timepointId, level, LoadingStrategy.BUDGETED, volatileType );
+        }
+
+        @Override
+        public RandomAccessibleInterval< T > getImage( final int timepointId, final int level, final ImgLoaderHint... hints )
+        {
+            return prepareCachedImage( timepointId, level, LoadingStrategy.BLOCKING, type );
+        }
+
+        @Override
+        public Dimensions getImageSize( final int timepointId, final int level )
+        {
+            try
+            {
+                final DatasetAttributes attributes = n5.getDatasetAttributes( datasetPaths[ level ] );
+                return new FinalDimensions( getSpatial( attributes.getDimensions(), 1L ) );
+            }
+            catch( final RuntimeException e )
+            {
+                return null;
+            }
+        }
+
+        @Override
+        public double[][] getMipmapResolutions()
+        {
+            return mipmapResolutions;
+        }
+
+        @Override
+        public AffineTransform3D[] getMipmapTransforms()
+        {
+            return mipmapTransforms;
+        }
+
+        @Override
+        public int numMipmapLevels()
+        {
+            return mipmapResolutions.length;
+        }
+
+        @Override
+        public VoxelDimensions getVoxelSize( final int timepointId )
+        {
+            return null;
+        }
+
+        /**
+         * @return the metrics of the blocks of all levels and timepoints of this setup
+         */
+        public BlockMetrics getMetrics()
+        {
+            return metrics;
+        }
+
+        private < T extends NativeType< T > > RandomAccessibleInterval< T > prepareCachedImage( final int timepointId, final int level, final LoadingStrategy loadingStrategy, final T type )
+        {
+            try
+            {
+                final String pathName = datasetPaths[ level ];
+                final DatasetAttributes attributes = n5.getDatasetAttributes( pathName );
+                final long[] dimensions = getSpatial( attributes.getDimensions(), 1L );
+                final int[] cellDimensions = getSpatial( attributes.getBlockSize() );
+                final CellGrid grid = new CellGrid( dimensions, cellDimensions );
+
+                final int priority = numMipmapLevels() - 1 - level;
+                final CacheHints cacheHints = new CacheHints( loadingStrategy, priority, false );
+
+                final OMEZarrCacheArrayLoader< ?, ? > loader = new OMEZarrCacheArrayLoader<>(
+                        n5, pathName, attributes,
+                        DataTypeProperties.of( attributes.getDataType() ),
+                        axes, setupId, timepointId );
+                loader.setMetrics( metrics );
+                return cache.createImg( grid, timepointId, setupId, level, cacheHints, loader, type );
+            }
+            catch ( final N5Exception e )
+            {
+                System.err.println( String.format(
+                        "image data for timepoint %d setup %d level %d could not be found.",
+                        timepointId, setupId, level ) );
+                return Views.interval(
+                        new ConstantRandomAccessible<>( type.createVariable(), 3 ),
+                        new FinalInterval( 1, 1, 1 ) );
+            }
+        }
+
+        private long[] getSpatial( long[] values, long defaultValue )
+        {
+            final long[] spatial = new long[ 3 ];
+            final String[] spatialAxes = { X, Y, Z };
+            for ( int d = 0; d < 3; d++ )
+            {
+                final int axis = axes.indexOf( spatialAxes[ d ] );
+                spatial[ d ] = axis == -1 ? defaultValue : values[ axis ];
+            }
+            return spatial;
+        }
+
+        private int[] getSpatial( int[] values )
+        {
+            return Arrays.stream( getSpatial( Arrays.stream( values ).asLongStream().toArray(), 1L ) )
+                    .mapToInt( v -> ( int ) v ).toArray();
+        }
+    }
+
+    /**
+     * Loads the 3D (x,y,z) cells of one channel and timepoint
+     * from the up to 5D blocks of an OME-Zarr array.
+     */
+    static class OMEZarrCacheArrayLoader< T, A extends DataAccess > extends N5CacheArrayLoader< T, A >
+    {
+        private final int[] spatialAxes;
+        private final int channelAxis;
+        private final int timeAxis;
+        private final int channel;
+        private final int timepoint;
+
+        OMEZarrCacheArrayLoader( final N5Reader n5, final String pathName, final DatasetAttributes attributes,
+                                 final DataTypeProperties< ?, ?, T, A > dataTypeProperties,
+                                 final List< String > axes, final int channel, final int timepoint )
+        {
+            super( n5, pathName, attributes, dataTypeProperties );
+            this.spatialAxes = new int[]{ axes.indexOf( X ), axes.indexOf( Y ), axes.indexOf( Z ) };
+            this.channelAxis = axes.indexOf( C );
+            this.timeAxis = axes.indexOf( T );
+            this.channel = channel;
+            this.timepoint = timepoint;
+        }
+
+        @Override
+        public A loadArray( final long[] gridPosition, final int[] cellDimensions ) throws IOException
+        {
+            final int[] blockSize = attributes.getBlockSize();
+            final int n = blockSize.length;
+
+            // position of the block that contains the cell
+            final long[] blockGridPosition = new long[ n ];
+            for ( int d = 0; d < 3; d++ )
+                if ( spatialAxes[ d ] != -1 )
+                    blockGridPosition[ spatialAxes[ d ] ] = gridPosition[ d ];
+            if ( channelAxis != -1 )
+                blockGridPosition[ channelAxis ] = channel / blockSize[ channelAxis ];
+            if ( timeAxis != -1 )
+                blockGridPosition[ timeAxis ] = timepoint / blockSize[ timeAxis ];
+
+            final DataBlock< T > dataBlock = readBlock( blockGridPosition );
+
+            // a block that only spans the spatial axes and matches the cell can be used directly
+            if ( dataBlock != null && n == 3 && Arrays.equals( dataBlock.getSize(), cellDimensions ) )
+                return createVolatileArrayAccess.apply( dataBlock.getData() );
+
+            final T data = createPrimitiveArray.apply( ( int ) Intervals.numElements( cellDimensions ) );
+            if ( dataBlock != null )
+            {
+                // copy the (x,y,z) sub-volume of this channel and timepoint
+                final int[] srcDims = dataBlock.getSize();
+                final int[] srcPos = new int[ n ];
+                final int[] destDims = new int[ n ];
+                final int[] size = new int[ n ];
+                Arrays.fill( destDims, 1 );
+                Arrays.fill( size, 1 );
+                for ( int d = 0; d < 3; d++ )
+                {
+                    final int axis = spatialAxes[ d ];
+                    if ( axis == -1 ) continue;
+                    destDims[ axis ] = cellDimensions[ d ];
+                    size[ axis ] = Math.min( srcDims[ axis ], cellDimensions[ d ] );
+                }
+                if ( channelAxis != -1 )
+                    srcPos[ channelAxis ] = channel % blockSize[ channelAxis ];
+                if ( timeAxis != -1 )
+                    srcPos[ timeAxis ] = timepoint % blockSize[ timeAxis ];
+
+                ndArrayCopy( dataBlock.getData(), srcDims, srcPos, data, destDims, new int[ n ], size );
+            }
+            return createVolatileArrayAccess.apply( data );
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.xml;
+
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import org.embl.mobie.io.util.S3Utils;
+
+/**
+ * Loads an OME-Zarr multiscale image from an S3 object store,
+ * as referenced from a BDV XML with the bdv.ome.zarr.s3 image loader format.
+ */
+public class OMEZarrS3ImageLoader extends OMEZarrImageLoader implements S3ImageLoader
+{
+    private final String serviceEndpoint;
+    private final String signingRegion;
+    private final String bucketName;
+    private final String key;
+
+    public OMEZarrS3ImageLoader( String serviceEndpoint, String signingRegion, String bucketName, String key, AbstractSequenceDescription< ?, ?, ? > seq )
+    {
+        super( S3Utils.getURI( serviceEndpoint, bucketName, key ), seq );
+        this.serviceEndpoint = serviceEndpoint;
+        this.signingRegion = signingRegion;
+        this.bucketName = bucketName;
+        this.key = key;
+    }
+
+    public String getServiceEndpoint()
+    {
+        return serviceEndpoint;
+    }
+
+    public String getSigningRegion()
+    {
+        return signingRegion;
+    }
+
+    public String getBucketName()
+    {
+        return bucketName;
+    }
+
+    public String getKey()
+    {
+        return key;
+    }
+
+    @Override
+    public void setS3AccessAndSecretKey( final String[] s3AccessAndSecretKey )
+    {
+        this.s3AccessAndSecretKey = s3AccessAndSecretKey;
+    }
+}
@@ -0,0 +1,69 @@
+/*-
+ * #%L
+ * Readers and writers for image data in MoBIE projects
+ * %%
+ * Copyright (C) 2021 - 2023 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.embl.mobie.io.xml;
+
+import mpicbg.spim.data.XmlHelpers;
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.generic.sequence.ImgLoaderIo;
+import mpicbg.spim.data.generic.sequence.XmlIoBasicImgLoader;
+import org.jdom2.Element;
+
+import java.io.File;
+
+import static mpicbg.spim.data.XmlKeys.IMGLOADER_FORMAT_ATTRIBUTE_NAME;
+import static org.embl.mobie.io.xml.XmlIoN5S3ImageLoader.BUCKET_NAME;
+import static org.embl.mobie.io.xml.XmlIoN5S3ImageLoader.KEY;
+import static org.embl.mobie.io.xml.XmlIoN5S3ImageLoader.SERVICE_ENDPOINT;
+import static org.embl.mobie.io.xml.XmlIoN5S3ImageLoader.SIGNING_REGION;
+
+// the custom xml fields are identical to bdv.n5.s3
+@ImgLoaderIo(format = "bdv.ome.zarr.s3", type = OMEZarrS3ImageLoader.class)
+public class XmlIoOMEZarrS3ImageLoader implements XmlIoBasicImgLoader<OMEZarrS3ImageLoader> {
+
+    @Override
+    public Element toXml(final OMEZarrS3ImageLoader imgLoader, final File basePath) {
+        final Element elem = new Element("ImageLoader");
+        elem.setAttribute(IMGLOADER_FORMAT_ATTRIBUTE_NAME, "bdv.ome.zarr.s3");
+        elem.addContent(new Element(KEY).addContent(imgLoader.getKey()));
+        elem.addContent(new Element(SIGNING_REGION).addContent(imgLoader.getSigningRegion()));
+        elem.addContent(new Element(SERVICE_ENDPOINT).addContent(imgLoader.getServiceEndpoint()));
+        elem.addContent(new Element(BUCKET_NAME).addContent(imgLoader.getBucketName()));
+        return elem;
+    }
+
+    @Override
+    public OMEZarrS3ImageLoader fromXml(final Element elem, final File basePath, final AbstractSequenceDescription<?, ?, ?> sequenceDescription) {
+        final String serviceEndpoint = XmlHelpers.getText(elem, SERVICE_ENDPOINT);
+        final String signingRegion = XmlHelpers.getText(elem, SIGNING_REGION);
+        final String bucketName = XmlHelpers.getText(elem, BUCKET_NAME);
+        final String key = XmlHelpers.getText(elem, KEY);
+
+        return new OMEZarrS3ImageLoader(serviceEndpoint, signingRegion, bucketName, key, sequenceDescription);
+    }
+}
@@ -0,0 +1,140 @@
+package benchmark;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import org.apache.commons.io.FileUtils;
+import org.embl.mobie.io.util.LocalS3Server;
+import org.embl.mobie.io.xml.BlockPipeline;
+import org.embl.mobie.io.xml.N5CacheArrayLoader;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.universe.N5Factory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to load all 512 blocks of a gzip compressed 16-bit N5 dataset, served by a
+ * {@link LocalS3Server} with a latency per request, with a given number of fetcher
+ * threads, either fetching and decoding on each fetcher thread ("singleStage"),
+ * or with a {@link BlockPipeline} ("pipeline").
+ */
+@State( Scope.Benchmark )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 5 )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Fork( 1 )
+public class BlockPipelineBenchmark
+{
+	private static final int BLOCK_SIZE = 64;
+	private static final int NUM_BLOCKS_PER_DIMENSION = 8;
+
+	@Param( { "0", "20" } )
+	public long latencyMillis;
+
+	@Param( { "4", "32" } )
+	public int numFetcherThreads;
+
+	private File root;
+	private LocalS3Server server;
+	private ExecutorService fetchers;
+	private BlockPipeline pipeline;
+	private N5CacheArrayLoader< ?, ? > singleStageLoader;
+	private N5CacheArrayLoader< ?, ? > pipelineLoader;
+
+	@Setup( Level.Trial )
+	public void writeData() throws IOException
+	{
+		root = Files.createTempDirectory( "block-pipeline-benchmark" ).toFile();
+		final int size = BLOCK_SIZE * NUM_BLOCKS_PER_DIMENSION;
+		final ArrayImg< UnsignedShortType, ShortArray > img = ArrayImgs.unsignedShorts( size, size, size );
+		final Random random = new Random( 42 );
+		img.forEach( pixel -> pixel.set( random.nextInt( 4096 ) ) );
+		try ( N5FSWriter n5 = new N5FSWriter( new File( new File( root, "bucket" ), "data.n5" ).getAbsolutePath() ) )
+		{
+			N5Utils.save( img, n5, "data", new int[] { BLOCK_SIZE, BLOCK_SIZE, BLOCK_SIZE }, new GzipCompression() );
+		}
+
+		server = new LocalS3Server( root ).setLatencyMillis( latencyMillis );
+		final N5Reader n5 = new N5Factory().openReader( server.getEndpoint() + "/bucket/data.n5" );
+		singleStageLoader = ( N5CacheArrayLoader< ?, ? > ) N5CacheArrayLoader.create( n5, "data" );
+		pipelineLoader = ( N5CacheArrayLoader< ?, ? > ) N5CacheArrayLoader.create( n5, "data" );
+		pipeline = new BlockPipeline( numFetcherThreads, Runtime.getRuntime().availableProcessors() );
+		pipelineLoader.setPipeline( pipeline );
+		fetchers = Executors.newFixedThreadPool( numFetcherThreads );
+	}
+
+	@TearDown( Level.Trial )
+	public void deleteData() throws IOException
+	{
+		fetchers.shutdown();
+		pipeline.shutdown();
+		server.close();
+		FileUtils.deleteDirectory( root );
+	}
+
+	@Benchmark
+	public void singleStage() throws Exception
+	{
+		loadAll( singleStageLoader );
+	}
+
+	@Benchmark
+	public void pipeline() throws Exception
+	{
+		loadAll( pipelineLoader );
+	}
+
+	private void loadAll( N5CacheArrayLoader< ?, ? > loader ) throws Exception
+	{
+		final int[] cellDimensions = { BLOCK_SIZE, BLOCK_SIZE, BLOCK_SIZE };
+		final List< Future< ? > > futures = new ArrayList<>();
+		for ( int z = 0; z < NUM_BLOCKS_PER_DIMENSION; z++ )
+			for ( int y = 0; y < NUM_BLOCKS_PER_DIMENSION; y++ )
+				for ( int x = 0; x < NUM_BLOCKS_PER_DIMENSION; x++ )
+				{
+					final long[] gridPosition = { x, y, z };
+					futures.add( fetchers.submit( () -> loader.loadArray( gridPosition, cellDimensions ) ) );
+				}
+		for ( Future< ? > future : futures )
+			future.get();
+	}
+
+	public static void main( String... args ) throws RunnerException
+	{
+		final Options options = new OptionsBuilder()
+				.include( BlockPipelineBenchmark.class.getSimpleName() )
+				.build();
+		new Runner( options ).run();
+	}
+}
@@ -0,0 +1,141 @@
+package benchmark;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import org.embl.mobie.io.imagedata.IlastikImageData;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.hdf5.N5HDF5Reader;
+import org.janelia.saalfeldlab.n5.hdf5.N5HDF5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Random reads across all channels of a synthetic ilastik probability map,
+ * comparing per-channel hyperslices of one cached image ("legacy")
+ * with {@link IlastikImageData}, whose channels share the decoded HDF5 chunks.
+ * <p>
+ * The dataset has no axistags, thus the fallback axis order (y,x,c,z,t) applies.
+ */
+@State( Scope.Benchmark )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Fork( 1 )
+public class IlastikRandomAccessBenchmark
+{
+	private static final long[] DIMENSIONS = { 256, 256, 4, 64, 1 };
+	private static final int[] BLOCK_SIZE = { 64, 64, 4, 32, 1 };
+	private static final int NUM_READS = 1000;
+
+	private File file;
+	private long[][] positions;
+	private List< RandomAccessibleInterval< FloatType > > legacyChannels;
+	private List< RandomAccessibleInterval< FloatType > > channels;
+
+	@Setup( Level.Trial )
+	public void writeData() throws IOException
+	{
+		file = Files.createTempFile( "ilastik-benchmark", ".h5" ).toFile();
+		file.delete();
+
+		final ArrayImg< FloatType, FloatArray > img = ArrayImgs.floats( DIMENSIONS );
+		final Random random = new Random( 42 );
+		img.forEach( t -> t.set( random.nextFloat() ) );
+		final N5HDF5Writer writer = new N5HDF5Writer( file.getAbsolutePath(), BLOCK_SIZE );
+		N5Utils.save( img, writer, "exported_data", BLOCK_SIZE, new GzipCompression() );
+		writer.close();
+
+		positions = new long[ NUM_READS ][];
+		for ( int i = 0; i < NUM_READS; i++ )
+			positions[ i ] = new long[] {
+					random.nextInt( ( int ) DIMENSIONS[ 0 ] ),
+					random.nextInt( ( int ) DIMENSIONS[ 1 ] ),
+					random.nextInt( ( int ) DIMENSIONS[ 3 ] ) };
+	}
+
+	@Setup( Level.Iteration )
+	public void open() throws IOException
+	{
+		final RandomAccessibleInterval< FloatType > rai = N5Utils.openVolatile( new N5HDF5Reader( file.getAbsolutePath() ), "exported_data" );
+		legacyChannels = new ArrayList<>();
+		for ( int c = 0; c < DIMENSIONS[ 2 ]; c++ )
+			legacyChannels.add( Views.hyperSlice( rai, 2, c ) );
+
+		final IlastikImageData< FloatType, ? > imageData = new IlastikImageData<>( file.getAbsolutePath(), null );
+		channels = new ArrayList<>();
+		for ( int c = 0; c < imageData.getNumDatasets(); c++ )
+			channels.add( imageData.getSourcePair( c ).getA().getSource( 0, 0 ) );
+	}
+
+	@TearDown( Level.Trial )
+	public void deleteData()
+	{
+		file.delete();
+	}
+
+	@Benchmark
+	public void legacy( Blackhole blackhole )
+	{
+		read( legacyChannels, blackhole );
+	}
+
+	@Benchmark
+	public void chunkCache( Blackhole blackhole )
+	{
+		read( channels, blackhole );
+	}
+
+	private void read( List< RandomAccessibleInterval< FloatType > > channels, Blackhole blackhole )
+	{
+		final List< RandomAccess< FloatType > > access = new ArrayList<>();
+		for ( RandomAccessibleInterval< FloatType > channel : channels )
+			access.add( channel.randomAccess() );
+
+		for ( long[] position : positions )
+			for ( RandomAccess< FloatType > ra : access )
+			{
+				ra.setPosition( position[ 0 ], 0 );
+				ra.setPosition( position[ 1 ], 1 );
+				ra.setPosition( position[ 2 ], 2 );
+				blackhole.consume( ra.get().get() );
+			}
+	}
+
+	public static void main( String... args ) throws RunnerException
+	{
+		final Options options = new OptionsBuilder()
+				.include( IlastikRandomAccessBenchmark.class.getSimpleName() )
+				.build();
+		new Runner( options ).run();
+	}
+}
@@ -0,0 +1,106 @@
+package benchmark;
+
+import bdv.img.cache.SimpleCacheArrayLoader;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import net.imglib2.img.basictypeaccess.ShortAccess;
+import org.embl.mobie.io.tiff.MappedTIFF;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of reading and summing random planes of an uncompressed 16-bit TIFF stack,
+ * comparing ImageJ's virtual stack ("openVirtual") with the cells of {@link MappedTIFF}.
+ */
+@State( Scope.Benchmark )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Fork( 1 )
+public class MappedTIFFBenchmark
+{
+	private static final int WIDTH = 1024;
+	private static final int HEIGHT = 1024;
+	private static final int NUM_SLICES = 64;
+
+	private File file;
+	private ImageStack virtualStack;
+	private MappedTIFF mappedTIFF;
+	private SimpleCacheArrayLoader< ? > loader;
+	private final Random random = new Random( 42 );
+
+	@Setup( Level.Trial )
+	public void writeData() throws IOException
+	{
+		file = Files.createTempFile( "mapped-tiff-benchmark", ".tif" ).toFile();
+		final ImagePlus imp = IJ.createImage( "stack", "16-bit ramp", WIDTH, HEIGHT, NUM_SLICES );
+		IJ.saveAsTiff( imp, file.getAbsolutePath() );
+
+		virtualStack = IJ.openVirtual( file.getAbsolutePath() ).getStack();
+		mappedTIFF = MappedTIFF.open( file.getAbsolutePath() );
+		loader = mappedTIFF.createCellLoader( 0, 0 );
+	}
+
+	@TearDown( Level.Trial )
+	public void deleteData()
+	{
+		file.delete();
+	}
+
+	@Benchmark
+	public long openVirtual()
+	{
+		final short[] pixels = ( short[] ) virtualStack.getProcessor( 1 + random.nextInt( NUM_SLICES ) ).getPixels();
+		long sum = 0;
+		for ( short pixel : pixels )
+			sum += pixel & 0xffff;
+		return sum;
+	}
+
+	@Benchmark
+	public long mappedTIFF() throws IOException
+	{
+		final int[] cellDimensions = mappedTIFF.getCellDimensions();
+		final long z = random.nextInt( NUM_SLICES );
+		long sum = 0;
+		for ( int y = 0; y < HEIGHT; y += cellDimensions[ 1 ] )
+		{
+			final int[] dimensions = { WIDTH, Math.min( cellDimensions[ 1 ], HEIGHT - y ), 1 };
+			final ShortAccess access = ( ShortAccess ) loader.loadArray( new long[] { 0, y / cellDimensions[ 1 ], z }, dimensions );
+			final int numElements = dimensions[ 0 ] * dimensions[ 1 ];
+			for ( int i = 0; i < numElements; i++ )
+				sum += access.getValue( i ) & 0xffff;
+		}
+		return sum;
+	}
+
+	public static void main( String... args ) throws RunnerException
+	{
+		final Options options = new OptionsBuilder()
+				.include( MappedTIFFBenchmark.class.getSimpleName() )
+				.build();
+		new Runner( options ).run();
+	}
+}
@@ -0,0 +1,120 @@
+package benchmark;
+
+import bdv.img.cache.SimpleCacheArrayLoader;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import org.embl.mobie.io.xml.N5CacheArrayLoader;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to load one cell of a gzip compressed 16-bit N5 dataset with {@link N5CacheArrayLoader},
+ * for a full block, a (smaller) block at the dataset border, and a missing block,
+ * which is filled with zeros; and the time to copy a block into a larger cell with
+ * {@link N5CacheArrayLoader#ndArrayCopy}.
+ */
+@State( Scope.Benchmark )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Fork( 1 )
+public class N5CacheArrayLoaderBenchmark
+{
+	private static final int BLOCK_SIZE = 64;
+	private static final long[] DIMENSIONS = { 200, 200, 200 };
+	private static final String DATASET = "data";
+	private static final String SPARSE_DATASET = "sparse";
+
+	private N5FSWriter n5;
+	private SimpleCacheArrayLoader< ? > loader;
+	private SimpleCacheArrayLoader< ? > sparseLoader;
+	private short[] block;
+	private short[] cell;
+
+	@Setup( Level.Trial )
+	public void writeData() throws IOException
+	{
+		n5 = new N5FSWriter( Files.createTempDirectory( "n5-benchmark" ).resolve( "data.n5" ).toString() );
+
+		final ArrayImg< UnsignedShortType, ShortArray > img = ArrayImgs.unsignedShorts( DIMENSIONS );
+		final Random random = new Random( 42 );
+		img.forEach( pixel -> pixel.set( random.nextInt( 4096 ) ) );
+		final int[] blockSize = { BLOCK_SIZE, BLOCK_SIZE, BLOCK_SIZE };
+		N5Utils.save( img, n5, DATASET, blockSize, new GzipCompression() );
+		n5.createDataset( SPARSE_DATASET, DIMENSIONS, blockSize, DataType.UINT16, new GzipCompression() );
+
+		loader = N5CacheArrayLoader.create( n5, DATASET );
+		sparseLoader = N5CacheArrayLoader.create( n5, SPARSE_DATASET );
+
+		block = new short[ BLOCK_SIZE * BLOCK_SIZE * BLOCK_SIZE ];
+		cell = new short[ 96 * 96 * 96 ];
+	}
+
+	@TearDown( Level.Trial )
+	public void deleteData()
+	{
+		n5.remove();
+		n5.close();
+	}
+
+	@Benchmark
+	public Object loadFullBlock() throws IOException
+	{
+		return loader.loadArray( new long[] { 1, 1, 1 }, new int[] { BLOCK_SIZE, BLOCK_SIZE, BLOCK_SIZE } );
+	}
+
+	@Benchmark
+	public Object loadEdgeBlock() throws IOException
+	{
+		final int edge = ( int ) ( DIMENSIONS[ 0 ] % BLOCK_SIZE );
+		return loader.loadArray( new long[] { 3, 3, 3 }, new int[] { edge, edge, edge } );
+	}
+
+	@Benchmark
+	public Object loadMissingBlock() throws IOException
+	{
+		return sparseLoader.loadArray( new long[] { 1, 1, 1 }, new int[] { BLOCK_SIZE, BLOCK_SIZE, BLOCK_SIZE } );
+	}
+
+	@Benchmark
+	public short[] ndArrayCopy()
+	{
+		final int[] blockSize = { BLOCK_SIZE, BLOCK_SIZE, BLOCK_SIZE };
+		N5CacheArrayLoader.ndArrayCopy( block, blockSize, new int[ 3 ], cell, new int[] { 96, 96, 96 }, new int[] { 16, 16, 16 }, blockSize );
+		return cell;
+	}
+
+	public static void main( String... args ) throws RunnerException
+	{
+		final Options options = new OptionsBuilder()
+				.include( N5CacheArrayLoaderBenchmark.class.getSimpleName() )
+				.build();
+		new Runner( options ).run();
+	}
+}
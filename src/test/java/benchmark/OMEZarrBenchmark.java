@@ -0,0 +1,101 @@
+package benchmark;
+
+import ij.IJ;
+import ij.ImagePlus;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import org.apache.commons.io.FileUtils;
+import org.embl.mobie.io.OMEZarrWriter;
+import org.embl.mobie.io.imagedata.N5ImageData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to write a synthetic 16-bit image as OME-Zarr with {@link OMEZarrWriter},
+ * and to open a local OME-Zarr with {@link N5ImageData}, i.e. to parse its
+ * metadata and build the sources, for 2D, 3D and 5D (xyczt) images.
+ */
+@State( Scope.Benchmark )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 5 )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Fork( 1 )
+public class OMEZarrBenchmark
+{
+	@Param( { "2D", "3D", "5D" } )
+	public String dimensionality;
+
+	private File directory;
+	private ImagePlus imagePlus;
+	private String writeUri;
+	private String openUri;
+
+	@Setup( Level.Trial )
+	public void createData() throws IOException
+	{
+		directory = Files.createTempDirectory( "ome-zarr-benchmark" ).toFile();
+
+		switch ( dimensionality )
+		{
+			case "2D":
+				imagePlus = IJ.createImage( "image", "16-bit ramp", 2048, 2048, 1 );
+				break;
+			case "3D":
+				imagePlus = IJ.createImage( "image", "16-bit ramp", 256, 256, 256 );
+				break;
+			default:
+				imagePlus = IJ.createHyperStack( "image", 256, 256, 2, 32, 4, 16 );
+				break;
+		}
+
+		writeUri = new File( directory, "write.ome.zarr" ).getAbsolutePath();
+		openUri = new File( directory, "open.ome.zarr" ).getAbsolutePath();
+		OMEZarrWriter.write( imagePlus, openUri, OMEZarrWriter.ImageType.Intensities, true );
+	}
+
+	@TearDown( Level.Trial )
+	public void deleteData() throws IOException
+	{
+		FileUtils.deleteDirectory( directory );
+	}
+
+	@Benchmark
+	public void write()
+	{
+		OMEZarrWriter.write( imagePlus, writeUri, OMEZarrWriter.ImageType.Intensities, true );
+	}
+
+	@Benchmark
+	public int open()
+	{
+		return new N5ImageData< UnsignedShortType >( openUri ).getNumDatasets();
+	}
+
+	public static void main( String... args ) throws RunnerException
+	{
+		final Options options = new OptionsBuilder()
+				.include( OMEZarrBenchmark.class.getSimpleName() )
+				.build();
+		new Runner( options ).run();
+	}
+}
@@ -0,0 +1,105 @@
+package benchmark;
+
+import org.embl.mobie.io.util.IOHelper;
+import org.embl.mobie.io.util.ResourceLocation;
+import org.embl.mobie.io.util.S3Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Per-call cost of resolving the type, endpoint, bucket and object of a URI,
+ * comparing the previous string splitting ("legacy") with {@link ResourceLocation}.
+ */
+@State( Scope.Benchmark )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Fork( 1 )
+public class ResourceLocationBenchmark
+{
+	@Param( {
+			"https://s3.embl.de/i2k-2020/platy-raw.ome.zarr/s0/.zarray",
+			"/Users/user/Desktop/images/image.ome.zarr/.zattrs" } )
+	public String uri;
+
+	@Benchmark
+	public void legacy( Blackhole blackhole )
+	{
+		blackhole.consume( legacyGetType( uri ) );
+		blackhole.consume( legacyGetEndpoint( uri ) );
+		blackhole.consume( legacyGetBucketAndObject( uri ) );
+	}
+
+	@Benchmark
+	public void resourceLocation( Blackhole blackhole )
+	{
+		final ResourceLocation location = ResourceLocation.of( uri );
+		blackhole.consume( location.getType() );
+		blackhole.consume( location.getEndpoint() );
+		blackhole.consume( S3Utils.getBucketAndObject( location ) );
+	}
+
+	@Benchmark
+	public IOHelper.ResourceType getType()
+	{
+		return IOHelper.getType( uri );
+	}
+
+	@Benchmark
+	public String combinePath()
+	{
+		return IOHelper.combinePath( uri, "labels", ".zattrs" );
+	}
+
+	private static IOHelper.ResourceType legacyGetType( String uri )
+	{
+		if ( ( uri.startsWith( "http" ) && uri.contains( "s3." ) ) )
+			return IOHelper.ResourceType.S3;
+		else if ( uri.startsWith( "http" ) && uri.contains( ".zarr" ) )
+			return IOHelper.ResourceType.S3;
+		else if ( uri.startsWith( "http" ) )
+			return IOHelper.ResourceType.HTTP;
+		else
+			return IOHelper.ResourceType.FILE;
+	}
+
+	private static String[] legacyGetBucketAndObject( String uri )
+	{
+		final String[] split = uri.split( "/" );
+		String bucket = split[ 3 ];
+		String object = Arrays.stream( split ).skip( 4 ).collect( Collectors.joining( "/" ) );
+		return new String[]{ bucket, object };
+	}
+
+	private static String legacyGetEndpoint( String uri )
+	{
+		final String[] split = uri.split( "/" );
+		return Arrays.stream( split ).limit( 3 ).collect( Collectors.joining( "/" ) );
+	}
+
+	public static void main( String... args ) throws RunnerException
+	{
+		final Options options = new OptionsBuilder()
+				.include( ResourceLocationBenchmark.class.getSimpleName() )
+				.build();
+		new Runner( options ).run();
+	}
+}
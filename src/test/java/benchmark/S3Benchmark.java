@@ -0,0 +1,129 @@
+package benchmark;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import ij.IJ;
+import ij.ImagePlus;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import org.apache.commons.io.FileUtils;
+import org.embl.mobie.io.OMEZarrWriter;
+import org.embl.mobie.io.imagedata.N5ImageData;
+import org.embl.mobie.io.util.IOHelper;
+import org.embl.mobie.io.util.LocalS3Server;
+import org.embl.mobie.io.util.ResourceLocation;
+import org.embl.mobie.io.util.S3Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to open, browse, read and write an OME-Zarr through the S3 code paths,
+ * served by a {@link LocalS3Server} with an injected latency per request
+ * and, optionally, a limited bandwidth and a rate of (retried) errors.
+ */
+@State( Scope.Benchmark )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 5 )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Fork( 1 )
+public class S3Benchmark
+{
+	private static final String BUCKET = "bucket";
+	private static final int UPLOAD_SIZE = 4 * 1024 * 1024;
+
+	@Param( { "0", "20" } )
+	public long latencyMillis;
+
+	@Param( { "0", "100000000" } )
+	public long bytesPerSecond;
+
+	@Param( { "0", "0.02" } )
+	public double errorRate;
+
+	private File root;
+	private LocalS3Server server;
+	private String uri;
+	private byte[] upload;
+	private int uploadIndex;
+
+	@Setup( Level.Trial )
+	public void startServer() throws IOException
+	{
+		root = Files.createTempDirectory( "s3-benchmark" ).toFile();
+		final File image = new File( new File( root, BUCKET ), "image.ome.zarr" );
+		final ImagePlus imagePlus = IJ.createImage( "image", "16-bit ramp", 512, 512, 64 );
+		OMEZarrWriter.write( imagePlus, image.getAbsolutePath(), OMEZarrWriter.ImageType.Intensities, true );
+
+		server = new LocalS3Server( root )
+				.setLatencyMillis( latencyMillis )
+				.setBandwidth( bytesPerSecond )
+				.setErrorRate( errorRate );
+		uri = server.getEndpoint() + "/" + BUCKET + "/image.ome.zarr";
+		upload = new byte[ UPLOAD_SIZE ];
+	}
+
+	@TearDown( Level.Trial )
+	public void stopServer() throws IOException
+	{
+		server.close();
+		FileUtils.deleteDirectory( root );
+	}
+
+	@Benchmark
+	public int open()
+	{
+		return new N5ImageData< UnsignedShortType >( uri ).getNumDatasets();
+	}
+
+	@Benchmark
+	public List< String > browse()
+	{
+		return S3Utils.getS3FilePaths( uri );
+	}
+
+	@Benchmark
+	public String readAttributes() throws IOException
+	{
+		return IOHelper.read( IOHelper.combinePath( uri, ".zattrs" ) );
+	}
+
+	@Benchmark
+	public void write()
+	{
+		final ResourceLocation location = ResourceLocation.of( uri );
+		final AmazonS3 s3 = S3Utils.getS3Client( location );
+		final ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength( upload.length );
+		s3.putObject( BUCKET, "upload/" + ( uploadIndex++ ), new ByteArrayInputStream( upload ), metadata );
+	}
+
+	public static void main( String... args ) throws RunnerException
+	{
+		final Options options = new OptionsBuilder()
+				.include( S3Benchmark.class.getSimpleName() )
+				.build();
+		new Runner( options ).run();
+	}
+}
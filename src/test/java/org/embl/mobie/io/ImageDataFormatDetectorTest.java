@@ -0,0 +1,91 @@
+package org.embl.mobie.io;
+
+import org.embl.mobie.io.util.LocalS3Server;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.hdf5.N5HDF5Writer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageDataFormatDetectorTest
+{
+    @Test
+    public void detectIlastikHDF5()
+    {
+        assertEquals( ImageDataFormat.Ilastik, ImageDataFormat.fromPath( "src/test/resources/ilastik/from-fiji.h5" ) );
+    }
+
+    @Test
+    public void detectBdvXml()
+    {
+        ImageDataFormat format = ImageDataFormatDetector.detect( "src/test/resources/prospr-myosin-n5.xml" );
+        assertNotNull( format );
+        assertTrue( format.toString().startsWith( ImageDataFormat.Names.BDV ) );
+    }
+
+    @Test
+    public void detectZarrWithoutExtension( @TempDir Path tempDir ) throws IOException
+    {
+        Path container = Files.createDirectory( tempDir.resolve( "image" ) );
+        Files.write( container.resolve( ".zgroup" ), "{\"zarr_format\":2}".getBytes() );
+        assertEquals( ImageDataFormat.OmeZarr, ImageDataFormat.fromPath( container.toString() ) );
+    }
+
+    @Test
+    public void detectTiffOnlyWithTiffExtension( @TempDir Path tempDir ) throws IOException
+    {
+        final byte[] tiffHeader = { 'I', 'I', 42, 0, 8, 0, 0, 0 };
+        for ( String name : new String[]{ "image.tif", "image.TIFF" } )
+            assertEquals( ImageDataFormat.Tiff, ImageDataFormatDetector.detect( Files.write( tempDir.resolve( name ), tiffHeader ).toString() ) );
+
+        // vendor formats that are TIFF based, and files without a TIFF extension
+        for ( String name : new String[]{ "image", "image.ome.tif", "image.lsm", "image.svs", "image.ndpi", "image.stk", "image.scn", "image.flex", "image.qptiff" } )
+            assertEquals( ImageDataFormat.BioFormats, ImageDataFormatDetector.detect( Files.write( tempDir.resolve( name ), tiffHeader ).toString() ), name );
+    }
+
+    @Test
+    public void detectIlastikOnlyWithIlastikLayout( @TempDir Path tempDir ) throws IOException
+    {
+        assertEquals( ImageDataFormat.Ilastik, ImageDataFormatDetector.detect( "src/test/resources/ilastik/probabilities-from-ilastik.h5" ) );
+
+        // an HDF5 file with other datasets
+        Path other = tempDir.resolve( "other.h5" );
+        try ( N5HDF5Writer n5 = new N5HDF5Writer( other.toString() ) )
+        {
+            n5.createDataset( "t00000/s00/0/cells", new long[]{ 8, 8, 8 }, new int[]{ 8, 8, 8 }, DataType.UINT16, new RawCompression() );
+        }
+        assertEquals( ImageDataFormat.BioFormats, ImageDataFormatDetector.detect( other.toString() ) );
+        Path bdv = Files.copy( other, tempDir.resolve( "image.bdv.h5" ) );
+        assertEquals( ImageDataFormat.BioFormats, ImageDataFormatDetector.detect( bdv.toString() ) );
+
+        // HDF5 based formats that are not named .h5
+        final byte[] hdf5Signature = { ( byte ) 0x89, 'H', 'D', 'F', '\r', '\n', 0x1a, '\n' };
+        for ( String name : new String[]{ "image.hdf5", "image.nc", "image.mat" } )
+            assertEquals( ImageDataFormat.BioFormats, ImageDataFormatDetector.detect( Files.write( tempDir.resolve( name ), hdf5Signature ).toString() ), name );
+    }
+
+    @Test
+    public void detectRemoteTiffAndCacheMisses( @TempDir Path tempDir ) throws IOException
+    {
+        Path bucket = Files.createDirectory( tempDir.resolve( "bucket" ) );
+        Files.write( bucket.resolve( "image.tif" ), new byte[]{ 'I', 'I', 42, 0, 8, 0, 0, 0 } );
+
+        try ( LocalS3Server server = new LocalS3Server( tempDir.toFile() ) )
+        {
+            // plain HTTP: read with byte ranges rather than with Bio-Formats
+            assertEquals( ImageDataFormat.Tiff, ImageDataFormatDetector.detect( server.getEndpoint() + "/bucket/image.tif" ) );
+
+            String missing = server.getEndpoint() + "/bucket/missing";
+            assertNull( ImageDataFormatDetector.detect( missing ) );
+            long numRequests = server.getNumRequests();
+            assertNull( ImageDataFormatDetector.detect( missing ) );
+            assertEquals( numRequests, server.getNumRequests() );
+        }
+    }
+}
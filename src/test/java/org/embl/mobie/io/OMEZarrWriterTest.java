@@ -3,11 +3,20 @@ package org.embl.mobie.io;
 import bdv.cache.SharedQueue;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
 import org.embl.mobie.io.imagedata.ImageData;
+import org.embl.mobie.io.util.ChannelStatistics;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.universe.N5Factory;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
 import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -35,4 +44,58 @@ class OMEZarrWriterTest
 
         assertEquals( 186, dim0 );
     }
-}
\ No newline at end of file
+
+    @Test
+    public void writeStatisticsReadingVirtualPlanesOnce(@TempDir Path tempDir)
+    {
+        ImageStack planes = IJ.createImage( "test", "16-bit ramp", 186, 226, 27 ).getStack();
+        AtomicInteger numReads = new AtomicInteger();
+        VirtualStack stack = new VirtualStack( 186, 226, null, null )
+        {
+            @Override
+            public ImageProcessor getProcessor( int n )
+            {
+                numReads.incrementAndGet();
+                return planes.getProcessor( n );
+            }
+
+            @Override
+            public int getSize()
+            {
+                return planes.getSize();
+            }
+        };
+        stack.setBitDepth( 16 );
+        ImagePlus imp = new ImagePlus( "test", stack );
+
+        String uri = tempDir.resolve("test.zarr").toString();
+
+        OMEZarrWriter.write( imp,
+                uri,
+                OMEZarrWriter.ImageType.Intensities,
+                false );
+
+        // the exporter may read a plane more than once, but the statistics must not add a pass
+        assertTrue( numReads.get() < 2 * planes.getSize() );
+
+        try ( N5Reader n5 = new N5Factory().openReader( uri ) )
+        {
+            JsonArray levels = n5.getAttribute( "/", "statistics", JsonArray.class );
+            assertTrue( levels.size() > 1 );
+            for ( int level = 0; level < levels.size(); level++ )
+            {
+                JsonObject channel = levels.get( level ).getAsJsonObject().getAsJsonArray( "channels" ).get( 0 ).getAsJsonObject();
+                JsonArray histogram = channel.getAsJsonArray( "histogram" );
+                assertEquals( ChannelStatistics.NUM_BINS, histogram.size() );
+                assertTrue( channel.get( "max" ).getAsDouble() > channel.get( "min" ).getAsDouble() );
+            }
+
+            JsonObject window = n5.getAttribute( "/", "omero", JsonObject.class )
+                    .getAsJsonArray( "channels" ).get( 0 ).getAsJsonObject().getAsJsonObject( "window" );
+            long numVoxels = 0;
+            for ( int bin = 0; bin < ChannelStatistics.NUM_BINS; bin++ )
+                numVoxels += window.getAsJsonArray( "histogram" ).get( bin ).getAsLong();
+            assertEquals( 186L * 226 * 27, numVoxels );
+        }
+    }
+}
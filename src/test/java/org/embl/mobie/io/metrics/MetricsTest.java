@@ -0,0 +1,36 @@
+package org.embl.mobie.io.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsTest
+{
+    @Test
+    public void histogramQuantilesAreWithinFactorTwo()
+    {
+        final LatencyHistogram histogram = Metrics.histogram( "test.histogram" );
+        for ( int i = 1; i <= 100; i++ )
+            histogram.record( i * 1_000_000L ); // 1 to 100 ms
+
+        assertEquals( 100, histogram.getCount() );
+        assertEquals( 50.5, histogram.getMeanMillis(), 1e-9 );
+        assertEquals( 100, histogram.getMaxMillis(), 1e-9 );
+        final double median = histogram.getQuantileMillis( 0.5 );
+        assertTrue( median >= 50 && median <= 100, "median: " + median );
+    }
+
+    @Test
+    public void countersArePublishedToJMX() throws Exception
+    {
+        Metrics.counter( "test.counter" ).add( 42 );
+        Metrics.get().registerMBean();
+
+        final Object value = ManagementFactory.getPlatformMBeanServer()
+                .getAttribute( new ObjectName( Metrics.OBJECT_NAME ), "test.counter" );
+        assertEquals( 42L, value );
+    }
+}
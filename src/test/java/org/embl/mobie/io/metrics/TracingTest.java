@@ -0,0 +1,38 @@
+package org.embl.mobie.io.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TracingTest
+{
+    @Test
+    public void nestedSpansHaveParents()
+    {
+        Tracing.clear();
+        Tracing.setEnabled( true );
+        try
+        {
+            try ( Tracing.Span open = Tracing.span( "open", "image.ome.zarr" ) )
+            {
+                try ( Tracing.Span read = Tracing.span( "read", ".zattrs" ) ) { }
+                try ( Tracing.Span read = Tracing.span( "read", "labels/.zattrs" ) ) { }
+            }
+        }
+        finally
+        {
+            Tracing.setEnabled( false );
+        }
+
+        final List< Tracing.Span > spans = Tracing.getSpans();
+        assertEquals( 3, spans.size() );
+        final Tracing.Span open = spans.get( 2 );
+        assertEquals( "open", open.name );
+        assertNull( open.parent );
+        assertSame( open, spans.get( 0 ).parent );
+        assertSame( open, spans.get( 1 ).parent );
+        assertTrue( open.getDurationNanos() >= spans.get( 0 ).getDurationNanos() );
+    }
+}
@@ -0,0 +1,138 @@
+package org.embl.mobie.io.tiff;
+
+import ij.io.FileInfo;
+import org.embl.mobie.io.util.LocalS3Server;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TIFFPlaneReaderTest
+{
+    private static final int WIDTH = 512;
+    private static final int HEIGHT = 512;
+    private static final int NUM_PAGES = 8;
+    private static final int NUM_STRIPS = 4;
+
+    @Test
+    public void readHeaderOfRemoteMultiPageFile( @TempDir Path tempDir ) throws IOException
+    {
+        Files.createDirectories( tempDir.resolve( "bucket" ) );
+        final Path file = tempDir.resolve( "bucket" ).resolve( "pages.tif" );
+        final byte[] tiff = createMultiPageTiff();
+        Files.write( file, tiff );
+
+        final FileInfo[] localHeader = new TIFFPlaneReader().getHeader( file.toString() );
+        assertEquals( NUM_PAGES, localHeader.length );
+
+        try ( LocalS3Server server = new LocalS3Server( tempDir.toFile() ) )
+        {
+            final TIFFPlaneReader reader = new TIFFPlaneReader();
+            final String path = server.getEndpoint() + "/bucket/pages.tif";
+            final FileInfo[] header = reader.getHeader( path );
+
+            // the IFDs are read, not the pages in between them
+            assertTrue( server.getNumBytesSent() < tiff.length / 4 );
+
+            assertEquals( NUM_PAGES, header.length );
+            assertEquals( NUM_PAGES, TIFFPlaneReader.getNumPlanes( header ) );
+            for ( int page = 0; page < NUM_PAGES; page++ )
+            {
+                assertEquals( localHeader[ page ].width, header[ page ].width );
+                assertEquals( localHeader[ page ].height, header[ page ].height );
+                assertEquals( localHeader[ page ].fileType, header[ page ].fileType );
+                assertEquals( localHeader[ page ].nImages, header[ page ].nImages );
+                assertEquals( localHeader[ page ].getOffset(), header[ page ].getOffset() );
+                assertArrayEquals( localHeader[ page ].stripOffsets, header[ page ].stripOffsets );
+                assertArrayEquals( localHeader[ page ].stripLengths, header[ page ].stripLengths );
+                assertEquals( localHeader[ page ].description, header[ page ].description );
+            }
+
+            for ( int page : new int[] { 0, 3, NUM_PAGES - 1 } )
+            {
+                final byte[] pixels = ( byte[] ) reader.readPlane( path, page );
+                assertArrayEquals( createPage( page ), pixels );
+            }
+        }
+    }
+
+    private static byte[] createPage( int page )
+    {
+        final byte[] pixels = new byte[ WIDTH * HEIGHT ];
+        for ( int y = 0; y < HEIGHT; y++ )
+            for ( int x = 0; x < WIDTH; x++ )
+                pixels[ y * WIDTH + x ] = ( byte ) ( page * 7 + x + y );
+        return pixels;
+    }
+
+    /*
+     * An 8-bit little-endian TIFF as written by many acquisition programs:
+     * each page is followed by its IFD, whose values follow the IFD.
+     */
+    private static byte[] createMultiPageTiff()
+    {
+        final int pageBytes = WIDTH * HEIGHT;
+        final int stripBytes = pageBytes / NUM_STRIPS;
+        final int numEntries = 10;
+        final int ifdBytes = 2 + 12 * numEntries + 4;
+        final int valueBytes = 16 + 4 * NUM_STRIPS + 4 * NUM_STRIPS;
+        final ByteBuffer buffer = ByteBuffer.allocate( 8 + NUM_PAGES * ( pageBytes + ifdBytes + valueBytes ) )
+                .order( ByteOrder.LITTLE_ENDIAN );
+
+        buffer.put( ( byte ) 'I' ).put( ( byte ) 'I' ).putShort( ( short ) 42 );
+        int nextIfdPosition = buffer.position();
+        buffer.putInt( 0 );
+        for ( int page = 0; page < NUM_PAGES; page++ )
+        {
+            final int pagePosition = buffer.position();
+            buffer.put( createPage( page ) );
+
+            final int ifdPosition = buffer.position();
+            buffer.putInt( nextIfdPosition, ifdPosition );
+            final int descriptionPosition = ifdPosition + ifdBytes;
+            final int offsetsPosition = descriptionPosition + 16;
+            final int lengthsPosition = offsetsPosition + 4 * NUM_STRIPS;
+
+            buffer.putShort( ( short ) numEntries );
+            putEntry( buffer, 256, 4, 1, WIDTH );
+            putEntry( buffer, 257, 4, 1, HEIGHT );
+            putEntry( buffer, 258, 3, 1, 8 );
+            putEntry( buffer, 259, 3, 1, 1 );
+            putEntry( buffer, 262, 3, 1, 1 );
+            putEntry( buffer, 270, 2, 16, descriptionPosition );
+            putEntry( buffer, 273, 4, NUM_STRIPS, offsetsPosition );
+            putEntry( buffer, 277, 3, 1, 1 );
+            putEntry( buffer, 278, 4, 1, HEIGHT / NUM_STRIPS );
+            putEntry( buffer, 279, 4, NUM_STRIPS, lengthsPosition );
+            nextIfdPosition = buffer.position();
+            buffer.putInt( 0 );
+
+            final byte[] description = new byte[ 16 ];
+            final byte[] text = ( "page " + page ).getBytes( StandardCharsets.US_ASCII );
+            System.arraycopy( text, 0, description, 0, text.length );
+            buffer.put( description );
+            for ( int strip = 0; strip < NUM_STRIPS; strip++ )
+                buffer.putInt( pagePosition + strip * stripBytes );
+            for ( int strip = 0; strip < NUM_STRIPS; strip++ )
+                buffer.putInt( stripBytes );
+        }
+
+        return buffer.array();
+    }
+
+    private static void putEntry( ByteBuffer buffer, int tag, int type, int count, int value )
+    {
+        buffer.putShort( ( short ) tag ).putShort( ( short ) type ).putInt( count );
+        if ( type == 3 )
+            buffer.putShort( ( short ) value ).putShort( ( short ) 0 );
+        else
+            buffer.putInt( value );
+    }
+}
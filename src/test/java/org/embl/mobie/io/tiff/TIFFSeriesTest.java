@@ -0,0 +1,67 @@
+package org.embl.mobie.io.tiff;
+
+import ij.IJ;
+import ij.ImagePlus;
+import org.embl.mobie.io.util.LocalS3Server;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TIFFSeriesTest
+{
+    @Test
+    public void readPlanesOfFolder( @TempDir Path tempDir ) throws IOException
+    {
+        for ( int z = 0; z < 3; z++ )
+        {
+            final ImagePlus imp = IJ.createImage( "plane", "16-bit black", 10, 5, 1 );
+            imp.getProcessor().set( 2, 1, 100 + z );
+            IJ.saveAsTiff( imp, tempDir.resolve( "plane-" + z + ".tif" ).toString() );
+        }
+
+        final TIFFSeries series = TIFFSeries.open( tempDir.toString(), Pattern.compile( ".*.tif.*" ) );
+        assertNotNull( series );
+        assertEquals( DataType.UINT16, series.getDataType() );
+        assertEquals( 10, series.getWidth() );
+        assertEquals( 5, series.getHeight() );
+        assertEquals( 3, series.getNumSlices() );
+        assertEquals( 1, series.getNumTimepoints() );
+
+        final short[] pixels = ( short[] ) series.readPlane( 0, 2 );
+        assertEquals( 102, pixels[ 1 * 10 + 2 ] );
+    }
+
+    @Test
+    public void readPlanesOfRemoteFile( @TempDir Path tempDir ) throws IOException
+    {
+        final ImagePlus imp = IJ.createImage( "stack", "16-bit black", 10, 5, 3 );
+        for ( int z = 0; z < 3; z++ )
+            imp.getStack().getProcessor( z + 1 ).set( 2, 1, 100 + z );
+        Files.createDirectories( tempDir.resolve( "bucket" ) );
+        IJ.saveAsTiff( imp, tempDir.resolve( "bucket" ).resolve( "stack.tif" ).toString() );
+
+        try ( LocalS3Server server = new LocalS3Server( tempDir.toFile() ) )
+        {
+            final TIFFSeries series = TIFFSeries.openFile( server.getEndpoint() + "/bucket/stack.tif" );
+            assertNotNull( series );
+            assertEquals( 3, series.getNumSlices() );
+            assertEquals( 1, series.getNumTimepoints() );
+
+            final long numRequests = server.getNumRequests();
+            final long numBytesSent = server.getNumBytesSent();
+            final short[] pixels = ( short[] ) series.readPlane( 0, 2 );
+            assertEquals( 102, pixels[ 1 * 10 + 2 ] );
+
+            // one range request for the plane, not the whole file
+            assertEquals( numRequests + 1, server.getNumRequests() );
+            assertEquals( numBytesSent + 10 * 5 * 2, server.getNumBytesSent() );
+        }
+    }
+}
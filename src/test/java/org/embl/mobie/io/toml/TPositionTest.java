@@ -0,0 +1,28 @@
+package org.embl.mobie.io.toml;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TPositionTest
+{
+    @Test
+    public void ordersUnpaddedFramesNumerically()
+    {
+        final TPosition[] positions = {
+                new TPosition( "10" ),
+                new TPosition( "2" ),
+                new TPosition( "b" ),
+                new TPosition( "02" ),
+                new TPosition( "a" ),
+                new TPosition( "1" ) };
+        Arrays.sort( positions );
+
+        assertEquals( "[1, 02, 2, 10, a, b]", Arrays.toString( positions ) );
+        assertEquals( 10, positions[ 3 ].getKey() );
+        assertNotEquals( new TPosition( "02" ), new TPosition( "2" ) );
+        assertEquals( new TPosition( "2" ), new TPosition( "2" ) );
+    }
+}
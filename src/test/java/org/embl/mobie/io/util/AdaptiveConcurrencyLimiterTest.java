@@ -0,0 +1,40 @@
+package org.embl.mobie.io.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdaptiveConcurrencyLimiterTest
+{
+    @Test
+    public void increasesWhileLatencyIsFlatAndBacksOffOnThrottling() throws InterruptedException
+    {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter( 4, 1, 16, 2.0, 0.5 );
+        for ( int i = 0; i < 1000; i++ )
+        {
+            limiter.acquire();
+            limiter.recordLatency( 1_000_000 );
+            limiter.release();
+        }
+        assertEquals( 16, limiter.getLimit() );
+
+        Thread.sleep( 5 );
+        limiter.acquire();
+        limiter.recordThrottled();
+        limiter.release();
+        assertEquals( 8, limiter.getLimit() );
+
+        // the requests that were in flight during the same event do not back off again
+        limiter.acquire();
+        limiter.recordThrottled();
+        limiter.release();
+        assertEquals( 8, limiter.getLimit() );
+
+        Thread.sleep( 5 );
+        limiter.acquire();
+        limiter.recordLatency( 10_000_000 );
+        limiter.release();
+        assertEquals( 4, limiter.getLimit() );
+        assertEquals( 0, limiter.getNumInFlight() );
+    }
+}
@@ -0,0 +1,114 @@
+package org.embl.mobie.io.util;
+
+import bdv.cache.SharedQueue;
+import bdv.img.cache.VolatileCachedCellImg;
+import net.imglib2.RandomAccess;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.cache.volatiles.LoadingStrategy;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BudgetedCellCacheTest
+{
+    @Test
+    public void evictsSingleCellsWhenOverBudget() throws InterruptedException
+    {
+        // 10 cells of 1000 shorts, budget for 4 of them
+        final CacheBudget budget = new CacheBudget( 8000 );
+        final SharedQueue queue = new SharedQueue( 1 );
+        final BudgetedCellCache cache = new BudgetedCellCache( queue, budget );
+        final AtomicInteger numLoads = new AtomicInteger();
+        final VolatileCachedCellImg< UnsignedShortType, VolatileShortArray > img = cache.createImg(
+                new CellGrid( new long[]{ 10000 }, new int[]{ 1000 } ), 0, 0, 0,
+                new CacheHints( LoadingStrategy.BLOCKING, 0, false ),
+                ( gridPosition, cellDimensions ) ->
+                {
+                    numLoads.incrementAndGet();
+                    return new VolatileShortArray( cellDimensions[ 0 ], true );
+                },
+                new UnsignedShortType() );
+
+        final RandomAccess< UnsignedShortType > access = img.randomAccess();
+        for ( int cell = 0; cell < 10; cell++ )
+        {
+            access.setPosition( cell * 1000L, 0 );
+            access.get().get();
+        }
+        assertEquals( 10, numLoads.get() );
+
+        for ( int i = 0; i < 100 && budget.getNumBytes() > 8000; i++ )
+            Thread.sleep( 50 );
+        assertTrue( budget.getNumBytes() <= 8000 );
+        assertEquals( budget.getNumBytes(), cache.getNumBytes() );
+        assertTrue( budget.getNumEvictions() >= 6 );
+
+        // the first cell was evicted and is loaded again
+        access.setPosition( 0, 0 );
+        access.get().get();
+        assertEquals( 11, numLoads.get() );
+
+        // clearing releases all cells of the cache
+        cache.clearCache();
+        assertEquals( 0, budget.getNumBytes() );
+        assertEquals( 0, budget.getNumCells() );
+        queue.shutdown();
+    }
+
+    @Test
+    public void countRequestsOfLoadedCellsAsHits() throws InterruptedException
+    {
+        final SharedQueue queue = new SharedQueue( 1 );
+        try
+        {
+            final BudgetedCellCache cache = new BudgetedCellCache( queue, new CacheBudget( 1000000 ) );
+            final AtomicInteger numLoads = new AtomicInteger();
+            final VolatileCachedCellImg< UnsignedShortType, VolatileShortArray > img = cache.createImg(
+                    new CellGrid( new long[]{ 10000 }, new int[]{ 1000 } ), 0, 0, 0,
+                    new CacheHints( LoadingStrategy.VOLATILE, 0, false ),
+                    ( gridPosition, cellDimensions ) ->
+                    {
+                        numLoads.incrementAndGet();
+                        return new VolatileShortArray( cellDimensions[ 0 ], true );
+                    },
+                    new UnsignedShortType() );
+
+            // keep the only fetcher thread busy while the cell is requested in two frames
+            final CountDownLatch started = new CountDownLatch( 1 );
+            final CountDownLatch release = new CountDownLatch( 1 );
+            queue.put( () ->
+            {
+                started.countDown();
+                return release.await( 10, TimeUnit.SECONDS );
+            }, 0, true );
+            assertTrue( started.await( 10, TimeUnit.SECONDS ) );
+
+            // a new access for each frame, as an access keeps its current cell
+            for ( int frame = 0; frame < 2; frame++ )
+            {
+                queue.getQueue().clearToPrefetch();
+                final RandomAccess< UnsignedShortType > access = img.randomAccess();
+                access.setPosition( 0, 0 );
+                access.get().get();
+            }
+            release.countDown();
+
+            // the first request loads the cell, the second finds it in the cache
+            for ( int i = 0; i < 200 && cache.getNumHits() == 0; i++ )
+                Thread.sleep( 50 );
+            assertEquals( 1, numLoads.get() );
+            assertEquals( 1, cache.getNumHits() );
+        }
+        finally
+        {
+            queue.shutdown();
+        }
+    }
+}
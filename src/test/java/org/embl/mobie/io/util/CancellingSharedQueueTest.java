@@ -0,0 +1,92 @@
+package org.embl.mobie.io.util;
+
+import bdv.cache.SharedQueue;
+import org.embl.mobie.io.metrics.Metrics;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CancellingSharedQueueTest
+{
+    @Test
+    public void dropStaleTasks() throws Exception
+    {
+        final SharedQueue queue = new CancellingSharedQueue( 1 );
+        try
+        {
+            assertStaleTasksAreDropped( queue );
+        }
+        finally
+        {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void dropStaleTasksOfWrappedQueue() throws Exception
+    {
+        final SharedQueue sharedQueue = new SharedQueue( 1 );
+        try
+        {
+            final SharedQueue queue = CancellingSharedQueue.wrap( sharedQueue );
+            assertNotSame( sharedQueue, queue );
+            assertSame( queue, CancellingSharedQueue.wrap( queue ) );
+
+            assertStaleTasksAreDropped( queue );
+
+            // the wrapper leaves the threads of the wrapped queue running
+            queue.shutdown();
+            final CompletableFuture< Boolean > ran = new CompletableFuture<>();
+            sharedQueue.put( () -> ran.complete( true ), 0, true );
+            assertTrue( ran.get( 10, TimeUnit.SECONDS ) );
+        }
+        finally
+        {
+            sharedQueue.shutdown();
+        }
+    }
+
+    private static void assertStaleTasksAreDropped( SharedQueue queue ) throws Exception
+    {
+        final LongAdder dropped = Metrics.counter( "queue.tasks.dropped" );
+        final long droppedBefore = dropped.sum();
+
+        // keep the only fetcher thread busy while the frames advance
+        final CountDownLatch started = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        queue.put( () ->
+        {
+            started.countDown();
+            return release.await( 10, TimeUnit.SECONDS );
+        }, 0, true );
+        assertTrue( started.await( 10, TimeUnit.SECONDS ) );
+
+        final AtomicBoolean staleRan = new AtomicBoolean();
+        queue.put( () -> { staleRan.set( true ); return null; }, 0, true );
+
+        // BDV moves the queued tasks to the prefetch queue before every frame
+        for ( int frame = 0; frame < 3; frame++ )
+            queue.getQueue().clearToPrefetch();
+
+        final CompletableFuture< Boolean > currentRan = new CompletableFuture<>();
+        queue.put( () -> currentRan.complete( true ), 0, true );
+        release.countDown();
+
+        assertTrue( currentRan.get( 10, TimeUnit.SECONDS ) );
+
+        // the stale task is taken from the prefetch queue once the queue is empty
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos( 10 );
+        while ( dropped.sum() == droppedBefore )
+        {
+            assertTrue( System.nanoTime() < deadline, "stale task was not dropped" );
+            Thread.sleep( 10 );
+        }
+        assertFalse( staleRan.get() );
+    }
+}
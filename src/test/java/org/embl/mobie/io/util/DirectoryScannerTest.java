@@ -0,0 +1,37 @@
+package org.embl.mobie.io.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DirectoryScannerTest
+{
+    @Test
+    public void findsSameFilesAsFilesFind( @TempDir Path tempDir ) throws IOException
+    {
+        for ( int t = 0; t < 1200; t++ )
+            Files.createFile( tempDir.resolve( "frame" + t + ".tif" ) );
+        final Path sub = Files.createDirectories( tempDir.resolve( "sub" ).resolve( "subsub" ) );
+        Files.createFile( sub.resolve( "frame9999.tif" ) );
+        Files.createFile( sub.resolve( "other.txt" ) );
+
+        final String regex = "frame(?<frame>[0-9]+).tif";
+        final List< String > expected = Files.find( tempDir, 999, ( path, attributes ) -> path.getFileName().toString().matches( regex ) )
+                .map( Path::toString ).sorted().collect( Collectors.toList() );
+
+        final List< String > paths = DirectoryScanner.find( tempDir, Pattern.compile( regex ), 999 );
+        Collections.sort( paths );
+
+        assertEquals( 1201, paths.size() );
+        assertEquals( expected, paths );
+    }
+}
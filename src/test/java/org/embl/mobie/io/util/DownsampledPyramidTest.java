@@ -0,0 +1,105 @@
+package org.embl.mobie.io.util;
+
+import bdv.util.RandomAccessibleIntervalSource;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.volatiles.VolatileUnsignedByteType;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DownsampledPyramidTest
+{
+    @Test
+    public void proposeFactorsUntilTopLevelIsSmall()
+    {
+        final List< long[] > factors = DownsampledPyramid.proposeFactors( new long[]{ 1024, 1024, 40 } );
+        assertEquals( 3, factors.size() );
+        // the thin z dimension is not downsampled
+        assertArrayEquals( new long[]{ 4, 4, 1 }, factors.get( 2 ) );
+    }
+
+    @Test
+    public void averageLevelsConcurrently()
+    {
+        // columns alternate between 0 and 2
+        final ArrayImg< UnsignedByteType, ByteArray > img = ArrayImgs.unsignedBytes( 1024, 1024, 4 );
+        final Cursor< UnsignedByteType > cursor = img.localizingCursor();
+        while ( cursor.hasNext() )
+        {
+            cursor.fwd();
+            cursor.get().set( cursor.getIntPosition( 0 ) % 2 * 2 );
+        }
+
+        final DownsampledPyramid< UnsignedByteType > pyramid = new DownsampledPyramid<>(
+                new RandomAccessibleIntervalSource<>( img, new UnsignedByteType(), "image" ), 0 );
+        assertEquals( 3, pyramid.getNumLevels() );
+
+        // requesting the lowest level from many threads creates the levels above it once
+        final List< RandomAccessibleInterval< UnsignedByteType > > tops = IntStream.range( 0, 8 )
+                .mapToObj( i -> CompletableFuture.supplyAsync( () -> pyramid.getLevel( 0, 2 ) ) )
+                .collect( Collectors.toList() ).stream()
+                .map( CompletableFuture::join )
+                .collect( Collectors.toList() );
+        tops.forEach( top -> assertSame( tops.get( 0 ), top ) );
+
+        final RandomAccessibleInterval< UnsignedByteType > top = tops.get( 0 );
+        assertArrayEquals( new long[]{ 256, 256, 4 }, top.dimensionsAsLongArray() );
+        final RandomAccess< UnsignedByteType > access = top.randomAccess();
+        access.setPosition( new long[]{ 100, 200, 3 } );
+        assertEquals( 1, access.get().get() );
+    }
+
+    @Test
+    public void dropVolatileLevelsWithTheirTimepoint()
+    {
+        // the pixels of each timepoint have the value of the timepoint
+        final int numTimepoints = 2 * DownsampledPyramid.MAX_NUM_TIMEPOINTS + 1;
+        final ArrayImg< UnsignedByteType, ByteArray > img = ArrayImgs.unsignedBytes( 512, 512, 2, numTimepoints );
+        final Cursor< UnsignedByteType > cursor = img.localizingCursor();
+        while ( cursor.hasNext() )
+        {
+            cursor.fwd();
+            cursor.get().set( cursor.getIntPosition( 3 ) );
+        }
+
+        final DownsampledPyramid< UnsignedByteType > pyramid = new DownsampledPyramid<>(
+                new RandomAccessibleIntervalSource4D<>( img, new UnsignedByteType(), new AffineTransform3D(), new FinalVoxelDimensions( "pixel", 1, 1, 1 ), "image" ), 0 );
+        assertEquals( 2, pyramid.getNumLevels() );
+
+        final RandomAccessibleInterval< UnsignedByteType > first = pyramid.getLevel( 0, 1 );
+        final RandomAccessibleInterval< VolatileUnsignedByteType > firstVolatile = pyramid.getVolatileLevel( 0, 1 );
+        assertSame( firstVolatile, pyramid.getVolatileLevel( 0, 1 ) );
+
+        for ( int t = 0; t < numTimepoints; t++ )
+        {
+            final RandomAccess< UnsignedByteType > access = pyramid.getLevel( t, 1 ).randomAccess();
+            access.setPosition( new long[]{ 10, 20, 1 } );
+            assertEquals( t, access.get().get() );
+
+            assertNotNull( pyramid.getVolatileLevel( t, 1 ) );
+
+            assertTrue( pyramid.getNumCachedTimepoints() <= DownsampledPyramid.MAX_NUM_TIMEPOINTS );
+        }
+
+        // the first timepoint was evicted and both of its levels are created anew
+        final RandomAccessibleInterval< UnsignedByteType > recreated = pyramid.getLevel( 0, 1 );
+        final RandomAccessibleInterval< VolatileUnsignedByteType > recreatedVolatile = pyramid.getVolatileLevel( 0, 1 );
+        assertNotSame( first, recreated );
+        assertNotSame( firstVolatile, recreatedVolatile );
+        assertSame( recreated, pyramid.getLevel( 0, 1 ) );
+        assertSame( recreatedVolatile, pyramid.getVolatileLevel( 0, 1 ) );
+    }
+}
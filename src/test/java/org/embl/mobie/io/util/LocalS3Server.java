@@ -0,0 +1,550 @@
+package org.embl.mobie.io.util;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * An in-process stand-in for an S3 server, serving the sub-folders of a local
+ * directory as buckets, such that the S3 code paths can be tested and benchmarked offline.
+ * <p>
+ * Supports path-style GET (including byte ranges), HEAD, PUT and DELETE of objects,
+ * multi-object delete, bucket creation and the V1 and V2 listing of objects.
+ * Requests are not authenticated, signatures are ignored.
+ * <p>
+ * To emulate a remote server, a latency can be added to each request,
+ * the bandwidth of responses can be limited, and a fraction of the requests
+ * can be answered with "503 SlowDown", which the AWS client retries.
+ */
+public class LocalS3Server implements AutoCloseable
+{
+    private static final Pattern RANGE = Pattern.compile( "bytes=(\\d*)-(\\d*)" );
+    private static final Pattern DELETE_KEY = Pattern.compile( "<Key>(.*?)</Key>" );
+    private static final int MAX_KEYS = 1000;
+
+    private final File root;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private volatile long latencyMillis;
+    private volatile long bytesPerSecond;
+    private volatile double errorRate;
+
+    private final AtomicLong numRequests = new AtomicLong();
+    private final AtomicLong numErrors = new AtomicLong();
+    private final AtomicLong numBytesSent = new AtomicLong();
+    private final AtomicLong numBytesReceived = new AtomicLong();
+
+    /**
+     * Starts a server on a free port of the loopback interface.
+     *
+     * @param root directory whose sub-folders are the buckets
+     */
+    public LocalS3Server( File root ) throws IOException
+    {
+        this.root = root;
+        server = HttpServer.create( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ), 0 );
+        server.createContext( "/", this::handle );
+        executor = Executors.newCachedThreadPool( runnable ->
+        {
+            Thread thread = new Thread( runnable, "local-s3-server" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        server.setExecutor( executor );
+        server.start();
+    }
+
+    /**
+     * @return the endpoint, e.g. http://127.0.0.1:54321
+     */
+    public String getEndpoint()
+    {
+        return "http://" + server.getAddress().getAddress().getHostAddress() + ":" + server.getAddress().getPort();
+    }
+
+    public File getRoot()
+    {
+        return root;
+    }
+
+    public LocalS3Server setLatencyMillis( long latencyMillis )
+    {
+        this.latencyMillis = latencyMillis;
+        return this;
+    }
+
+    /**
+     * @param bytesPerSecond bandwidth of each response, or 0 for no limit
+     */
+    public LocalS3Server setBandwidth( long bytesPerSecond )
+    {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * @param errorRate fraction of requests that fail with "503 SlowDown"
+     */
+    public LocalS3Server setErrorRate( double errorRate )
+    {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    public long getNumRequests()
+    {
+        return numRequests.get();
+    }
+
+    public long getNumErrors()
+    {
+        return numErrors.get();
+    }
+
+    public long getNumBytesSent()
+    {
+        return numBytesSent.get();
+    }
+
+    public long getNumBytesReceived()
+    {
+        return numBytesReceived.get();
+    }
+
+    @Override
+    public void close()
+    {
+        server.stop( 0 );
+        executor.shutdownNow();
+    }
+
+    private void handle( HttpExchange exchange ) throws IOException
+    {
+        try
+        {
+            numRequests.incrementAndGet();
+
+            if ( latencyMillis > 0 )
+                Thread.sleep( latencyMillis );
+
+            if ( errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate )
+            {
+                numErrors.incrementAndGet();
+                sendError( exchange, 503, "SlowDown", "Injected error" );
+                return;
+            }
+
+            final String path = URLDecoder.decode( exchange.getRequestURI().getRawPath(), "UTF-8" );
+            final int bucketEnd = path.indexOf( '/', 1 );
+            final String bucket = bucketEnd == -1 ? path.substring( 1 ) : path.substring( 1, bucketEnd );
+            final String key = bucketEnd == -1 ? "" : path.substring( bucketEnd + 1 );
+            final Map< String, String > query = parseQuery( exchange.getRequestURI().getRawQuery() );
+            final String method = exchange.getRequestMethod();
+
+            final File bucketDir = new File( root, bucket );
+            if ( bucket.isEmpty() || ( ! bucketDir.isDirectory() && ! ( method.equals( "PUT" ) && key.isEmpty() ) ) )
+            {
+                sendError( exchange, 404, "NoSuchBucket", bucket );
+                return;
+            }
+
+            if ( key.isEmpty() )
+            {
+                if ( method.equals( "GET" ) )
+                    list( exchange, bucket, bucketDir, query );
+                else if ( method.equals( "PUT" ) )
+                {
+                    bucketDir.mkdirs();
+                    send( exchange, 200, new Headers(), new byte[ 0 ] );
+                }
+                else if ( method.equals( "POST" ) && query.containsKey( "delete" ) )
+                    deleteObjects( exchange, bucketDir );
+                else
+                    send( exchange, 200, new Headers(), new byte[ 0 ] );
+                return;
+            }
+
+            final File file = new File( bucketDir, key );
+            switch ( method )
+            {
+                case "GET":
+                case "HEAD":
+                    getObject( exchange, file, method.equals( "HEAD" ) );
+                    break;
+                case "PUT":
+                    putObject( exchange, file );
+                    break;
+                case "DELETE":
+                    file.delete();
+                    send( exchange, 204, new Headers(), null );
+                    break;
+                default:
+                    sendError( exchange, 405, "MethodNotAllowed", method );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch ( Exception e )
+        {
+            sendError( exchange, 500, "InternalError", String.valueOf( e.getMessage() ) );
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    private void getObject( HttpExchange exchange, File file, boolean headOnly ) throws IOException, InterruptedException
+    {
+        if ( ! file.isFile() )
+        {
+            if ( headOnly )
+                send( exchange, 404, new Headers(), null );
+            else
+                sendError( exchange, 404, "NoSuchKey", file.getName() );
+            return;
+        }
+
+        final long length = file.length();
+        long start = 0;
+        long end = length - 1;
+        int status = 200;
+
+        final String range = exchange.getRequestHeaders().getFirst( "Range" );
+        if ( range != null )
+        {
+            final Matcher matcher = RANGE.matcher( range );
+            if ( matcher.matches() )
+            {
+                if ( matcher.group( 1 ).isEmpty() )
+                {
+                    start = Math.max( 0, length - Long.parseLong( matcher.group( 2 ) ) );
+                }
+                else
+                {
+                    start = Long.parseLong( matcher.group( 1 ) );
+                    if ( ! matcher.group( 2 ).isEmpty() )
+                        end = Math.min( end, Long.parseLong( matcher.group( 2 ) ) );
+                }
+
+                if ( start >= length )
+                {
+                    sendError( exchange, 416, "InvalidRange", range );
+                    return;
+                }
+                status = 206;
+            }
+        }
+
+        final Headers headers = new Headers();
+        headers.add( "Content-Type", "application/octet-stream" );
+        headers.add( "ETag", "\"" + Long.toHexString( file.lastModified() ^ length ) + "\"" );
+        headers.add( "Last-Modified", formatDate( file.lastModified() ) );
+        headers.add( "Accept-Ranges", "bytes" );
+        if ( status == 206 )
+            headers.add( "Content-Range", "bytes " + start + "-" + end + "/" + length );
+
+        if ( headOnly )
+        {
+            headers.add( "Content-Length", String.valueOf( length ) );
+            exchange.getResponseHeaders().putAll( headers );
+            exchange.sendResponseHeaders( 200, -1 );
+            return;
+        }
+
+        final byte[] bytes = new byte[ ( int ) ( end - start + 1 ) ];
+        try ( RandomAccessFile randomAccessFile = new RandomAccessFile( file, "r" ) )
+        {
+            randomAccessFile.seek( start );
+            randomAccessFile.readFully( bytes );
+        }
+        send( exchange, status, headers, bytes );
+    }
+
+    private void putObject( HttpExchange exchange, File file ) throws IOException, InterruptedException
+    {
+        byte[] bytes = readAll( exchange.getRequestBody() );
+        numBytesReceived.addAndGet( bytes.length );
+
+        final String contentSha256 = exchange.getRequestHeaders().getFirst( "x-amz-content-sha256" );
+        if ( contentSha256 != null && contentSha256.startsWith( "STREAMING-" ) )
+            bytes = decodeAwsChunked( bytes );
+
+        file.getParentFile().mkdirs();
+        Files.write( file.toPath(), bytes );
+
+        final Headers headers = new Headers();
+        headers.add( "ETag", "\"" + Long.toHexString( file.lastModified() ^ bytes.length ) + "\"" );
+        send( exchange, 200, headers, new byte[ 0 ] );
+    }
+
+    private void deleteObjects( HttpExchange exchange, File bucketDir ) throws IOException, InterruptedException
+    {
+        final String body = new String( readAll( exchange.getRequestBody() ), StandardCharsets.UTF_8 );
+        final StringBuilder xml = new StringBuilder( "<?xml version=\"1.0\" encoding=\"UTF-8\"?><DeleteResult>" );
+        final Matcher matcher = DELETE_KEY.matcher( body );
+        while ( matcher.find() )
+        {
+            new File( bucketDir, matcher.group( 1 ) ).delete();
+            xml.append( "<Deleted><Key>" ).append( escape( matcher.group( 1 ) ) ).append( "</Key></Deleted>" );
+        }
+        xml.append( "</DeleteResult>" );
+        sendXml( exchange, 200, xml.toString() );
+    }
+
+    private void list( HttpExchange exchange, String bucket, File bucketDir, Map< String, String > query ) throws IOException, InterruptedException
+    {
+        final boolean v2 = "2".equals( query.get( "list-type" ) );
+        final String prefix = query.getOrDefault( "prefix", "" );
+        final String delimiter = query.get( "delimiter" );
+        final int maxKeys = Math.min( MAX_KEYS, Integer.parseInt( query.getOrDefault( "max-keys", String.valueOf( MAX_KEYS ) ) ) );
+        final String after = v2
+                ? query.getOrDefault( "continuation-token", query.getOrDefault( "start-after", "" ) )
+                : query.getOrDefault( "marker", "" );
+
+        final List< String > keys = listKeys( bucketDir );
+        final TreeSet< String > commonPrefixes = new TreeSet<>();
+        final List< String > contents = new ArrayList<>();
+        String lastKey = null;
+        boolean truncated = false;
+        for ( String key : keys )
+        {
+            if ( ! key.startsWith( prefix ) || key.compareTo( after ) <= 0 )
+                continue;
+
+            // the previous page ended with this common prefix
+            if ( delimiter != null && after.endsWith( delimiter ) && key.startsWith( after ) )
+                continue;
+
+            if ( contents.size() + commonPrefixes.size() == maxKeys )
+            {
+                truncated = true;
+                break;
+            }
+
+            final int delimiterIndex = delimiter == null ? -1 : key.indexOf( delimiter, prefix.length() );
+            if ( delimiterIndex != -1 )
+            {
+                final String commonPrefix = key.substring( 0, delimiterIndex + delimiter.length() );
+                if ( commonPrefixes.add( commonPrefix ) )
+                    lastKey = commonPrefix;
+                continue;
+            }
+
+            contents.add( key );
+            lastKey = key;
+        }
+
+        final StringBuilder xml = new StringBuilder( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" );
+        xml.append( "<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">" );
+        xml.append( "<Name>" ).append( escape( bucket ) ).append( "</Name>" );
+        xml.append( "<Prefix>" ).append( escape( prefix ) ).append( "</Prefix>" );
+        xml.append( "<MaxKeys>" ).append( maxKeys ).append( "</MaxKeys>" );
+        if ( delimiter != null )
+            xml.append( "<Delimiter>" ).append( escape( delimiter ) ).append( "</Delimiter>" );
+        xml.append( "<IsTruncated>" ).append( truncated ).append( "</IsTruncated>" );
+        if ( v2 )
+        {
+            xml.append( "<KeyCount>" ).append( contents.size() + commonPrefixes.size() ).append( "</KeyCount>" );
+            if ( truncated )
+                xml.append( "<NextContinuationToken>" ).append( escape( lastKey ) ).append( "</NextContinuationToken>" );
+        }
+        else
+        {
+            xml.append( "<Marker>" ).append( escape( after ) ).append( "</Marker>" );
+            if ( truncated )
+                xml.append( "<NextMarker>" ).append( escape( lastKey ) ).append( "</NextMarker>" );
+        }
+        for ( String key : contents )
+        {
+            final File file = new File( bucketDir, key );
+            xml.append( "<Contents>" )
+                    .append( "<Key>" ).append( escape( key ) ).append( "</Key>" )
+                    .append( "<LastModified>" ).append( formatIsoDate( file.lastModified() ) ).append( "</LastModified>" )
+                    .append( "<ETag>\"" ).append( Long.toHexString( file.lastModified() ^ file.length() ) ).append( "\"</ETag>" )
+                    .append( "<Size>" ).append( file.length() ).append( "</Size>" )
+                    .append( "<StorageClass>STANDARD</StorageClass>" )
+                    .append( "</Contents>" );
+        }
+        for ( String commonPrefix : commonPrefixes )
+            xml.append( "<CommonPrefixes><Prefix>" ).append( escape( commonPrefix ) ).append( "</Prefix></CommonPrefixes>" );
+        xml.append( "</ListBucketResult>" );
+
+        sendXml( exchange, 200, xml.toString() );
+    }
+
+    private static List< String > listKeys( File bucketDir ) throws IOException
+    {
+        final Path bucketPath = bucketDir.toPath();
+        try ( Stream< Path > paths = Files.walk( bucketPath ) )
+        {
+            return paths.filter( Files::isRegularFile )
+                    .map( path -> bucketPath.relativize( path ).toString().replace( File.separatorChar, '/' ) )
+                    .sorted()
+                    .collect( Collectors.toList() );
+        }
+    }
+
+    private void sendError( HttpExchange exchange, int status, String code, String message ) throws IOException
+    {
+        final String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>" + code + "</Code><Message>"
+                + escape( message ) + "</Message></Error>";
+        try
+        {
+            sendXml( exchange, status, xml );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sendXml( HttpExchange exchange, int status, String xml ) throws IOException, InterruptedException
+    {
+        final Headers headers = new Headers();
+        headers.add( "Content-Type", "application/xml" );
+        send( exchange, status, headers, xml.getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    /*
+     * Sends the bytes in pieces of 1/10 second at the configured bandwidth.
+     */
+    private void send( HttpExchange exchange, int status, Headers headers, byte[] bytes ) throws IOException, InterruptedException
+    {
+        exchange.getResponseHeaders().putAll( headers );
+        if ( bytes == null )
+        {
+            exchange.sendResponseHeaders( status, -1 );
+            return;
+        }
+
+        exchange.sendResponseHeaders( status, bytes.length == 0 ? -1 : bytes.length );
+        if ( bytes.length == 0 )
+            return;
+
+        final OutputStream outputStream = exchange.getResponseBody();
+        final long bandwidth = bytesPerSecond;
+        if ( bandwidth <= 0 )
+        {
+            outputStream.write( bytes );
+        }
+        else
+        {
+            final int pieceSize = ( int ) Math.max( 1, bandwidth / 10 );
+            for ( int offset = 0; offset < bytes.length; offset += pieceSize )
+            {
+                final int length = Math.min( pieceSize, bytes.length - offset );
+                outputStream.write( bytes, offset, length );
+                outputStream.flush();
+                Thread.sleep( length * 1000L / bandwidth );
+            }
+        }
+        numBytesSent.addAndGet( bytes.length );
+    }
+
+    /*
+     * Strips the chunk headers and signatures of an "aws-chunked" body:
+     * hex-size;chunk-signature=...\r\n data \r\n ... 0;chunk-signature=...\r\n\r\n
+     */
+    static byte[] decodeAwsChunked( byte[] bytes )
+    {
+        final ByteArrayOutputStream decoded = new ByteArrayOutputStream( bytes.length );
+        int position = 0;
+        while ( position < bytes.length )
+        {
+            int lineEnd = position;
+            while ( lineEnd < bytes.length - 1 && ! ( bytes[ lineEnd ] == '\r' && bytes[ lineEnd + 1 ] == '\n' ) )
+                lineEnd++;
+
+            final String header = new String( bytes, position, lineEnd - position, StandardCharsets.US_ASCII );
+            final int size = Integer.parseInt( header.split( ";" )[ 0 ].trim(), 16 );
+            if ( size == 0 )
+                break;
+
+            decoded.write( bytes, lineEnd + 2, size );
+            position = lineEnd + 2 + size + 2;
+        }
+        return decoded.toByteArray();
+    }
+
+    private static byte[] readAll( InputStream inputStream ) throws IOException
+    {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[ 64 * 1024 ];
+        int read;
+        while ( ( read = inputStream.read( buffer ) ) != -1 )
+            outputStream.write( buffer, 0, read );
+        return outputStream.toByteArray();
+    }
+
+    private static Map< String, String > parseQuery( String rawQuery ) throws UnsupportedEncodingException
+    {
+        final Map< String, String > query = new HashMap<>();
+        if ( rawQuery == null || rawQuery.isEmpty() )
+            return query;
+
+        for ( String parameter : rawQuery.split( "&" ) )
+        {
+            final int equals = parameter.indexOf( '=' );
+            if ( equals == -1 )
+                query.put( URLDecoder.decode( parameter, "UTF-8" ), "" );
+            else
+                query.put( URLDecoder.decode( parameter.substring( 0, equals ), "UTF-8" ),
+                        URLDecoder.decode( parameter.substring( equals + 1 ), "UTF-8" ) );
+        }
+        return query;
+    }
+
+    private static String escape( String text )
+    {
+        return text.replace( "&", "&amp;" ).replace( "<", "&lt;" ).replace( ">", "&gt;" );
+    }
+
+    private static String formatDate( long millis )
+    {
+        final SimpleDateFormat format = new SimpleDateFormat( "EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US );
+        format.setTimeZone( TimeZone.getTimeZone( "GMT" ) );
+        return format.format( new Date( millis ) );
+    }
+
+    private static String formatIsoDate( long millis )
+    {
+        final SimpleDateFormat format = new SimpleDateFormat( "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US );
+        format.setTimeZone( TimeZone.getTimeZone( "UTC" ) );
+        return format.format( new Date( millis ) );
+    }
+}
@@ -0,0 +1,58 @@
+package org.embl.mobie.io.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocalS3ServerTest
+{
+    @Test
+    public void readAndListThroughS3Client( @TempDir Path tempDir ) throws IOException
+    {
+        final Path image = Files.createDirectories( tempDir.resolve( "bucket" ).resolve( "image.ome.zarr" ) );
+        Files.write( image.resolve( ".zattrs" ), "{\"multiscales\":[]}".getBytes( StandardCharsets.UTF_8 ) );
+        Files.createDirectories( image.resolve( "s0" ) );
+        Files.write( image.resolve( "s0" ).resolve( ".zarray" ), "{}".getBytes( StandardCharsets.UTF_8 ) );
+
+        try ( LocalS3Server server = new LocalS3Server( tempDir.toFile() ) )
+        {
+            final String uri = server.getEndpoint() + "/bucket/image.ome.zarr";
+            assertEquals( IOHelper.ResourceType.S3, IOHelper.getType( uri ) );
+
+            assertEquals( "{\"multiscales\":[]}", IOHelper.read( uri + "/.zattrs" ) );
+
+            final byte[] range = IOHelper.readRange( ResourceLocation.of( uri + "/.zattrs" ), 2, 11 );
+            assertEquals( "multiscales", new String( range, StandardCharsets.UTF_8 ) );
+            assertEquals( 0, IOHelper.readRange( ResourceLocation.of( uri + "/.zattrs" ), 2, 0 ).length );
+
+            final ArrayList< String > paths = S3Utils.getS3FilePaths( uri );
+            Collections.sort( paths );
+            assertEquals( 2, paths.size() );
+            assertEquals( uri + "/.zattrs", paths.get( 0 ) );
+            assertEquals( uri + "/s0/.zarray", paths.get( 1 ) );
+        }
+    }
+
+    @Test
+    public void clientRetriesInjectedErrors( @TempDir Path tempDir ) throws IOException
+    {
+        final Path image = Files.createDirectories( tempDir.resolve( "bucket" ).resolve( "image.ome.zarr" ) );
+        Files.write( image.resolve( ".zattrs" ), "{}".getBytes( StandardCharsets.UTF_8 ) );
+
+        try ( LocalS3Server server = new LocalS3Server( tempDir.toFile() ).setErrorRate( 0.1 ) )
+        {
+            final String uri = server.getEndpoint() + "/bucket/image.ome.zarr/.zattrs";
+            for ( int i = 0; i < 20; i++ )
+                assertEquals( "{}", IOHelper.read( uri ) );
+            assertTrue( server.getNumRequests() >= 20 );
+        }
+    }
+}
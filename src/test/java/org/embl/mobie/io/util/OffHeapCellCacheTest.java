@@ -0,0 +1,72 @@
+package org.embl.mobie.io.util;
+
+import bdv.cache.SharedQueue;
+import bdv.img.cache.VolatileCachedCellImg;
+import net.imglib2.RandomAccess;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.cache.volatiles.LoadingStrategy;
+import net.imglib2.img.basictypeaccess.ShortAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
+import net.imglib2.img.basictypeaccess.DataAccess;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffHeapCellCacheTest
+{
+    @Test
+    public void copyShortArrayOffHeap()
+    {
+        final short[] values = { 0, 1, -1, Short.MAX_VALUE, Short.MIN_VALUE };
+        final DataAccess access = OffHeapCellCache.toBufferAccess( values );
+
+        assertTrue( access instanceof ShortAccess );
+        assertTrue( ( ( VolatileAccess ) access ).isValid() );
+        for ( int i = 0; i < values.length; i++ )
+            assertEquals( values[ i ], ( ( ShortAccess ) access ).getValue( i ) );
+    }
+
+    @Test
+    public void keepCharArrayOnHeap()
+    {
+        assertNull( OffHeapCellCache.toBufferAccess( new char[ 4 ] ) );
+    }
+
+    @Test
+    public void countEvictedCellsUntilCollected() throws InterruptedException
+    {
+        // 10 cells of 1000 shorts, budget for 4 of them
+        final CacheBudget budget = new CacheBudget( 8000, true );
+        final SharedQueue queue = new SharedQueue( 1 );
+        final OffHeapCellCache cache = new OffHeapCellCache( queue, budget );
+        final VolatileCachedCellImg< UnsignedShortType, ? > img = cache.createImg(
+                new CellGrid( new long[]{ 10000 }, new int[]{ 1000 } ), 0, 0, 0,
+                new CacheHints( LoadingStrategy.BLOCKING, 0, false ),
+                ( gridPosition, cellDimensions ) -> new VolatileShortArray( cellDimensions[ 0 ], true ),
+                new UnsignedShortType() );
+
+        final RandomAccess< UnsignedShortType > access = img.randomAccess();
+        for ( int cell = 0; cell < 10; cell++ )
+        {
+            access.setPosition( cell * 1000L, 0 );
+            access.get().get();
+        }
+
+        for ( int i = 0; i < 100 && cache.getNumBytes() > 8000; i++ )
+            Thread.sleep( 50 );
+        assertTrue( cache.getNumBytes() <= 8000 );
+        assertTrue( budget.getNumEvictions() >= 6 );
+
+        // the direct buffers of the evicted cells are freed once they are collected
+        for ( int i = 0; i < 100 && budget.getNumBytes() > 8000; i++ )
+        {
+            System.gc();
+            Thread.sleep( 50 );
+        }
+        assertTrue( budget.getNumBytes() <= 8000 );
+        queue.shutdown();
+    }
+}
@@ -0,0 +1,60 @@
+package org.embl.mobie.io.util;
+
+import bdv.viewer.Interpolation;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.Views;
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RandomAccessibleIntervalSource4DTest
+{
+    // more timepoints than views are cached, such that concurrent requests evict each other
+    private static final int NUM_TIMEPOINTS = 20;
+
+    @Test
+    public void concurrentRequestsGetTheirOwnTimepoint()
+    {
+        // each voxel holds its timepoint
+        final ArrayImg< UnsignedByteType, ByteArray > img = ArrayImgs.unsignedBytes( 16, 16, 4, NUM_TIMEPOINTS );
+        for ( int t = 0; t < NUM_TIMEPOINTS; t++ )
+        {
+            final int value = t;
+            LoopBuilder.setImages( Views.hyperSlice( img, 3, t ) ).forEachPixel( pixel -> pixel.set( value ) );
+        }
+
+        final RandomAccessibleIntervalSource4D< UnsignedByteType > source = new RandomAccessibleIntervalSource4D<>(
+                img, new UnsignedByteType(), new AffineTransform3D(), new FinalVoxelDimensions( "um", 1, 1, 1 ), "image" );
+
+        IntStream.range( 0, 20_000 ).parallel().forEach( i ->
+        {
+            // spread the timepoints of concurrent requests over all slots
+            final int t = ( i * 7 ) % NUM_TIMEPOINTS;
+
+            final RandomAccessibleInterval< UnsignedByteType > view = source.getSource( t, 0 );
+            assertEquals( 3, view.numDimensions() );
+            final RandomAccess< UnsignedByteType > access = view.randomAccess();
+            access.setPosition( new long[]{ i % 16, 5, i % 4 } );
+            assertEquals( t, access.get().get() );
+
+            final RealRandomAccess< UnsignedByteType > interpolated =
+                    source.getInterpolatedSource( t, 0, Interpolation.NLINEAR ).realRandomAccess();
+            interpolated.setPosition( new double[]{ 7.5, 3.25, 1.5 } );
+            assertEquals( t, interpolated.get().get() );
+        } );
+
+        assertFalse( source.isPresent( NUM_TIMEPOINTS ) );
+        assertNull( source.getSource( NUM_TIMEPOINTS, 0 ) );
+    }
+}
@@ -0,0 +1,81 @@
+package org.embl.mobie.io.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RangeReadCoalescerTest
+{
+    @Test
+    public void mergesNearbyRangesIntoOneRequest( @TempDir Path tempDir ) throws Exception
+    {
+        final byte[] content = new byte[ 1024 * 1024 ];
+        for ( int i = 0; i < content.length; i++ )
+            content[ i ] = ( byte ) i;
+        Files.createDirectories( tempDir.resolve( "bucket" ) );
+        Files.write( tempDir.resolve( "bucket" ).resolve( "image.tif" ), content );
+
+        final RangeReadCoalescer coalescer = new RangeReadCoalescer( 1024, 1024 * 1024, 20, 2 );
+        try ( LocalS3Server server = new LocalS3Server( tempDir.toFile() ) )
+        {
+            final ResourceLocation location = ResourceLocation.of( server.getEndpoint() + "/bucket/image.tif" );
+
+            // 16 chunks of 4 KiB, 512 bytes apart, in random order
+            final long[] offsets = new long[ 16 ];
+            final int[] lengths = new int[ 16 ];
+            for ( int i = 0; i < 16; i++ )
+            {
+                offsets[ i ] = ( ( i * 7 ) % 16 ) * 4608L;
+                lengths[ i ] = 4096;
+            }
+            final List< byte[] > chunks = coalescer.readAll( location, offsets, lengths );
+            assertEquals( 1, server.getNumRequests() );
+            for ( int i = 0; i < 16; i++ )
+                assertArrayEquals( Arrays.copyOfRange( content, ( int ) offsets[ i ], ( int ) offsets[ i ] + 4096 ), chunks.get( i ) );
+
+            // a range far away needs its own request; the last range ends with the object
+            final CompletableFuture< byte[] > first = coalescer.read( location, 0, 100 );
+            final CompletableFuture< byte[] > second = coalescer.read( location, 200, 100 );
+            final CompletableFuture< byte[] > last = coalescer.read( location, content.length - 50, 100 );
+            assertArrayEquals( Arrays.copyOfRange( content, 200, 300 ), second.get() );
+            assertArrayEquals( Arrays.copyOfRange( content, 0, 100 ), first.get() );
+            assertEquals( 50, last.get().length );
+            assertEquals( 3, server.getNumRequests() );
+        }
+        finally
+        {
+            coalescer.shutdown();
+        }
+    }
+
+    @Test
+    public void failsPendingReadsOnShutdown( @TempDir Path tempDir ) throws Exception
+    {
+        Files.createDirectories( tempDir.resolve( "bucket" ) );
+        Files.write( tempDir.resolve( "bucket" ).resolve( "image.tif" ), new byte[ 1024 ] );
+
+        // the linger time outlasts the test, thus the read is still pending on shutdown
+        final RangeReadCoalescer coalescer = new RangeReadCoalescer( 1024, 1024 * 1024, 60_000, 1 );
+        try ( LocalS3Server server = new LocalS3Server( tempDir.toFile() ) )
+        {
+            final ResourceLocation location = ResourceLocation.of( server.getEndpoint() + "/bucket/image.tif" );
+            final CompletableFuture< byte[] > pending = coalescer.read( location, 0, 100 );
+            coalescer.shutdown();
+            assertThrows( ExecutionException.class, pending::get );
+
+            // reads after the shutdown fail, too, rather than waiting forever
+            assertThrows( ExecutionException.class, () -> coalescer.read( location, 0, 100 ).get() );
+            assertThrows( IOException.class, () -> coalescer.readAll( location, new long[] { 0 }, new int[] { 100 } ) );
+            assertEquals( 0, server.getNumRequests() );
+        }
+    }
+}
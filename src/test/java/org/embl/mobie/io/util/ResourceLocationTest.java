@@ -0,0 +1,57 @@
+package org.embl.mobie.io.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResourceLocationTest
+{
+    @Test
+    public void parseS3Location()
+    {
+        ResourceLocation location = ResourceLocation.of( "https://s3.embl.de/i2k-2020/platy-raw.ome.zarr/s0/" );
+        assertEquals( IOHelper.ResourceType.S3, location.getType() );
+        assertEquals( "https://s3.embl.de", location.getEndpoint() );
+        assertEquals( "i2k-2020", location.getBucket() );
+        assertEquals( "platy-raw.ome.zarr/s0", location.getObject() );
+        assertEquals( "/", location.getSeparator() );
+        assertSame( location, ResourceLocation.of( "https://s3.embl.de/i2k-2020/platy-raw.ome.zarr/s0/" ) );
+    }
+
+    @Test
+    public void keepLocationsInUseInterned()
+    {
+        final ResourceLocation location = ResourceLocation.of( "https://s3.embl.de/bucket/image.ome.zarr" );
+        final ResourceLocation unused = ResourceLocation.of( "https://s3.embl.de/bucket/unused.ome.zarr" );
+        for ( int i = 0; i < 2 * ResourceLocation.MAX_NUM_INTERNED; i++ )
+        {
+            ResourceLocation.of( "https://s3.embl.de/bucket/image.ome.zarr/s0/" + i );
+            assertSame( location, ResourceLocation.of( "https://s3.embl.de/bucket/image.ome.zarr" ) );
+        }
+        assertNotSame( unused, ResourceLocation.of( "https://s3.embl.de/bucket/unused.ome.zarr" ) );
+    }
+
+    @Test
+    public void parseBucketOnly()
+    {
+        String[] bucketAndObject = S3Utils.getBucketAndObject( "https://s3.embl.de/i2k-2020" );
+        assertEquals( "i2k-2020", bucketAndObject[ 0 ] );
+        assertEquals( "", bucketAndObject[ 1 ] );
+        assertEquals( "https://s3.embl.de", S3Utils.getEndpoint( "https://s3.embl.de/i2k-2020" ) );
+    }
+
+    @Test
+    public void parseTypes()
+    {
+        assertEquals( IOHelper.ResourceType.HTTP, IOHelper.getType( "https://raw.githubusercontent.com/mobie/image.xml" ) );
+        assertEquals( IOHelper.ResourceType.S3, IOHelper.getType( "http://localhost:9000/bucket/image.zarr" ) );
+        assertEquals( IOHelper.ResourceType.FILE, IOHelper.getType( "src/test/resources/prospr-myosin-n5.xml" ) );
+    }
+
+    @Test
+    public void combinePath()
+    {
+        assertEquals( "https://s3.embl.de/bucket/image.zarr/labels/.zattrs",
+                IOHelper.combinePath( "https://s3.embl.de/bucket/image.zarr/", "labels", ".zattrs" ) );
+    }
+}
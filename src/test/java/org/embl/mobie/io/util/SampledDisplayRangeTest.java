@@ -0,0 +1,96 @@
+package org.embl.mobie.io.util;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SampledDisplayRangeTest
+{
+    @Test
+    public void estimateRangeOfRamp()
+    {
+        // the values of a 16-bit ramp increase from 0 to 65535 along x
+        final ImagePlus imagePlus = IJ.createImage( "ramp", "16-bit ramp", 1000, 500, 40 );
+        final double[] range = SampledDisplayRange.estimate( imagePlus, 0 );
+
+        assertNotNull( range );
+        assertEquals( 0.00175 * 65535, range[ 0 ], 0.01 * 65535 );
+        assertEquals( 0.99825 * 65535, range[ 1 ], 0.01 * 65535 );
+    }
+
+    @Test
+    public void readPlanesOfVirtualStackOneAtATime()
+    {
+        final ImagePlus ramp = IJ.createImage( "ramp", "16-bit ramp", 1000, 500, 40 );
+        final SingleThreadedStack stack = new SingleThreadedStack( ramp.getStack() );
+        final ImagePlus imagePlus = new ImagePlus( "virtual ramp", stack );
+
+        final double[] range = SampledDisplayRange.estimate( imagePlus, 0 );
+        assertNotNull( range );
+        assertEquals( 0.00175 * 65535, range[ 0 ], 0.01 * 65535 );
+        assertEquals( 0.99825 * 65535, range[ 1 ], 0.01 * 65535 );
+
+        final ChannelStatistics statistics = ChannelStatistics.compute( imagePlus, 0 );
+        assertNotNull( statistics );
+        assertEquals( 65535, statistics.max, 1 );
+
+        assertEquals( 0, stack.numConcurrentReads.get() );
+    }
+
+    /*
+     * Like the virtual stacks of Bio-Formats, which share one reader between all planes.
+     */
+    private static class SingleThreadedStack extends VirtualStack
+    {
+        private final ImageStack stack;
+        private final AtomicInteger numReading = new AtomicInteger();
+        private final AtomicInteger numConcurrentReads = new AtomicInteger();
+
+        SingleThreadedStack( ImageStack stack )
+        {
+            super( stack.getWidth(), stack.getHeight(), null, null );
+            this.stack = stack;
+            setBitDepth( stack.getBitDepth() );
+        }
+
+        @Override
+        public ImageProcessor getProcessor( int n )
+        {
+            if ( numReading.incrementAndGet() > 1 )
+                numConcurrentReads.incrementAndGet();
+            try
+            {
+                // give other threads time to enter
+                Thread.sleep( 5 );
+                return stack.getProcessor( n ).duplicate();
+            }
+            catch ( InterruptedException e )
+            {
+                throw new RuntimeException( e );
+            }
+            finally
+            {
+                numReading.decrementAndGet();
+            }
+        }
+
+        @Override
+        public int getSize()
+        {
+            return stack.getSize();
+        }
+
+        @Override
+        public String getSliceLabel( int n )
+        {
+            return stack.getSliceLabel( n );
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package org.embl.mobie.io.xml;
+
+import com.google.gson.GsonBuilder;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import org.embl.mobie.io.metrics.BlockMetrics;
+import org.embl.mobie.io.util.AdaptiveConcurrencyLimiter;
+import org.embl.mobie.io.util.LocalS3Server;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.universe.N5Factory;
+import org.janelia.saalfeldlab.n5.zarr.N5ZarrWriter;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlockPipelineTest
+{
+    // 4 x 3 x 3 blocks, of which the last in each dimension are border blocks
+    private static final long[] DIMENSIONS = { 100, 90, 70 };
+    private static final int[] BLOCK_SIZE = { 32, 32, 32 };
+
+    @Test
+    public void readsN5BlocksLikeN5( @TempDir Path tempDir ) throws IOException
+    {
+        assertSameBlocks( tempDir, "data.n5", path -> new N5FSWriter( path ), "data/1/1/1" );
+    }
+
+    @Test
+    public void readsZarrBlocksWithDotSeparatorLikeN5( @TempDir Path tempDir ) throws IOException
+    {
+        assertSameBlocks( tempDir, "data.zarr", path -> new N5ZarrWriter( path, new GsonBuilder(), "." ), "data/1.1.1" );
+    }
+
+    @Test
+    public void readsZarrBlocksWithSlashSeparatorLikeN5( @TempDir Path tempDir ) throws IOException
+    {
+        assertSameBlocks( tempDir, "data.zarr", path -> new N5ZarrWriter( path, new GsonBuilder(), "/" ), "data/1/1/1" );
+    }
+
+    private static void assertSameBlocks( Path tempDir, String container, Function< String, N5Writer > createWriter, String missingBlock ) throws IOException
+    {
+        final Path containerPath = tempDir.resolve( "bucket" ).resolve( container );
+        final ArrayImg< UnsignedShortType, ShortArray > img = ArrayImgs.unsignedShorts( DIMENSIONS );
+        final int[] value = { 0 };
+        img.forEach( pixel -> pixel.set( value[ 0 ]++ % 65536 ) );
+        try ( N5Writer n5 = createWriter.apply( containerPath.toString() ) )
+        {
+            N5Utils.save( img, n5, "data", BLOCK_SIZE, new GzipCompression() );
+        }
+        Files.delete( containerPath.resolve( missingBlock ) );
+
+        try ( LocalS3Server server = new LocalS3Server( tempDir.toFile() ) )
+        {
+            final N5Reader n5 = new N5Factory().openReader( server.getEndpoint() + "/bucket/" + container );
+            final DatasetAttributes attributes = n5.getDatasetAttributes( "data" );
+            assertTrue( BlockPipeline.supports( n5, attributes ) );
+
+            final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter();
+            final BlockMetrics metrics = new BlockMetrics();
+            // fewer I/O threads than blocks, such that some blocks queue up in each stage
+            final BlockPipeline pipeline = new BlockPipeline( 2, 2 );
+            try
+            {
+                int numMissing = 0;
+                for ( long z = 0; z < 3; z++ )
+                    for ( long y = 0; y < 3; y++ )
+                        for ( long x = 0; x < 4; x++ )
+                        {
+                            final long[] gridPosition = { x, y, z };
+                            final DataBlock< ? > expected = n5.readBlock( "data", attributes, gridPosition );
+                            final DataBlock< ? > direct = BlockPipeline.readBlockDirectly( n5, "data", attributes, gridPosition, limiter, metrics );
+                            assertSameBlock( expected, direct );
+                            assertSameBlock( expected, pipeline.readBlock( n5, "data", attributes, gridPosition, limiter ) );
+                            if ( expected == null )
+                                numMissing++;
+                        }
+                assertEquals( 1, numMissing );
+                assertEquals( 0, limiter.getNumInFlight() );
+
+                // only the blocks that exist are fetched and decoded
+                assertEquals( 35, metrics.getHistograms().get( "n5.block.fetch" ).getCount() );
+                assertEquals( 35, metrics.getHistograms().get( "n5.block.decode" ).getCount() );
+
+                // many fetcher threads at once
+                final List< long[] > gridPositions = new ArrayList<>();
+                for ( long z = 0; z < 3; z++ )
+                    for ( long y = 0; y < 3; y++ )
+                        for ( long x = 0; x < 4; x++ )
+                            gridPositions.add( new long[] { x, y, z } );
+                gridPositions.parallelStream().forEach( gridPosition ->
+                {
+                    try
+                    {
+                        assertSameBlock(
+                                n5.readBlock( "data", attributes, gridPosition ),
+                                pipeline.readBlock( n5, "data", attributes, gridPosition, limiter ) );
+                    }
+                    catch ( IOException e )
+                    {
+                        throw new UncheckedIOException( e );
+                    }
+                } );
+                assertEquals( 0, limiter.getNumInFlight() );
+            }
+            finally
+            {
+                pipeline.shutdown();
+            }
+        }
+    }
+
+    static void assertSameBlock( DataBlock< ? > expected, DataBlock< ? > actual )
+    {
+        if ( expected == null )
+        {
+            assertNull( actual );
+            return;
+        }
+
+        assertNotNull( actual );
+        assertArrayEquals( expected.getGridPosition(), actual.getGridPosition() );
+        assertArrayEquals( expected.getSize(), actual.getSize() );
+        assertArrayEquals( ( short[] ) expected.getData(), ( short[] ) actual.getData() );
+    }
+}